@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
+import org.cloudfoundry.community.servicebroker.s3.aws.FaultInjector;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryIam;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryS3;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemorySts;
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
+import org.cloudfoundry.community.servicebroker.s3.operation.AsyncOperations;
+import org.cloudfoundry.community.servicebroker.s3.plan.StepGraphExecutor;
+import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
+import org.cloudfoundry.community.servicebroker.s3.service.BucketEmptier;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceIndex;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Provision and bind through {@link BasicPlan} with AWS replaced by the
+ * in-memory stand-ins without injected latency, measuring the broker's own
+ * cost per operation: step scheduling, registry and index updates, policy
+ * rendering and credential building.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BasicPlanBenchmark {
+
+    private BasicPlan plan;
+    private S3 s3;
+    private BucketEmptier bucketEmptier;
+    private AsyncOperations operations;
+    private StepGraphExecutor steps;
+    private UserPool userPool;
+    private ServiceDefinition service;
+    private ServiceInstance instance;
+
+    @Setup
+    public void setUp() throws IOException {
+        AmazonS3 amazonS3 = new InMemoryS3(FaultInjector.none(), 0, 1).client();
+        AmazonIdentityManagement amazonIdentityManagement = new InMemoryIam(FaultInjector.none()).client();
+        BucketGroupPolicy policy = new BucketGroupPolicy(Resources.toString(
+                Resources.getResource("default-bucket-policy.json"), Charsets.UTF_8));
+        BasicPlanIam iam = new BasicPlanIam(amazonIdentityManagement, policy, "/cloud-foundry/s3/",
+                "cloud-foundry-s3-", "cloud-foundry-s3-", "/cloud-foundry/s3/", "cloud-foundry-s3-", "group");
+        bucketEmptier = new BucketEmptier(amazonS3, 1, 1);
+        s3 = new S3(amazonS3, bucketEmptier, new ServiceInstanceRegistry(10000, 300, 30),
+                new ServiceInstanceIndex(""), "cloud-foundry-", "US", 1);
+        operations = new AsyncOperations(new OperationMetrics(), 1, 1);
+        steps = new StepGraphExecutor(4);
+        userPool = new UserPool(iam, 0, 0, 1, "0");
+        StsBindings stsBindings = new StsBindings(new InMemorySts(FaultInjector.none()).client(), policy, s3, "user",
+                "", 3600, 900, "cloud-foundry-s3-", "", "");
+        plan = new BasicPlan(iam, s3, operations, steps, userPool, stsBindings,
+                new BindingIndex(iam, s3, 100000, 600, 30), 100000, 60);
+        service = new ServiceDefinition("s3", "amazon-s3", "Amazon S3", true, null, null, null, null, null);
+        instance = plan.createServiceInstance(service, UUID.randomUUID().toString(), BasicPlan.PLAN_ID, "org",
+                "space");
+    }
+
+    @TearDown
+    public void tearDown() {
+        userPool.shutdown();
+        steps.shutdown();
+        operations.shutdown();
+        s3.shutdown();
+        bucketEmptier.shutdown();
+    }
+
+    @Benchmark
+    public ServiceInstance provision() {
+        return plan.createServiceInstance(service, UUID.randomUUID().toString(), BasicPlan.PLAN_ID, "org", "space");
+    }
+
+    @Benchmark
+    public ServiceInstanceBinding bind() {
+        return plan.createServiceInstanceBinding(UUID.randomUUID().toString(), instance, "s3", BasicPlan.PLAN_ID,
+                "app");
+    }
+
+    @Benchmark
+    public ServiceInstanceBinding bindAndUnbind() throws ServiceBrokerException {
+        String bindingId = UUID.randomUUID().toString();
+        plan.createServiceInstanceBinding(bindingId, instance, "s3", BasicPlan.PLAN_ID, "app");
+        return plan.deleteServiceInstanceBinding(bindingId, instance, "s3", BasicPlan.PLAN_ID);
+    }
+}
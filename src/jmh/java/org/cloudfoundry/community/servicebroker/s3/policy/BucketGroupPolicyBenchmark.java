@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.policy;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BucketGroupPolicyBenchmark {
+
+    private BucketGroupPolicy policy;
+    private String instanceId;
+    private String bucketName;
+
+    @Setup
+    public void setUp() throws IOException {
+        String policyDocument = Resources.toString(Resources.getResource("default-bucket-policy.json"),
+                Charsets.UTF_8);
+        policy = new BucketGroupPolicy(policyDocument);
+        instanceId = "2eac2d52-bfc9-4d0f-af28-c02187689d72";
+        bucketName = "cloud-foundry-" + instanceId;
+    }
+
+    @Benchmark
+    public String policyDocument() {
+        return policy.policyDocument("s3-basic-plan", instanceId, bucketName);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.amazonaws.services.s3.model.BucketTaggingConfiguration;
+import com.amazonaws.services.s3.model.TagSet;
+
+/**
+ * Mapping of bucket tags to a service instance, done for every bucket when
+ * listing instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServiceInstanceTagsBenchmark {
+
+    private BucketTaggingConfiguration tagging;
+
+    @Setup
+    public void setUp() {
+        TagSet tagSet = new TagSet();
+        tagSet.setTag("serviceInstanceId", "2eac2d52-bfc9-4d0f-af28-c02187689d72");
+        tagSet.setTag("serviceDefinitionId", "s3");
+        tagSet.setTag("planId", "s3-basic-plan");
+        tagSet.setTag("organizationGuid", "c5271ba4-6d2f-4163-843c-6a5fdceb7a1a");
+        tagSet.setTag("spaceGuid", "e9bea699-aa68-4464-bb8f-0c8622884b43");
+        tagging = new BucketTaggingConfiguration().withTagSets(tagSet);
+    }
+
+    @Benchmark
+    public ServiceInstance createServiceInstance() {
+        return S3.createServiceInstance(tagging);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the rate of calls made through the AWS clients and retries throttled
+ * calls.
+ * <p>
+ * Calls are grouped into operation families, reads and writes of each service,
+ * and each family has its own token bucket. A rate of 0 leaves the family
+ * unlimited, as STS calls always are. A call that AWS throttles is retried
+ * with full-jitter exponential backoff, at most {@code AWS_RETRY_BUDGET}
+ * times, before the throttling error is passed to the caller. Time spent
+ * waiting for permits and retries is published as metrics under
+ * {@code aws.<service>.<read|write>}.
+ */
+@Component
+public class AwsCallLimiter implements PublicMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(AwsCallLimiter.class);
+
+    // client methods that don't make a request
+    private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("setEndpoint", "setRegion",
+            "setS3ClientOptions", "getCachedResponseMetadata", "shutdown", "generatePresignedUrl", "getResourceUrl",
+            "getUrl", "getRegion", "getRegionName"));
+
+    private final Map<String, Family> families = new ConcurrentHashMap<String, Family>();
+    private final int retryBudget;
+    private final long retryBaseDelayMillis;
+    private final long retryMaxDelayMillis;
+    private final Random random = new Random();
+
+    @Autowired
+    public AwsCallLimiter(@Value("${IAM_READ_RATE_LIMIT:20}") double iamReadRate,
+            @Value("${IAM_WRITE_RATE_LIMIT:10}") double iamWriteRate,
+            @Value("${S3_READ_RATE_LIMIT:0}") double s3ReadRate,
+            @Value("${S3_WRITE_RATE_LIMIT:0}") double s3WriteRate,
+            @Value("${S3_BULK_READ_RATE_LIMIT:0}") double s3BulkReadRate,
+            @Value("${S3_BULK_WRITE_RATE_LIMIT:0}") double s3BulkWriteRate,
+            @Value("${AWS_RETRY_BUDGET:5}") int retryBudget,
+            @Value("${AWS_RETRY_BASE_DELAY_MILLIS:100}") long retryBaseDelayMillis,
+            @Value("${AWS_RETRY_MAX_DELAY_MILLIS:5000}") long retryMaxDelayMillis) {
+        addFamily("iam.read", iamReadRate);
+        addFamily("iam.write", iamWriteRate);
+        addFamily("s3.read", s3ReadRate);
+        addFamily("s3.write", s3WriteRate);
+        addFamily("s3bulk.read", s3BulkReadRate);
+        addFamily("s3bulk.write", s3BulkWriteRate);
+        addFamily("sts.read", 0);
+        addFamily("sts.write", 0);
+        this.retryBudget = retryBudget;
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+        this.retryMaxDelayMillis = retryMaxDelayMillis;
+    }
+
+    private void addFamily(String name, double permitsPerSecond) {
+        families.put(name, new Family(name, permitsPerSecond > 0 ? RateLimiter.create(permitsPerSecond) : null));
+    }
+
+    /**
+     * Returns a proxy that sends every call of the client through the
+     * limiter of its operation family.
+     * 
+     * @param service
+     *            "iam", "s3", "s3bulk" for the client that empties buckets,
+     *            or "sts"
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T limit(Class<T> clientInterface, final T client, final String service) {
+        return (T) Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[] { clientInterface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName())) {
+                            return invokeClient(client, method, args);
+                        }
+                        return call(familyOf(service, method.getName()), client, method, args);
+                    }
+                });
+    }
+
+    private Family familyOf(String service, String methodName) {
+        boolean read = methodName.startsWith("get") || methodName.startsWith("list")
+                || methodName.startsWith("doesBucketExist") || methodName.startsWith("doesObjectExist");
+        return families.get(service + (read ? ".read" : ".write"));
+    }
+
+    private Object call(Family family, Object client, Method method, Object[] args) throws Throwable {
+        for (int attempt = 0;; attempt++) {
+            family.acquire();
+            try {
+                return invokeClient(client, method, args);
+            } catch (AmazonServiceException e) {
+                if (!RetryUtils.isThrottlingException(e)) {
+                    throw e;
+                }
+                family.throttled.incrementAndGet();
+                if (attempt >= retryBudget) {
+                    family.budgetExhausted.incrementAndGet();
+                    logger.warn("{} throttled, retry budget of {} exhausted", method.getName(), retryBudget);
+                    throw e;
+                }
+                family.retries.incrementAndGet();
+                backoff(family, attempt, e);
+            }
+        }
+    }
+
+    private Object invokeClient(Object client, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void backoff(Family family, int attempt, AmazonServiceException cause) {
+        long ceiling = Math.min(retryMaxDelayMillis, retryBaseDelayMillis << Math.min(attempt, 30));
+        long delay = (long) (random.nextDouble() * ceiling);
+        family.backoffNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(delay));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        for (Family family : families.values()) {
+            String prefix = "aws." + family.name + ".";
+            metrics.add(new Metric<Long>(prefix + "calls", family.calls.get()));
+            metrics.add(new Metric<Long>(prefix + "limiter.wait.millis", TimeUnit.NANOSECONDS.toMillis(family.waitNanos
+                    .get())));
+            metrics.add(new Metric<Long>(prefix + "limiter.wait.max.millis", TimeUnit.NANOSECONDS
+                    .toMillis(family.maxWaitNanos.get())));
+            metrics.add(new Metric<Long>(prefix + "throttled", family.throttled.get()));
+            metrics.add(new Metric<Long>(prefix + "retries", family.retries.get()));
+            metrics.add(new Metric<Long>(prefix + "retry.backoff.millis", TimeUnit.NANOSECONDS
+                    .toMillis(family.backoffNanos.get())));
+            metrics.add(new Metric<Long>(prefix + "retry.budget.exhausted", family.budgetExhausted.get()));
+        }
+        return metrics;
+    }
+
+    private static class Family {
+        private final String name;
+        private final RateLimiter limiter;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong backoffNanos = new AtomicLong();
+        private final AtomicLong budgetExhausted = new AtomicLong();
+
+        Family(String name, RateLimiter limiter) {
+            this.name = name;
+            this.limiter = limiter;
+        }
+
+        void acquire() {
+            calls.incrementAndGet();
+            if (limiter == null) {
+                return;
+            }
+            // acquire() returns the time spent sleeping in seconds
+            long waited = (long) (limiter.acquire() * TimeUnit.SECONDS.toNanos(1));
+            waitNanos.addAndGet(waited);
+            long max = maxWaitNanos.get();
+            while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+                max = maxWaitNanos.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Adds latency and throttling errors to the calls of the in-memory AWS
+ * stand-ins.
+ * <p>
+ * Both are configured with a comma separated list of entries keyed by service
+ * ({@code s3}, {@code iam}) or by service and operation
+ * ({@code s3.deleteObjects}); the operation entry wins. Latencies are given as
+ * {@code median/p99} in milliseconds and sampled from a log-normal
+ * distribution with those quantiles, for example
+ * {@code s3=20/80,iam=40/400,iam.createUser=60/900}. Throttling rates are the
+ * probability of a call failing with the service's throttling error, for
+ * example {@code iam=0.02}.
+ */
+public class FaultInjector {
+
+    // the 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.3263;
+
+    private final Map<String, Latency> latencies = new HashMap<String, Latency>();
+    private final Map<String, Double> throttleRates = new HashMap<String, Double>();
+    private final Random random;
+
+    public FaultInjector(String latencies, String throttleRates, long seed) {
+        for (Map.Entry<String, String> entry : entries(latencies).entrySet()) {
+            this.latencies.put(entry.getKey(), Latency.parse(entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : entries(throttleRates).entrySet()) {
+            double rate = Double.parseDouble(entry.getValue());
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Throttle rate for '" + entry.getKey()
+                        + "' must be between 0 and 1: " + rate);
+            }
+            this.throttleRates.put(entry.getKey(), rate);
+        }
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return an injector that neither delays nor throttles
+     */
+    public static FaultInjector none() {
+        return new FaultInjector("", "", 0);
+    }
+
+    private static Map<String, String> entries(String spec) {
+        if (Strings.isNullOrEmpty(spec) || spec.trim().isEmpty()) {
+            return new HashMap<String, String>();
+        }
+        return Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(spec);
+    }
+
+    /**
+     * Sleeps for a sampled latency and then decides whether the call is
+     * throttled.
+     *
+     * @return true if the call must fail with a throttling error
+     */
+    public boolean beforeCall(String service, String operation) {
+        Latency latency = lookup(latencies, service, operation);
+        if (latency != null) {
+            long nanos = latency.sampleNanos(random);
+            if (nanos > 0) {
+                Uninterruptibles.sleepUninterruptibly(nanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        Double rate = lookup(throttleRates, service, operation);
+        return rate != null && random.nextDouble() < rate;
+    }
+
+    private static <V> V lookup(Map<String, V> values, String service, String operation) {
+        V value = values.get(service + "." + operation);
+        return value != null ? value : values.get(service);
+    }
+
+    /**
+     * Log-normal latency defined by its median and 99th percentile. A p99 at or
+     * below the median gives a constant latency.
+     */
+    static class Latency {
+
+        private final double mu;
+        private final double sigma;
+
+        Latency(double medianMillis, double p99Millis) {
+            if (medianMillis < 0 || p99Millis < 0) {
+                throw new IllegalArgumentException("Latencies must not be negative");
+            }
+            this.mu = Math.log(Math.max(medianMillis, Double.MIN_VALUE));
+            this.sigma = p99Millis > medianMillis ? (Math.log(p99Millis) - mu) / Z_99 : 0;
+        }
+
+        static Latency parse(String spec) {
+            int slash = spec.indexOf('/');
+            if (slash < 0) {
+                double millis = Double.parseDouble(spec.trim());
+                return new Latency(millis, millis);
+            }
+            return new Latency(Double.parseDouble(spec.substring(0, slash).trim()), Double.parseDouble(spec
+                    .substring(slash + 1).trim()));
+        }
+
+        long sampleNanos(Random random) {
+            double millis = Math.exp(mu + sigma * random.nextGaussian());
+            return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
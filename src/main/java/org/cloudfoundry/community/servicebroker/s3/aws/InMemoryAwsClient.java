@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Base class of the in-memory AWS stand-ins. Subclasses implement the client
+ * operations the broker uses as public methods with the signatures of the
+ * client interface; {@link #client(Class)} returns a proxy of the interface
+ * that sends each call through the {@link FaultInjector} and then to the
+ * matching method. Operations without a matching method fail with
+ * {@link UnsupportedOperationException}.
+ */
+public abstract class InMemoryAwsClient {
+
+    // client methods that don't make a request
+    private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("setEndpoint", "setRegion",
+            "setS3ClientOptions", "shutdown"));
+
+    private final String service;
+    private final FaultInjector faults;
+    private final ConcurrentMap<Method, Method> implementations = new ConcurrentHashMap<Method, Method>();
+
+    protected InMemoryAwsClient(String service, FaultInjector faults) {
+        this.service = service;
+        this.faults = faults;
+    }
+
+    /**
+     * @return the error AWS returns when it throttles a call to this service
+     */
+    protected abstract AmazonServiceException throttlingException();
+
+    @SuppressWarnings("unchecked")
+    protected <T> T client(final Class<T> clientInterface) {
+        return (T) Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[] { clientInterface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(InMemoryAwsClient.this, args);
+                        }
+                        if (LOCAL_METHODS.contains(method.getName())) {
+                            return null;
+                        }
+                        Method implementation = implementationOf(method);
+                        if (faults.beforeCall(service, method.getName())) {
+                            throw throttlingException();
+                        }
+                        try {
+                            return implementation.invoke(InMemoryAwsClient.this, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private Method implementationOf(Method method) {
+        Method implementation = implementations.get(method);
+        if (implementation == null) {
+            try {
+                implementation = getClass().getMethod(method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedOperationException(method.getName()
+                        + " is not supported by the in-memory " + service + " stand-in");
+            }
+            implementations.put(method, implementation);
+        }
+        return implementation;
+    }
+
+    protected AmazonServiceException error(AmazonServiceException e, String errorCode, int statusCode) {
+        e.setServiceName(service);
+        e.setErrorCode(errorCode);
+        e.setStatusCode(statusCode);
+        e.setErrorType(AmazonServiceException.ErrorType.Client);
+        return e;
+    }
+}
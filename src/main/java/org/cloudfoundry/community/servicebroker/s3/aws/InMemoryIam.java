@@ -0,0 +1,609 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.AccessKey;
+import com.amazonaws.services.identitymanagement.model.AccessKeyMetadata;
+import com.amazonaws.services.identitymanagement.model.AddUserToGroupRequest;
+import com.amazonaws.services.identitymanagement.model.AttachGroupPolicyRequest;
+import com.amazonaws.services.identitymanagement.model.CreateAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.CreateAccessKeyResult;
+import com.amazonaws.services.identitymanagement.model.CreateGroupRequest;
+import com.amazonaws.services.identitymanagement.model.CreateGroupResult;
+import com.amazonaws.services.identitymanagement.model.CreatePolicyRequest;
+import com.amazonaws.services.identitymanagement.model.CreatePolicyResult;
+import com.amazonaws.services.identitymanagement.model.CreatePolicyVersionRequest;
+import com.amazonaws.services.identitymanagement.model.CreatePolicyVersionResult;
+import com.amazonaws.services.identitymanagement.model.CreateUserRequest;
+import com.amazonaws.services.identitymanagement.model.CreateUserResult;
+import com.amazonaws.services.identitymanagement.model.DeleteAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteConflictException;
+import com.amazonaws.services.identitymanagement.model.DeleteGroupPolicyRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteGroupRequest;
+import com.amazonaws.services.identitymanagement.model.DeletePolicyVersionRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteUserRequest;
+import com.amazonaws.services.identitymanagement.model.EntityAlreadyExistsException;
+import com.amazonaws.services.identitymanagement.model.GetGroupRequest;
+import com.amazonaws.services.identitymanagement.model.GetGroupResult;
+import com.amazonaws.services.identitymanagement.model.GetPolicyVersionRequest;
+import com.amazonaws.services.identitymanagement.model.GetPolicyVersionResult;
+import com.amazonaws.services.identitymanagement.model.GetUserRequest;
+import com.amazonaws.services.identitymanagement.model.GetUserResult;
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.LimitExceededException;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysRequest;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysResult;
+import com.amazonaws.services.identitymanagement.model.ListGroupsForUserRequest;
+import com.amazonaws.services.identitymanagement.model.ListGroupsForUserResult;
+import com.amazonaws.services.identitymanagement.model.ListGroupsRequest;
+import com.amazonaws.services.identitymanagement.model.ListGroupsResult;
+import com.amazonaws.services.identitymanagement.model.ListPoliciesRequest;
+import com.amazonaws.services.identitymanagement.model.ListPoliciesResult;
+import com.amazonaws.services.identitymanagement.model.ListPolicyVersionsRequest;
+import com.amazonaws.services.identitymanagement.model.ListPolicyVersionsResult;
+import com.amazonaws.services.identitymanagement.model.ListUserTagsRequest;
+import com.amazonaws.services.identitymanagement.model.ListUserTagsResult;
+import com.amazonaws.services.identitymanagement.model.ListUsersRequest;
+import com.amazonaws.services.identitymanagement.model.ListUsersResult;
+import com.amazonaws.services.identitymanagement.model.NoSuchEntityException;
+import com.amazonaws.services.identitymanagement.model.Policy;
+import com.amazonaws.services.identitymanagement.model.PolicyVersion;
+import com.amazonaws.services.identitymanagement.model.PutGroupPolicyRequest;
+import com.amazonaws.services.identitymanagement.model.RemoveUserFromGroupRequest;
+import com.amazonaws.services.identitymanagement.model.Tag;
+import com.amazonaws.services.identitymanagement.model.TagUserRequest;
+import com.amazonaws.services.identitymanagement.model.UpdateUserRequest;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.google.common.base.Strings;
+
+/**
+ * In-memory stand-in for the user, group, access key, user tag, inline group
+ * policy and managed policy operations of {@link AmazonIdentityManagement}
+ * used by the broker. Names are unique across paths like in IAM, deletes fail
+ * while the entity still has members, policies or keys, a user holds at most
+ * two access keys and a managed policy at most five versions.
+ */
+public class InMemoryIam extends InMemoryAwsClient {
+
+    static final String ACCOUNT_ID = "123456789012";
+    private static final int MAX_ACCESS_KEYS = 2;
+    private static final int MAX_POLICY_VERSIONS = 5;
+    private static final int MAX_ITEMS = 100;
+    private static final String ID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final String SECRET_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    // all state is guarded by this
+    private final Map<String, UserEntry> users = new TreeMap<String, UserEntry>();
+    private final Map<String, GroupEntry> groups = new TreeMap<String, GroupEntry>();
+    private final Map<String, PolicyEntry> managedPolicies = new TreeMap<String, PolicyEntry>();
+    private final Random random = new Random();
+
+    public InMemoryIam(FaultInjector faults) {
+        super("iam", faults);
+    }
+
+    public AmazonIdentityManagement client() {
+        return client(AmazonIdentityManagement.class);
+    }
+
+    @Override
+    protected AmazonServiceException throttlingException() {
+        return error(new AmazonServiceException("Rate exceeded"), "Throttling", 400);
+    }
+
+    public synchronized CreateUserResult createUser(CreateUserRequest request) {
+        if (users.containsKey(request.getUserName())) {
+            throw alreadyExists("User", request.getUserName());
+        }
+        String path = path(request.getPath());
+        User user = new User().withUserName(request.getUserName()).withPath(path).withUserId(id("AIDA"))
+                .withArn(arn("user", path, request.getUserName())).withCreateDate(new Date());
+        UserEntry entry = new UserEntry(user);
+        putTags(entry, request.getTags());
+        users.put(user.getUserName(), entry);
+        return new CreateUserResult().withUser(copy(user));
+    }
+
+    public synchronized void tagUser(TagUserRequest request) {
+        putTags(user(request.getUserName()), request.getTags());
+    }
+
+    private static void putTags(UserEntry entry, List<Tag> tags) {
+        if (tags != null) {
+            for (Tag tag : tags) {
+                entry.tags.put(tag.getKey(), tag.getValue());
+            }
+        }
+    }
+
+    public synchronized ListUserTagsResult listUserTags(ListUserTagsRequest request) {
+        List<Tag> tags = new ArrayList<Tag>();
+        for (Map.Entry<String, String> tag : user(request.getUserName()).tags.entrySet()) {
+            tags.add(new Tag().withKey(tag.getKey()).withValue(tag.getValue()));
+        }
+        ListUserTagsResult result = new ListUserTagsResult().withTags(tags);
+        result.setIsTruncated(false);
+        return result;
+    }
+
+    /**
+     * @return the value of the user's tag, or null if it has no such tag
+     */
+    public synchronized String getUserTag(String userName, String key) {
+        return user(userName).tags.get(key);
+    }
+
+    public synchronized GetUserResult getUser(GetUserRequest request) {
+        return new GetUserResult().withUser(copy(user(request.getUserName()).user));
+    }
+
+    public synchronized void updateUser(UpdateUserRequest request) {
+        UserEntry entry = user(request.getUserName());
+        String newName = request.getNewUserName() != null ? request.getNewUserName() : entry.user.getUserName();
+        String newPath = request.getNewPath() != null ? request.getNewPath() : entry.user.getPath();
+        if (!newName.equals(entry.user.getUserName())) {
+            if (users.containsKey(newName)) {
+                throw alreadyExists("User", newName);
+            }
+            users.remove(entry.user.getUserName());
+            users.put(newName, entry);
+            for (String groupName : entry.groups) {
+                groups.get(groupName).members.remove(entry.user.getUserName());
+                groups.get(groupName).members.add(newName);
+            }
+            for (AccessKey accessKey : entry.accessKeys.values()) {
+                accessKey.setUserName(newName);
+            }
+        }
+        entry.user.setUserName(newName);
+        entry.user.setPath(newPath);
+        entry.user.setArn(arn("user", newPath, newName));
+    }
+
+    public synchronized ListUsersResult listUsers(ListUsersRequest request) {
+        String pathPrefix = Strings.isNullOrEmpty(request.getPathPrefix()) ? "/" : request.getPathPrefix();
+        List<User> matching = new ArrayList<User>();
+        for (UserEntry entry : users.values()) {
+            if (entry.user.getPath().startsWith(pathPrefix)) {
+                matching.add(copy(entry.user));
+            }
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(matching.size(), start + maxItems(request.getMaxItems()));
+        ListUsersResult result = new ListUsersResult().withUsers(new ArrayList<User>(matching.subList(start, end)));
+        result.setIsTruncated(end < matching.size());
+        if (end < matching.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    public synchronized void deleteUser(DeleteUserRequest request) {
+        UserEntry entry = user(request.getUserName());
+        if (!entry.groups.isEmpty() || !entry.accessKeys.isEmpty()) {
+            throw error(new DeleteConflictException("Cannot delete entity, must remove users from group first."),
+                    "DeleteConflict", 409);
+        }
+        users.remove(request.getUserName());
+    }
+
+    public synchronized CreateGroupResult createGroup(CreateGroupRequest request) {
+        if (groups.containsKey(request.getGroupName())) {
+            throw alreadyExists("Group", request.getGroupName());
+        }
+        String path = path(request.getPath());
+        Group group = new Group().withGroupName(request.getGroupName()).withPath(path).withGroupId(id("AGPA"))
+                .withArn(arn("group", path, request.getGroupName())).withCreateDate(new Date());
+        groups.put(group.getGroupName(), new GroupEntry(group));
+        return new CreateGroupResult().withGroup(copy(group));
+    }
+
+    public synchronized void deleteGroup(DeleteGroupRequest request) {
+        GroupEntry entry = group(request.getGroupName());
+        if (!entry.members.isEmpty() || !entry.policies.isEmpty() || !entry.attachedPolicies.isEmpty()) {
+            throw error(new DeleteConflictException("Cannot delete entity, must delete policies and remove users "
+                    + "first."), "DeleteConflict", 409);
+        }
+        groups.remove(request.getGroupName());
+    }
+
+    public synchronized ListGroupsResult listGroups(ListGroupsRequest request) {
+        String pathPrefix = Strings.isNullOrEmpty(request.getPathPrefix()) ? "/" : request.getPathPrefix();
+        List<Group> matching = new ArrayList<Group>();
+        for (GroupEntry entry : groups.values()) {
+            if (entry.group.getPath().startsWith(pathPrefix)) {
+                matching.add(copy(entry.group));
+            }
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(matching.size(), start + maxItems(request.getMaxItems()));
+        ListGroupsResult result = new ListGroupsResult().withGroups(new ArrayList<Group>(matching.subList(start, end)));
+        result.setIsTruncated(end < matching.size());
+        if (end < matching.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    public synchronized GetGroupResult getGroup(GetGroupRequest request) {
+        GroupEntry entry = group(request.getGroupName());
+        List<User> members = new ArrayList<User>();
+        for (String userName : entry.members) {
+            members.add(copy(users.get(userName).user));
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(members.size(), start + maxItems(request.getMaxItems()));
+        GetGroupResult result = new GetGroupResult().withGroup(copy(entry.group))
+                .withUsers(new ArrayList<User>(members.subList(start, end)));
+        result.setIsTruncated(end < members.size());
+        if (end < members.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    public synchronized void putGroupPolicy(PutGroupPolicyRequest request) {
+        group(request.getGroupName()).policies.put(request.getPolicyName(), request.getPolicyDocument());
+    }
+
+    public synchronized void deleteGroupPolicy(DeleteGroupPolicyRequest request) {
+        if (group(request.getGroupName()).policies.remove(request.getPolicyName()) == null) {
+            throw noSuchEntity("policy", request.getPolicyName());
+        }
+    }
+
+    /**
+     * @return the inline policy document, or null if the group has none of
+     *         that name
+     */
+    public synchronized String getGroupPolicyDocument(String groupName, String policyName) {
+        return group(groupName).policies.get(policyName);
+    }
+
+    public synchronized CreatePolicyResult createPolicy(CreatePolicyRequest request) {
+        String path = path(request.getPath());
+        String arn = arn("policy", path, request.getPolicyName());
+        for (PolicyEntry entry : managedPolicies.values()) {
+            if (entry.policy.getPolicyName().equals(request.getPolicyName())) {
+                throw alreadyExists("Policy", request.getPolicyName());
+            }
+        }
+        Date now = new Date();
+        Policy policy = new Policy().withPolicyName(request.getPolicyName()).withPath(path).withArn(arn)
+                .withPolicyId(id("ANPA")).withDefaultVersionId("v1").withCreateDate(now);
+        PolicyEntry entry = new PolicyEntry(policy);
+        entry.versions.add(new PolicyVersion().withVersionId("v1").withDocument(request.getPolicyDocument())
+                .withIsDefaultVersion(true).withCreateDate(now));
+        managedPolicies.put(arn, entry);
+        return new CreatePolicyResult().withPolicy(copy(policy));
+    }
+
+    public synchronized ListPoliciesResult listPolicies(ListPoliciesRequest request) {
+        String pathPrefix = Strings.isNullOrEmpty(request.getPathPrefix()) ? "/" : request.getPathPrefix();
+        List<Policy> matching = new ArrayList<Policy>();
+        for (PolicyEntry entry : managedPolicies.values()) {
+            if (entry.policy.getPath().startsWith(pathPrefix)) {
+                matching.add(copy(entry.policy));
+            }
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(matching.size(), start + maxItems(request.getMaxItems()));
+        ListPoliciesResult result = new ListPoliciesResult()
+                .withPolicies(new ArrayList<Policy>(matching.subList(start, end)));
+        result.setIsTruncated(end < matching.size());
+        if (end < matching.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the document URL encoded, like IAM.
+     */
+    public synchronized GetPolicyVersionResult getPolicyVersion(GetPolicyVersionRequest request) {
+        PolicyVersion version = policyVersion(policy(request.getPolicyArn()), request.getVersionId());
+        PolicyVersion result = copy(version);
+        try {
+            result.setDocument(URLEncoder.encode(version.getDocument(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new GetPolicyVersionResult().withPolicyVersion(result);
+    }
+
+    public synchronized CreatePolicyVersionResult createPolicyVersion(CreatePolicyVersionRequest request) {
+        PolicyEntry entry = policy(request.getPolicyArn());
+        if (entry.versions.size() >= MAX_POLICY_VERSIONS) {
+            throw error(new LimitExceededException("A managed policy can have up to " + MAX_POLICY_VERSIONS
+                    + " versions."), "LimitExceeded", 409);
+        }
+        PolicyVersion version = new PolicyVersion().withVersionId("v" + ++entry.lastVersion)
+                .withDocument(request.getPolicyDocument()).withIsDefaultVersion(false).withCreateDate(new Date());
+        entry.versions.add(version);
+        if (Boolean.TRUE.equals(request.getSetAsDefault())) {
+            for (PolicyVersion other : entry.versions) {
+                other.setIsDefaultVersion(other == version);
+            }
+            entry.policy.setDefaultVersionId(version.getVersionId());
+        }
+        PolicyVersion result = copy(version);
+        result.setDocument(null);
+        return new CreatePolicyVersionResult().withPolicyVersion(result);
+    }
+
+    public synchronized ListPolicyVersionsResult listPolicyVersions(ListPolicyVersionsRequest request) {
+        List<PolicyVersion> versions = new ArrayList<PolicyVersion>();
+        for (PolicyVersion version : policy(request.getPolicyArn()).versions) {
+            PolicyVersion listed = copy(version);
+            listed.setDocument(null);
+            versions.add(listed);
+        }
+        ListPolicyVersionsResult result = new ListPolicyVersionsResult().withVersions(versions);
+        result.setIsTruncated(false);
+        return result;
+    }
+
+    public synchronized void deletePolicyVersion(DeletePolicyVersionRequest request) {
+        PolicyEntry entry = policy(request.getPolicyArn());
+        PolicyVersion version = policyVersion(entry, request.getVersionId());
+        if (Boolean.TRUE.equals(version.isDefaultVersion())) {
+            throw error(new DeleteConflictException("Cannot delete the default version of a policy."),
+                    "DeleteConflict", 409);
+        }
+        entry.versions.remove(version);
+    }
+
+    public synchronized void attachGroupPolicy(AttachGroupPolicyRequest request) {
+        GroupEntry group = group(request.getGroupName());
+        policy(request.getPolicyArn());
+        group.attachedPolicies.add(request.getPolicyArn());
+    }
+
+    /**
+     * @return the default version of the managed policy, or null if there is
+     *         no policy of that name or it isn't attached to the group
+     */
+    public synchronized String getAttachedPolicyDocument(String groupName, String policyName) {
+        for (String arn : group(groupName).attachedPolicies) {
+            PolicyEntry entry = managedPolicies.get(arn);
+            if (entry.policy.getPolicyName().equals(policyName)) {
+                return policyVersion(entry, entry.policy.getDefaultVersionId()).getDocument();
+            }
+        }
+        return null;
+    }
+
+    public synchronized void addUserToGroup(AddUserToGroupRequest request) {
+        GroupEntry group = group(request.getGroupName());
+        user(request.getUserName()).groups.add(request.getGroupName());
+        group.members.add(request.getUserName());
+    }
+
+    public synchronized void removeUserFromGroup(RemoveUserFromGroupRequest request) {
+        GroupEntry group = group(request.getGroupName());
+        UserEntry user = user(request.getUserName());
+        if (!group.members.remove(request.getUserName())) {
+            throw noSuchEntity("user in group", request.getUserName());
+        }
+        user.groups.remove(request.getGroupName());
+    }
+
+    public synchronized ListGroupsForUserResult listGroupsForUser(ListGroupsForUserRequest request) {
+        List<Group> groupsForUser = new ArrayList<Group>();
+        for (String groupName : user(request.getUserName()).groups) {
+            groupsForUser.add(copy(groups.get(groupName).group));
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(groupsForUser.size(), start + maxItems(request.getMaxItems()));
+        ListGroupsForUserResult result = new ListGroupsForUserResult()
+                .withGroups(new ArrayList<Group>(groupsForUser.subList(start, end)));
+        result.setIsTruncated(end < groupsForUser.size());
+        if (end < groupsForUser.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    public synchronized CreateAccessKeyResult createAccessKey(CreateAccessKeyRequest request) {
+        UserEntry entry = user(request.getUserName());
+        if (entry.accessKeys.size() >= MAX_ACCESS_KEYS) {
+            throw error(new LimitExceededException("Cannot exceed quota for AccessKeysPerUser: " + MAX_ACCESS_KEYS),
+                    "LimitExceeded", 409);
+        }
+        AccessKey accessKey = new AccessKey().withUserName(request.getUserName()).withAccessKeyId(id("AKIA"))
+                .withSecretAccessKey(random(SECRET_CHARACTERS, 40)).withStatus("Active").withCreateDate(new Date());
+        entry.accessKeys.put(accessKey.getAccessKeyId(), accessKey);
+        return new CreateAccessKeyResult().withAccessKey(copy(accessKey));
+    }
+
+    public synchronized ListAccessKeysResult listAccessKeys(ListAccessKeysRequest request) {
+        List<AccessKeyMetadata> metadata = new ArrayList<AccessKeyMetadata>();
+        for (AccessKey accessKey : user(request.getUserName()).accessKeys.values()) {
+            metadata.add(new AccessKeyMetadata().withUserName(accessKey.getUserName())
+                    .withAccessKeyId(accessKey.getAccessKeyId()).withStatus(accessKey.getStatus())
+                    .withCreateDate(accessKey.getCreateDate()));
+        }
+        int start = request.getMarker() == null ? 0 : Integer.parseInt(request.getMarker());
+        int end = Math.min(metadata.size(), start + maxItems(request.getMaxItems()));
+        ListAccessKeysResult result = new ListAccessKeysResult()
+                .withAccessKeyMetadata(new ArrayList<AccessKeyMetadata>(metadata.subList(start, end)));
+        result.setIsTruncated(end < metadata.size());
+        if (end < metadata.size()) {
+            result.setMarker(Integer.toString(end));
+        }
+        return result;
+    }
+
+    public synchronized void deleteAccessKey(DeleteAccessKeyRequest request) {
+        if (user(request.getUserName()).accessKeys.remove(request.getAccessKeyId()) == null) {
+            throw noSuchEntity("access key", request.getAccessKeyId());
+        }
+    }
+
+    /**
+     * @return the number of users, for checking that nothing leaks
+     */
+    public synchronized int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return the number of groups, for checking that nothing leaks
+     */
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    private UserEntry user(String userName) {
+        UserEntry entry = users.get(userName);
+        if (entry == null) {
+            throw noSuchEntity("user", userName);
+        }
+        return entry;
+    }
+
+    private GroupEntry group(String groupName) {
+        GroupEntry entry = groups.get(groupName);
+        if (entry == null) {
+            throw noSuchEntity("group", groupName);
+        }
+        return entry;
+    }
+
+    private PolicyEntry policy(String arn) {
+        PolicyEntry entry = managedPolicies.get(arn);
+        if (entry == null) {
+            throw noSuchEntity("policy", arn);
+        }
+        return entry;
+    }
+
+    private PolicyVersion policyVersion(PolicyEntry entry, String versionId) {
+        for (PolicyVersion version : entry.versions) {
+            if (version.getVersionId().equals(versionId)) {
+                return version;
+            }
+        }
+        throw noSuchEntity("policy version", versionId);
+    }
+
+    private AmazonServiceException noSuchEntity(String type, String name) {
+        return error(new NoSuchEntityException("The " + type + " with name " + name + " cannot be found."),
+                "NoSuchEntity", 404);
+    }
+
+    private AmazonServiceException alreadyExists(String type, String name) {
+        return error(new EntityAlreadyExistsException(type + " with name " + name + " already exists."),
+                "EntityAlreadyExists", 409);
+    }
+
+    private static int maxItems(Integer requested) {
+        return requested == null || requested <= 0 ? MAX_ITEMS : Math.min(requested, 1000);
+    }
+
+    private static String path(String path) {
+        return Strings.isNullOrEmpty(path) ? "/" : path;
+    }
+
+    private static String arn(String type, String path, String name) {
+        return "arn:aws:iam::" + ACCOUNT_ID + ":" + type + path + name;
+    }
+
+    private String id(String prefix) {
+        return prefix + random(ID_CHARACTERS, 16);
+    }
+
+    private String random(String characters, int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append(characters.charAt(random.nextInt(characters.length())));
+        }
+        return value.toString();
+    }
+
+    private static User copy(User user) {
+        return new User().withUserName(user.getUserName()).withPath(user.getPath()).withUserId(user.getUserId())
+                .withArn(user.getArn()).withCreateDate(user.getCreateDate());
+    }
+
+    private static Group copy(Group group) {
+        return new Group().withGroupName(group.getGroupName()).withPath(group.getPath())
+                .withGroupId(group.getGroupId()).withArn(group.getArn()).withCreateDate(group.getCreateDate());
+    }
+
+    private static Policy copy(Policy policy) {
+        return new Policy().withPolicyName(policy.getPolicyName()).withPath(policy.getPath())
+                .withPolicyId(policy.getPolicyId()).withArn(policy.getArn())
+                .withDefaultVersionId(policy.getDefaultVersionId()).withCreateDate(policy.getCreateDate());
+    }
+
+    private static PolicyVersion copy(PolicyVersion version) {
+        return new PolicyVersion().withVersionId(version.getVersionId()).withDocument(version.getDocument())
+                .withIsDefaultVersion(version.isDefaultVersion()).withCreateDate(version.getCreateDate());
+    }
+
+    private static AccessKey copy(AccessKey accessKey) {
+        return new AccessKey().withUserName(accessKey.getUserName()).withAccessKeyId(accessKey.getAccessKeyId())
+                .withSecretAccessKey(accessKey.getSecretAccessKey()).withStatus(accessKey.getStatus())
+                .withCreateDate(accessKey.getCreateDate());
+    }
+
+    private static class UserEntry {
+        private final User user;
+        private final Set<String> groups = new TreeSet<String>();
+        private final Map<String, AccessKey> accessKeys = new LinkedHashMap<String, AccessKey>();
+        private final Map<String, String> tags = new TreeMap<String, String>();
+
+        UserEntry(User user) {
+            this.user = user;
+        }
+    }
+
+    private static class GroupEntry {
+        private final Group group;
+        private final Set<String> members = new TreeSet<String>();
+        private final Map<String, String> policies = new TreeMap<String, String>();
+        private final Set<String> attachedPolicies = new TreeSet<String>();
+
+        GroupEntry(Group group) {
+            this.group = group;
+        }
+    }
+
+    private static class PolicyEntry {
+        private final Policy policy;
+        private final List<PolicyVersion> versions = new ArrayList<PolicyVersion>();
+        private int lastVersion = 1;
+
+        PolicyEntry(Policy policy) {
+            this.policy = policy;
+        }
+    }
+}
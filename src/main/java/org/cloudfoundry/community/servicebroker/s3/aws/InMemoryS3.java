@@ -0,0 +1,452 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketTaggingConfiguration;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.Region;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+import com.google.common.base.Strings;
+
+/**
+ * In-memory stand-in for the bucket and listing operations of
+ * {@link AmazonS3} used by the broker.
+ * <p>
+ * Buckets are not versioned and hold generated objects only, named
+ * {@code part-NNNN/object-NNNNNNNNNN} and spread evenly over a number of
+ * top-level prefixes. A bucket stores its object count and a bit per deleted
+ * object rather than the keys, so buckets of millions of objects fit in a few
+ * hundred kilobytes and list and delete with the paging and delimiter
+ * behaviour of S3.
+ */
+public class InMemoryS3 extends InMemoryAwsClient {
+
+    static final int MAX_KEYS = 1000;
+    static final long OBJECT_SIZE = 1024;
+
+    private final ConcurrentMap<String, InMemoryBucket> buckets = new ConcurrentSkipListMap<String, InMemoryBucket>();
+    private final int objectsPerBucket;
+    private final int prefixesPerBucket;
+
+    /**
+     * @param objectsPerBucket
+     *            number of objects generated in every new bucket
+     * @param prefixesPerBucket
+     *            number of top-level prefixes the generated objects are spread
+     *            over
+     */
+    public InMemoryS3(FaultInjector faults, int objectsPerBucket, int prefixesPerBucket) {
+        super("s3", faults);
+        this.objectsPerBucket = objectsPerBucket;
+        this.prefixesPerBucket = prefixesPerBucket;
+    }
+
+    public AmazonS3 client() {
+        return client(AmazonS3.class);
+    }
+
+    @Override
+    protected AmazonServiceException throttlingException() {
+        return error(new AmazonS3Exception("Please reduce your request rate."), "SlowDown", 503);
+    }
+
+    /**
+     * Replaces the objects of an existing bucket with generated ones.
+     */
+    public void seed(String bucketName, int objectCount, int prefixCount) {
+        bucket(bucketName).seed(objectCount, prefixCount);
+    }
+
+    /**
+     * @return the number of objects not yet deleted from the bucket
+     */
+    public int getObjectCount(String bucketName) {
+        return bucket(bucketName).getObjectCount();
+    }
+
+    public Bucket createBucket(String bucketName) {
+        InMemoryBucket bucket = new InMemoryBucket(bucketName);
+        if (buckets.putIfAbsent(bucketName, bucket) != null) {
+            throw error(new AmazonS3Exception("Your previous request to create the named bucket succeeded and you "
+                    + "already own it."), "BucketAlreadyOwnedByYou", 409);
+        }
+        bucket.seed(objectsPerBucket, prefixesPerBucket);
+        return bucket.toBucket();
+    }
+
+    public Bucket createBucket(String bucketName, Region region) {
+        return createBucket(bucketName);
+    }
+
+    public Bucket createBucket(String bucketName, String region) {
+        return createBucket(bucketName);
+    }
+
+    public boolean doesBucketExist(String bucketName) {
+        return buckets.containsKey(bucketName);
+    }
+
+    public List<Bucket> listBuckets() {
+        List<Bucket> result = new ArrayList<Bucket>(buckets.size());
+        for (InMemoryBucket bucket : buckets.values()) {
+            result.add(bucket.toBucket());
+        }
+        return result;
+    }
+
+    public void deleteBucket(String bucketName) {
+        InMemoryBucket bucket = bucket(bucketName);
+        if (bucket.getObjectCount() > 0) {
+            throw error(new AmazonS3Exception("The bucket you tried to delete is not empty"), "BucketNotEmpty", 409);
+        }
+        buckets.remove(bucketName, bucket);
+    }
+
+    public void setBucketTaggingConfiguration(String bucketName, BucketTaggingConfiguration configuration) {
+        bucket(bucketName).tagging = configuration;
+    }
+
+    public BucketTaggingConfiguration getBucketTaggingConfiguration(String bucketName) {
+        // like the SDK, answer a missing tag set with null
+        return bucket(bucketName).tagging;
+    }
+
+    public void setBucketLifecycleConfiguration(String bucketName, BucketLifecycleConfiguration configuration) {
+        bucket(bucketName).lifecycle = configuration;
+    }
+
+    public BucketLifecycleConfiguration getBucketLifecycleConfiguration(String bucketName) {
+        return bucket(bucketName).lifecycle;
+    }
+
+    public ObjectListing listObjects(String bucketName) {
+        return listObjects(new ListObjectsRequest().withBucketName(bucketName));
+    }
+
+    public ObjectListing listObjects(String bucketName, String prefix) {
+        return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+    }
+
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        InMemoryBucket bucket = bucket(request.getBucketName());
+        Page page = bucket.list(request.getPrefix(), request.getDelimiter(), request.getMarker(),
+                maxKeys(request.getMaxKeys()));
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setDelimiter(request.getDelimiter());
+        listing.setMarker(request.getMarker());
+        listing.setMaxKeys(maxKeys(request.getMaxKeys()));
+        listing.setTruncated(page.truncated);
+        listing.setNextMarker(page.truncated ? page.nextMarker : null);
+        listing.setCommonPrefixes(page.commonPrefixes);
+        for (String key : page.keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setSize(OBJECT_SIZE);
+            summary.setLastModified(bucket.creationDate);
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
+
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        if (!previous.isTruncated()) {
+            ObjectListing empty = new ObjectListing();
+            empty.setBucketName(previous.getBucketName());
+            empty.setPrefix(previous.getPrefix());
+            empty.setDelimiter(previous.getDelimiter());
+            empty.setMarker(previous.getNextMarker());
+            empty.setMaxKeys(previous.getMaxKeys());
+            return empty;
+        }
+        return listObjects(new ListObjectsRequest(previous.getBucketName(), previous.getPrefix(), previous
+                .getNextMarker(), previous.getDelimiter(), previous.getMaxKeys()));
+    }
+
+    public VersionListing listVersions(ListVersionsRequest request) {
+        InMemoryBucket bucket = bucket(request.getBucketName());
+        int maxKeys = maxKeys(request.getMaxResults());
+        Page page = bucket.list(request.getPrefix(), request.getDelimiter(), request.getKeyMarker(), maxKeys);
+        VersionListing listing = new VersionListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setDelimiter(request.getDelimiter());
+        listing.setKeyMarker(request.getKeyMarker());
+        listing.setVersionIdMarker(request.getVersionIdMarker());
+        listing.setMaxKeys(maxKeys);
+        listing.setTruncated(page.truncated);
+        listing.setNextKeyMarker(page.truncated ? page.nextMarker : null);
+        listing.setCommonPrefixes(page.commonPrefixes);
+        for (String key : page.keys) {
+            S3VersionSummary summary = new S3VersionSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            // objects in unversioned buckets have the version id "null"
+            summary.setVersionId("null");
+            summary.setIsLatest(true);
+            summary.setSize(OBJECT_SIZE);
+            summary.setLastModified(bucket.creationDate);
+            listing.getVersionSummaries().add(summary);
+        }
+        return listing;
+    }
+
+    public VersionListing listNextBatchOfVersions(VersionListing previous) {
+        if (!previous.isTruncated()) {
+            VersionListing empty = new VersionListing();
+            empty.setBucketName(previous.getBucketName());
+            empty.setPrefix(previous.getPrefix());
+            empty.setDelimiter(previous.getDelimiter());
+            empty.setKeyMarker(previous.getNextKeyMarker());
+            empty.setMaxKeys(previous.getMaxKeys());
+            return empty;
+        }
+        ListVersionsRequest request = new ListVersionsRequest().withBucketName(previous.getBucketName())
+                .withPrefix(previous.getPrefix()).withDelimiter(previous.getDelimiter())
+                .withKeyMarker(previous.getNextKeyMarker()).withVersionIdMarker(previous.getNextVersionIdMarker())
+                .withMaxResults(previous.getMaxKeys());
+        return listVersions(request);
+    }
+
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        InMemoryBucket bucket = bucket(request.getBucketName());
+        if (request.getKeys().size() > MAX_KEYS) {
+            throw error(new AmazonS3Exception("The XML you provided was not well-formed or did not validate "
+                    + "against our published schema"), "MalformedXML", 400);
+        }
+        bucket.delete(request.getKeys());
+        List<DeletedObject> deleted = new ArrayList<DeletedObject>();
+        if (!request.getQuiet()) {
+            // like S3, report keys that did not exist as deleted
+            for (KeyVersion keyVersion : request.getKeys()) {
+                DeletedObject deletedObject = new DeletedObject();
+                deletedObject.setKey(keyVersion.getKey());
+                deletedObject.setVersionId(keyVersion.getVersion());
+                deleted.add(deletedObject);
+            }
+        }
+        return new DeleteObjectsResult(deleted);
+    }
+
+    private static int maxKeys(Integer requested) {
+        return requested == null || requested <= 0 ? MAX_KEYS : Math.min(requested, MAX_KEYS);
+    }
+
+    private InMemoryBucket bucket(String bucketName) {
+        InMemoryBucket bucket = buckets.get(bucketName);
+        if (bucket == null) {
+            throw error(new AmazonS3Exception("The specified bucket does not exist"), "NoSuchBucket", 404);
+        }
+        return bucket;
+    }
+
+    private static class Page {
+        private final List<String> keys = new ArrayList<String>();
+        private final List<String> commonPrefixes = new ArrayList<String>();
+        private boolean truncated;
+        private String nextMarker;
+
+        int size() {
+            return keys.size() + commonPrefixes.size();
+        }
+    }
+
+    private static class InMemoryBucket {
+
+        private static final String PART = "part-";
+        private static final String OBJECT = "/object-";
+        private static final int PART_DIGITS = 4;
+        private static final int MAX_PARTS = 10000;
+        private static final int OBJECT_DIGITS = 10;
+        private static final int KEY_LENGTH = PART.length() + PART_DIGITS + OBJECT.length() + OBJECT_DIGITS;
+
+        private final String name;
+        private final Date creationDate = new Date();
+        private volatile BucketTaggingConfiguration tagging;
+        private volatile BucketLifecycleConfiguration lifecycle;
+
+        // the objects are ranked in key order; the first (count % parts)
+        // parts hold one object more than the others
+        private int count;
+        private int parts;
+        private int perPart;
+        private int largerParts;
+        private BitSet deleted;
+        private int remaining;
+
+        InMemoryBucket(String name) {
+            this.name = name;
+            seed(0, 1);
+        }
+
+        Bucket toBucket() {
+            Bucket bucket = new Bucket(name);
+            bucket.setCreationDate(creationDate);
+            return bucket;
+        }
+
+        synchronized void seed(int objectCount, int prefixCount) {
+            if (objectCount < 0 || prefixCount < 1 || prefixCount > MAX_PARTS) {
+                throw new IllegalArgumentException("Object count must not be negative and prefix count must be "
+                        + "between 1 and " + MAX_PARTS);
+            }
+            count = objectCount;
+            parts = prefixCount;
+            perPart = objectCount / prefixCount;
+            largerParts = objectCount % prefixCount;
+            deleted = new BitSet();
+            remaining = objectCount;
+        }
+
+        synchronized int getObjectCount() {
+            return remaining;
+        }
+
+        synchronized Page list(String prefix, String delimiter, String marker, int maxKeys) {
+            prefix = Strings.nullToEmpty(prefix);
+            delimiter = Strings.nullToEmpty(delimiter);
+            int rank;
+            if (marker == null || marker.compareTo(prefix) < 0) {
+                rank = firstRankAtLeast(prefix);
+            } else if (!delimiter.isEmpty() && marker.startsWith(prefix) && marker.endsWith(delimiter)
+                    && marker.indexOf(delimiter, prefix.length()) == marker.length() - delimiter.length()) {
+                // the marker is a common prefix returned by the previous page
+                rank = firstRankAtLeast(marker + Character.MAX_VALUE);
+            } else {
+                rank = firstRankAtLeast(marker + Character.MIN_VALUE);
+            }
+            Page page = new Page();
+            for (rank = deleted.nextClearBit(rank); rank < count; rank = deleted.nextClearBit(rank)) {
+                String key = keyAt(rank);
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (page.size() == maxKeys) {
+                    page.truncated = true;
+                    break;
+                }
+                int delimiterIndex = delimiter.isEmpty() ? -1 : key.indexOf(delimiter, prefix.length());
+                if (delimiterIndex >= 0) {
+                    String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                    page.commonPrefixes.add(commonPrefix);
+                    page.nextMarker = commonPrefix;
+                    rank = firstRankAtLeast(commonPrefix + Character.MAX_VALUE);
+                } else {
+                    page.keys.add(key);
+                    page.nextMarker = key;
+                    rank++;
+                }
+            }
+            return page;
+        }
+
+        synchronized void delete(List<KeyVersion> keys) {
+            for (KeyVersion keyVersion : keys) {
+                String version = keyVersion.getVersion();
+                if (version != null && !version.equals("null")) {
+                    // no such version, which S3 reports as deleted
+                    continue;
+                }
+                int rank = rankOf(keyVersion.getKey());
+                if (rank >= 0 && !deleted.get(rank)) {
+                    deleted.set(rank);
+                    remaining--;
+                }
+            }
+        }
+
+        private int firstRankAtLeast(String key) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keyAt(middle).compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private int firstRankOfPart(int part) {
+            return part * perPart + Math.min(part, largerParts);
+        }
+
+        private String keyAt(int rank) {
+            int largerObjects = largerParts * (perPart + 1);
+            int part;
+            int index;
+            if (rank < largerObjects) {
+                part = rank / (perPart + 1);
+                index = rank % (perPart + 1);
+            } else {
+                part = largerParts + (rank - largerObjects) / perPart;
+                index = (rank - largerObjects) % perPart;
+            }
+            StringBuilder key = new StringBuilder(KEY_LENGTH).append(PART);
+            pad(key, part, PART_DIGITS).append(OBJECT);
+            return pad(key, index, OBJECT_DIGITS).toString();
+        }
+
+        private int rankOf(String key) {
+            if (key == null || key.length() != KEY_LENGTH || !key.startsWith(PART)) {
+                return -1;
+            }
+            try {
+                int part = Integer.parseInt(key.substring(PART.length(), PART.length() + PART_DIGITS));
+                int index = Integer.parseInt(key.substring(KEY_LENGTH - OBJECT_DIGITS));
+                if (part < 0 || part >= parts || index < 0 || index >= perPart + (part < largerParts ? 1 : 0)) {
+                    return -1;
+                }
+                int rank = firstRankOfPart(part) + index;
+                return keyAt(rank).equals(key) ? rank : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static StringBuilder pad(StringBuilder builder, int value, int digits) {
+            String number = Integer.toString(value);
+            for (int i = number.length(); i < digits; i++) {
+                builder.append('0');
+            }
+            return builder.append(number);
+        }
+    }
+}
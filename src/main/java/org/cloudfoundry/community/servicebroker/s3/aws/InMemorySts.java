@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import com.amazonaws.services.securitytoken.model.AssumedRoleUser;
+import com.amazonaws.services.securitytoken.model.Credentials;
+
+/**
+ * In-memory stand-in for the AssumeRole operation of
+ * {@link AWSSecurityTokenService}. It checks the session name, duration and
+ * session policy size like STS and returns random credentials that expire
+ * after the requested duration.
+ */
+public class InMemorySts extends InMemoryAwsClient {
+
+    private static final Pattern SESSION_NAME = Pattern.compile("[\\w+=,.@-]{2,64}");
+    private static final int MIN_DURATION_SECONDS = 900;
+    private static final int MAX_DURATION_SECONDS = 43200;
+    private static final int DEFAULT_DURATION_SECONDS = 3600;
+    private static final int MAX_POLICY_LENGTH = 2048;
+    private static final String ID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private static final String SECRET_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private final Random random = new Random();
+    private long assumeRoleCount;
+
+    public InMemorySts(FaultInjector faults) {
+        super("sts", faults);
+    }
+
+    public AWSSecurityTokenService client() {
+        return client(AWSSecurityTokenService.class);
+    }
+
+    @Override
+    protected AmazonServiceException throttlingException() {
+        return error(new AmazonServiceException("Rate exceeded"), "Throttling", 400);
+    }
+
+    public synchronized AssumeRoleResult assumeRole(AssumeRoleRequest request) {
+        if (request.getRoleSessionName() == null || !SESSION_NAME.matcher(request.getRoleSessionName()).matches()) {
+            throw validationError("Invalid RoleSessionName: " + request.getRoleSessionName());
+        }
+        int duration = request.getDurationSeconds() == null ? DEFAULT_DURATION_SECONDS : request.getDurationSeconds();
+        if (duration < MIN_DURATION_SECONDS || duration > MAX_DURATION_SECONDS) {
+            throw validationError("DurationSeconds must be between " + MIN_DURATION_SECONDS + " and "
+                    + MAX_DURATION_SECONDS);
+        }
+        if (request.getPolicy() != null && request.getPolicy().length() > MAX_POLICY_LENGTH) {
+            throw error(new AmazonServiceException("Policy exceeds the maximum size"), "PackedPolicyTooLarge", 400);
+        }
+        assumeRoleCount++;
+        Credentials credentials = new Credentials().withAccessKeyId("ASIA" + random(ID_CHARACTERS, 16))
+                .withSecretAccessKey(random(SECRET_CHARACTERS, 40)).withSessionToken(random(SECRET_CHARACTERS, 356))
+                .withExpiration(new Date(System.currentTimeMillis() + duration * 1000L));
+        String roleName = request.getRoleArn().substring(request.getRoleArn().lastIndexOf('/') + 1);
+        AssumedRoleUser user = new AssumedRoleUser().withAssumedRoleId("AROA" + random(ID_CHARACTERS, 16) + ":"
+                + request.getRoleSessionName()).withArn("arn:aws:sts::" + InMemoryIam.ACCOUNT_ID + ":assumed-role/"
+                + roleName + "/" + request.getRoleSessionName());
+        return new AssumeRoleResult().withCredentials(credentials).withAssumedRoleUser(user);
+    }
+
+    /**
+     * @return the number of credentials issued, for checking how often
+     *         bindings are renewed
+     */
+    public synchronized long getAssumeRoleCount() {
+        return assumeRoleCount;
+    }
+
+    private AmazonServiceException validationError(String message) {
+        return error(new AmazonServiceException(message), "ValidationError", 400);
+    }
+
+    private String random(String characters, int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append(characters.charAt(random.nextInt(characters.length())));
+        }
+        return value.toString();
+    }
+}
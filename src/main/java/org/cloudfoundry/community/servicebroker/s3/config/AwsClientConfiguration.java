@@ -15,7 +15,13 @@
  */
 package org.cloudfoundry.community.servicebroker.s3.config;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
@@ -33,6 +39,16 @@ public class AwsClientConfiguration {
     private String proxyUsername;
     private String proxyPassword;
     private Boolean preemptiveBasicProxyAuth;
+    private Integer awsMaxErrorRetry;
+    private Integer awsMaxConnections;
+    private Integer awsBulkMaxConnections;
+    private Long awsConnectionTtlMillis;
+    private Integer awsConnectionTimeoutMillis;
+    private Integer awsSocketTimeoutMillis;
+    private Integer awsRequestTimeoutMillis;
+    private Boolean awsTcpKeepAlive;
+    private Boolean awsReapIdleConnections;
+    private Long awsConnectionMaxIdleMillis;
 
     public ClientConfiguration toClientConfiguration(){
         ClientConfiguration clientConfiguration = new ClientConfiguration();
@@ -45,9 +61,65 @@ public class AwsClientConfiguration {
         if(preemptiveBasicProxyAuth != null) {
             clientConfiguration.setPreemptiveBasicProxyAuth(preemptiveBasicProxyAuth);
         }
+        // throttling is retried by AwsCallLimiter within its retry budget
+        clientConfiguration.setRetryPolicy(new RetryPolicy(NON_THROTTLING_RETRY_CONDITION,
+                PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY,
+                true));
+        if(awsMaxErrorRetry != null) {
+            clientConfiguration.setMaxErrorRetry(awsMaxErrorRetry);
+        }
+        if(awsMaxConnections != null) {
+            clientConfiguration.setMaxConnections(awsMaxConnections);
+        }
+        if(awsConnectionTtlMillis != null) {
+            clientConfiguration.setConnectionTTL(awsConnectionTtlMillis);
+        }
+        if(awsConnectionTimeoutMillis != null) {
+            clientConfiguration.setConnectionTimeout(awsConnectionTimeoutMillis);
+        }
+        if(awsSocketTimeoutMillis != null) {
+            clientConfiguration.setSocketTimeout(awsSocketTimeoutMillis);
+        }
+        if(awsRequestTimeoutMillis != null) {
+            clientConfiguration.setRequestTimeout(awsRequestTimeoutMillis);
+        }
+        if(awsTcpKeepAlive != null) {
+            clientConfiguration.setUseTcpKeepAlive(awsTcpKeepAlive);
+        }
+        if(awsReapIdleConnections != null) {
+            clientConfiguration.setUseReaper(awsReapIdleConnections);
+        }
+        if(awsConnectionMaxIdleMillis != null) {
+            clientConfiguration.setConnectionMaxIdleMillis(awsConnectionMaxIdleMillis);
+        }
         return clientConfiguration;
     }
 
+    /**
+     * The configuration for the S3 client used to empty buckets, which has its
+     * own connection pool so bulk deletes can't starve other calls.
+     */
+    public ClientConfiguration toBulkClientConfiguration(){
+        ClientConfiguration clientConfiguration = toClientConfiguration();
+        if(awsBulkMaxConnections != null) {
+            clientConfiguration.setMaxConnections(awsBulkMaxConnections);
+        }
+        return clientConfiguration;
+    }
+
+    static final RetryPolicy.RetryCondition NON_THROTTLING_RETRY_CONDITION = new RetryPolicy.RetryCondition() {
+        @Override
+        public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception,
+                int retriesAttempted) {
+            if (exception instanceof AmazonServiceException
+                    && RetryUtils.isThrottlingException((AmazonServiceException) exception)) {
+                return false;
+            }
+            return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception,
+                    retriesAttempted);
+        }
+    };
+
     public String getAwsAccessKey() {
         return awsAccessKey;
     }
@@ -99,4 +171,84 @@ public class AwsClientConfiguration {
     public void setProxyPort(String proxyPort) {
         this.proxyPort = proxyPort;
     }
+
+    public Integer getAwsMaxErrorRetry() {
+        return awsMaxErrorRetry;
+    }
+
+    public void setAwsMaxErrorRetry(Integer awsMaxErrorRetry) {
+        this.awsMaxErrorRetry = awsMaxErrorRetry;
+    }
+
+    public Integer getAwsMaxConnections() {
+        return awsMaxConnections;
+    }
+
+    public void setAwsMaxConnections(Integer awsMaxConnections) {
+        this.awsMaxConnections = awsMaxConnections;
+    }
+
+    public Integer getAwsBulkMaxConnections() {
+        return awsBulkMaxConnections;
+    }
+
+    public void setAwsBulkMaxConnections(Integer awsBulkMaxConnections) {
+        this.awsBulkMaxConnections = awsBulkMaxConnections;
+    }
+
+    public Long getAwsConnectionTtlMillis() {
+        return awsConnectionTtlMillis;
+    }
+
+    public void setAwsConnectionTtlMillis(Long awsConnectionTtlMillis) {
+        this.awsConnectionTtlMillis = awsConnectionTtlMillis;
+    }
+
+    public Integer getAwsConnectionTimeoutMillis() {
+        return awsConnectionTimeoutMillis;
+    }
+
+    public void setAwsConnectionTimeoutMillis(Integer awsConnectionTimeoutMillis) {
+        this.awsConnectionTimeoutMillis = awsConnectionTimeoutMillis;
+    }
+
+    public Integer getAwsSocketTimeoutMillis() {
+        return awsSocketTimeoutMillis;
+    }
+
+    public void setAwsSocketTimeoutMillis(Integer awsSocketTimeoutMillis) {
+        this.awsSocketTimeoutMillis = awsSocketTimeoutMillis;
+    }
+
+    public Integer getAwsRequestTimeoutMillis() {
+        return awsRequestTimeoutMillis;
+    }
+
+    public void setAwsRequestTimeoutMillis(Integer awsRequestTimeoutMillis) {
+        this.awsRequestTimeoutMillis = awsRequestTimeoutMillis;
+    }
+
+    public Boolean getAwsTcpKeepAlive() {
+        return awsTcpKeepAlive;
+    }
+
+    public void setAwsTcpKeepAlive(Boolean awsTcpKeepAlive) {
+        this.awsTcpKeepAlive = awsTcpKeepAlive;
+    }
+
+    public Boolean getAwsReapIdleConnections() {
+        return awsReapIdleConnections;
+    }
+
+    public void setAwsReapIdleConnections(Boolean awsReapIdleConnections) {
+        this.awsReapIdleConnections = awsReapIdleConnections;
+    }
+
+    public Long getAwsConnectionMaxIdleMillis() {
+        return awsConnectionMaxIdleMillis;
+    }
+
+    public void setAwsConnectionMaxIdleMillis(Long awsConnectionMaxIdleMillis) {
+        this.awsConnectionMaxIdleMillis = awsConnectionMaxIdleMillis;
+    }
 }
@@ -24,22 +24,33 @@ import org.cloudfoundry.community.servicebroker.config.BrokerApiVersionConfig;
 import org.cloudfoundry.community.servicebroker.model.Catalog;
 import org.cloudfoundry.community.servicebroker.model.Plan;
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.s3.aws.AwsCallLimiter;
+import org.cloudfoundry.community.servicebroker.s3.metrics.InstrumentedPlan;
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
 import org.cloudfoundry.community.servicebroker.s3.plan.basic.BasicPlan;
 import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.FilterType;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.ClassPathResource;
 
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 
@@ -50,29 +61,99 @@ import com.google.common.io.Resources;
 @ComponentScan(basePackages = "org.cloudfoundry.community.servicebroker", excludeFilters = { @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, value = BrokerApiVersionConfig.class) })
 public class BrokerConfiguration {
 
+    // IAM and STS are global services and S3 creates buckets in any region from the us-east-1 endpoint
+    private static final Regions CLIENT_REGION = Regions.US_EAST_1;
+
     @Autowired
     private AwsClientConfiguration awsClientConfiguration;
 
+    @Autowired
+    private AwsCallLimiter awsCallLimiter;
+
+    @Autowired
+    private OperationMetrics operationMetrics;
+
     @Bean
+    @Profile("!" + InMemoryAwsConfiguration.PROFILE)
     public AWSCredentials awsCredentials() {
         return new BasicAWSCredentials(awsClientConfiguration.getAwsAccessKey(), awsClientConfiguration.getAwsSecretKey());
     }
 
     @Bean
+    @Profile("!" + InMemoryAwsConfiguration.PROFILE)
     public AmazonIdentityManagement amazonIdentityManagement() {
-        return new AmazonIdentityManagementClient(awsCredentials(), awsClientConfiguration.toClientConfiguration());
+        AmazonIdentityManagement client = AmazonIdentityManagementClientBuilder.standard()
+                .withCredentials(credentialsProvider()).withRegion(CLIENT_REGION)
+                .withClientConfiguration(awsClientConfiguration.toClientConfiguration()).build();
+        return awsCallLimiter.limit(AmazonIdentityManagement.class,
+                operationMetrics.instrument(AmazonIdentityManagement.class, client, "iam"), "iam");
     }
 
     @Bean
+    @Profile("!" + InMemoryAwsConfiguration.PROFILE)
+    @Primary
     public AmazonS3 amazonS3() {
-        return new AmazonS3Client(awsCredentials(), awsClientConfiguration.toClientConfiguration());
+        AmazonS3 client = AmazonS3ClientBuilder.standard().withCredentials(credentialsProvider())
+                .withRegion(CLIENT_REGION).withForceGlobalBucketAccessEnabled(true)
+                .withClientConfiguration(awsClientConfiguration.toClientConfiguration()).build();
+        return awsCallLimiter.limit(AmazonS3.class, operationMetrics.instrument(AmazonS3.class, client, "s3"), "s3");
+    }
+
+    @Bean
+    @Profile("!" + InMemoryAwsConfiguration.PROFILE)
+    @Qualifier("bulk")
+    public AmazonS3 bulkAmazonS3() {
+        AmazonS3 client = AmazonS3ClientBuilder.standard().withCredentials(credentialsProvider())
+                .withRegion(CLIENT_REGION).withForceGlobalBucketAccessEnabled(true)
+                .withClientConfiguration(awsClientConfiguration.toBulkClientConfiguration()).build();
+        return awsCallLimiter.limit(AmazonS3.class, operationMetrics.instrument(AmazonS3.class, client, "s3bulk"),
+                "s3bulk");
+    }
+
+    @Bean
+    @Profile("!" + InMemoryAwsConfiguration.PROFILE)
+    public AWSSecurityTokenService awsSecurityTokenService() {
+        AWSSecurityTokenService client = AWSSecurityTokenServiceClientBuilder.standard()
+                .withCredentials(credentialsProvider()).withRegion(CLIENT_REGION)
+                .withClientConfiguration(awsClientConfiguration.toClientConfiguration()).build();
+        return awsCallLimiter.limit(AWSSecurityTokenService.class,
+                operationMetrics.instrument(AWSSecurityTokenService.class, client, "sts"), "sts");
+    }
+
+    private AWSCredentialsProvider credentialsProvider() {
+        return new AWSStaticCredentialsProvider(awsCredentials());
     }
 
     @Bean
-    public BucketGroupPolicy bucketGroupPolicy() throws IOException {
-        URL url = new ClassPathResource("default-bucket-policy.json").getURL();
-        String policyDocument = Resources.toString(url, Charsets.UTF_8);
-        return new BucketGroupPolicy(policyDocument);
+    @Primary
+    public org.cloudfoundry.community.servicebroker.s3.plan.Plan plan(BasicPlan basicPlan) {
+        return new InstrumentedPlan(basicPlan, operationMetrics);
+    }
+
+    /**
+     * Plans get their policy template from {@code bucket-policy-<plan id>.json}
+     * on the classpath if it exists and from
+     * {@code default-bucket-policy.json} otherwise. The shared access model
+     * uses {@code shared-bucket-policy.json}.
+     */
+    @Bean
+    public BucketGroupPolicy bucketGroupPolicy(@Value("${AWS_ACCOUNT_ID:}") String accountId,
+            @Value("${AWS_REGION:US}") String region) throws IOException {
+        String policyDocument = readResource("default-bucket-policy.json");
+        Map<String, String> planTemplates = new HashMap<String, String>();
+        for (Plan plan : getPlans()) {
+            ClassPathResource resource = new ClassPathResource("bucket-policy-" + plan.getId() + ".json");
+            if (resource.exists()) {
+                planTemplates.put(plan.getId(), readResource(resource.getPath()));
+            }
+        }
+        return new BucketGroupPolicy(policyDocument, planTemplates, readResource("shared-bucket-policy.json"),
+                accountId, region);
+    }
+
+    private String readResource(String path) throws IOException {
+        URL url = new ClassPathResource(path).getURL();
+        return Resources.toString(url, Charsets.UTF_8);
     }
 
     @Bean
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.config;
+
+import org.cloudfoundry.community.servicebroker.s3.aws.AwsCallLimiter;
+import org.cloudfoundry.community.servicebroker.s3.aws.FaultInjector;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryIam;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryS3;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemorySts;
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+
+/**
+ * Replaces the AWS clients with the in-memory stand-ins when the
+ * {@value #PROFILE} profile is active, so the broker runs without AWS
+ * credentials. The stand-ins sit behind the same rate limiting and metrics as
+ * the real clients.
+ */
+@Configuration
+@Profile(InMemoryAwsConfiguration.PROFILE)
+public class InMemoryAwsConfiguration {
+
+    public static final String PROFILE = "in-memory-aws";
+
+    @Autowired
+    private AwsCallLimiter awsCallLimiter;
+
+    @Autowired
+    private OperationMetrics operationMetrics;
+
+    @Bean
+    public FaultInjector faultInjector(@Value("${IN_MEMORY_AWS_LATENCY:}") String latencies,
+            @Value("${IN_MEMORY_AWS_THROTTLE_RATE:}") String throttleRates,
+            @Value("${IN_MEMORY_AWS_RANDOM_SEED:0}") long seed) {
+        return new FaultInjector(latencies, throttleRates, seed);
+    }
+
+    @Bean
+    public InMemoryS3 inMemoryS3(FaultInjector faultInjector,
+            @Value("${IN_MEMORY_AWS_OBJECTS_PER_BUCKET:0}") int objectsPerBucket,
+            @Value("${IN_MEMORY_AWS_PREFIXES_PER_BUCKET:16}") int prefixesPerBucket) {
+        return new InMemoryS3(faultInjector, objectsPerBucket, prefixesPerBucket);
+    }
+
+    @Bean
+    public InMemoryIam inMemoryIam(FaultInjector faultInjector) {
+        return new InMemoryIam(faultInjector);
+    }
+
+    @Bean
+    public InMemorySts inMemorySts(FaultInjector faultInjector) {
+        return new InMemorySts(faultInjector);
+    }
+
+    @Bean
+    public AWSSecurityTokenService awsSecurityTokenService(InMemorySts inMemorySts) {
+        return awsCallLimiter.limit(AWSSecurityTokenService.class,
+                operationMetrics.instrument(AWSSecurityTokenService.class, inMemorySts.client(), "sts"), "sts");
+    }
+
+    @Bean
+    public AmazonIdentityManagement amazonIdentityManagement(InMemoryIam inMemoryIam) {
+        return awsCallLimiter.limit(AmazonIdentityManagement.class,
+                operationMetrics.instrument(AmazonIdentityManagement.class, inMemoryIam.client(), "iam"), "iam");
+    }
+
+    @Bean
+    @Primary
+    public AmazonS3 amazonS3(InMemoryS3 inMemoryS3) {
+        return awsCallLimiter.limit(AmazonS3.class, operationMetrics.instrument(AmazonS3.class, inMemoryS3.client(),
+                "s3"), "s3");
+    }
+
+    @Bean
+    @Qualifier("bulk")
+    public AmazonS3 bulkAmazonS3(InMemoryS3 inMemoryS3) {
+        return awsCallLimiter.limit(AmazonS3.class, operationMetrics.instrument(AmazonS3.class, inMemoryS3.client(),
+                "s3bulk"), "s3bulk");
+    }
+}
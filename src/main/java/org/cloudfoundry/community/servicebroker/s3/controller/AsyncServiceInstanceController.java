@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.controller;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceExistsException;
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.operation.LastOperation;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationInProgressException;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationState;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationType;
+import org.cloudfoundry.community.servicebroker.s3.service.S3ServiceInstanceService;
+import org.cloudfoundry.community.servicebroker.service.CatalogService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Handles the asynchronous variants of the service instance endpoints. Requests
+ * that carry {@code accepts_incomplete=true} are mapped here in preference to
+ * the synchronous endpoints of the broker library, and the Cloud Controller
+ * then polls {@code last_operation} until the operation completes.
+ */
+@RestController
+public class AsyncServiceInstanceController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncServiceInstanceController.class);
+
+    private static final String BASE_PATH = "/v2/service_instances/{instanceId}";
+
+    private final S3ServiceInstanceService service;
+    private final CatalogService catalogService;
+
+    @Autowired
+    public AsyncServiceInstanceController(S3ServiceInstanceService service, CatalogService catalogService) {
+        this.service = service;
+        this.catalogService = catalogService;
+    }
+
+    @RequestMapping(value = BASE_PATH, method = RequestMethod.PUT, params = "accepts_incomplete=true")
+    public ResponseEntity<Map<String, Object>> createServiceInstance(@PathVariable("instanceId") String instanceId,
+            @RequestBody CreateServiceInstanceRequest request) throws ServiceBrokerException {
+        logger.debug("PUT: {}?accepts_incomplete=true, serviceId: {}, planId: {}", instanceId,
+                request.getServiceDefinitionId(), request.getPlanId());
+        ServiceDefinition serviceDefinition = catalogService.getServiceDefinition(request.getServiceDefinitionId());
+        if (serviceDefinition == null) {
+            Map<String, Object> body = Collections.<String, Object> singletonMap("description",
+                    "Service definition does not exist: id=" + request.getServiceDefinitionId());
+            return new ResponseEntity<Map<String, Object>>(body, HttpStatus.UNPROCESSABLE_ENTITY);
+        }
+        try {
+            service.createServiceInstanceAsync(serviceDefinition, instanceId, request.getPlanId(),
+                    request.getOrganizationGuid(), request.getSpaceGuid());
+        } catch (ServiceInstanceExistsException e) {
+            return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.CONFLICT);
+        } catch (OperationInProgressException e) {
+            return inProgress(e, OperationType.PROVISION);
+        }
+        return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = BASE_PATH, method = RequestMethod.DELETE, params = "accepts_incomplete=true")
+    public ResponseEntity<Map<String, Object>> deleteServiceInstance(@PathVariable("instanceId") String instanceId,
+            @RequestParam("service_id") String serviceId, @RequestParam("plan_id") String planId)
+            throws ServiceBrokerException {
+        logger.debug("DELETE: {}?accepts_incomplete=true, serviceId: {}, planId: {}", instanceId, serviceId, planId);
+        ServiceInstance instance;
+        try {
+            instance = service.deleteServiceInstanceAsync(instanceId, serviceId, planId);
+        } catch (OperationInProgressException e) {
+            return inProgress(e, OperationType.DEPROVISION);
+        }
+        if (instance == null) {
+            return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.GONE);
+        }
+        return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.ACCEPTED);
+    }
+
+    @RequestMapping(value = BASE_PATH + "/last_operation", method = RequestMethod.GET)
+    public ResponseEntity<?> getLastOperation(@PathVariable("instanceId") String instanceId) {
+        LastOperation operation = service.getLastOperation(instanceId);
+        if (operation == null) {
+            if (service.getServiceInstance(instanceId) != null) {
+                operation = new LastOperation(null, OperationState.FAILED,
+                        "No operation is known for this service instance, the broker may have been restarted");
+            } else {
+                // a restart during a deprovision leaves the bucket behind, so the deprovision is picked up again
+                operation = service.resumeDeprovision(instanceId);
+                if (operation == null) {
+                    return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.GONE);
+                }
+            }
+        }
+        if (operation.getType() == OperationType.DEPROVISION
+                && operation.getState() == OperationState.SUCCEEDED) {
+            return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.GONE);
+        }
+        return new ResponseEntity<LastOperation>(operation, HttpStatus.OK);
+    }
+
+    @ExceptionHandler(ServiceBrokerException.class)
+    public ResponseEntity<Map<String, Object>> handleException(ServiceBrokerException e) {
+        Map<String, Object> body = Collections.<String, Object> singletonMap("description", e.getMessage());
+        return new ResponseEntity<Map<String, Object>>(body, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    /**
+     * A repeated request for the operation in progress is accepted again, any
+     * other request conflicts with it.
+     */
+    private ResponseEntity<Map<String, Object>> inProgress(OperationInProgressException e, OperationType requested) {
+        if (e.getOperation().getType() == requested) {
+            return new ResponseEntity<Map<String, Object>>(emptyBody(), HttpStatus.ACCEPTED);
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("error", "ConcurrencyError");
+        body.put("description", e.getMessage());
+        return new ResponseEntity<Map<String, Object>>(body, HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+
+    private Map<String, Object> emptyBody() {
+        return Collections.emptyMap();
+    }
+}
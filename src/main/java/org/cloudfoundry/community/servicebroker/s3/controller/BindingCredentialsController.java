@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cloudfoundry.community.servicebroker.s3.plan.basic.StsBindings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Serves the current credentials of an STS binding to its app. The app authenticates
+ * with the binding's {@code credentials_token} instead of the broker
+ * credentials. The response has the format of the AWS SDK's container
+ * credentials provider, so setting {@code AWS_CONTAINER_CREDENTIALS_FULL_URI}
+ * and {@code AWS_CONTAINER_AUTHORIZATION_TOKEN} from the binding lets the SDK
+ * renew credentials by itself.
+ */
+@RestController
+public class BindingCredentialsController {
+
+    private final StsBindings stsBindings;
+
+    @Autowired
+    public BindingCredentialsController(StsBindings stsBindings) {
+        this.stsBindings = stsBindings;
+    }
+
+    @RequestMapping(value = "/credentials/{instanceId}/{bindingId}", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getCredentials(@PathVariable("instanceId") String instanceId,
+            @PathVariable("bindingId") String bindingId,
+            @RequestHeader(value = "Authorization", required = false) String token) {
+        if (!stsBindings.isEnabled()) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+        }
+        StsBindings.Binding binding = stsBindings.authenticate(instanceId, bindingId, token);
+        if (binding == null) {
+            // unknown instances, revoked and wrong tokens look the same
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+        }
+        Credentials credentials = binding.getCredentials();
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("AccessKeyId", credentials.getAccessKeyId());
+        body.put("SecretAccessKey", credentials.getSecretAccessKey());
+        body.put("Token", credentials.getSessionToken());
+        body.put("Expiration", DateUtils.formatISO8601Date(credentials.getExpiration()));
+        return new ResponseEntity<Map<String, Object>>(body, HttpStatus.OK);
+    }
+}
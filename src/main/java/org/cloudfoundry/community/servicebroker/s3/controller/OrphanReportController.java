@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.controller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.community.servicebroker.s3.plan.basic.OrphanReaper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Lists the orphaned buckets, groups and users the {@link OrphanReaper} would
+ * delete, without deleting anything. Answers 503 until the binding index has
+ * been loaded.
+ */
+@RestController
+public class OrphanReportController {
+
+    private final OrphanReaper reaper;
+
+    @Autowired
+    public OrphanReportController(OrphanReaper reaper) {
+        this.reaper = reaper;
+    }
+
+    @RequestMapping(value = "/orphans", method = RequestMethod.GET)
+    public ResponseEntity<List<Map<String, Object>>> getOrphans() {
+        List<OrphanReaper.Orphan> orphans;
+        try {
+            orphans = reaper.report();
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<List<Map<String, Object>>>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        List<Map<String, Object>> body = new ArrayList<Map<String, Object>>();
+        for (OrphanReaper.Orphan orphan : orphans) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("type", orphan.getKind().name().toLowerCase());
+            entry.put("name", orphan.getName());
+            entry.put("reason", orphan.getReason());
+            entry.put("orphaned_since", DateUtils.formatISO8601Date(orphan.getOrphanedSince()));
+            entry.put("past_grace_period", orphan.isPastGracePeriod());
+            body.add(entry);
+        }
+        return new ResponseEntity<List<Map<String, Object>>>(body, HttpStatus.OK);
+    }
+}
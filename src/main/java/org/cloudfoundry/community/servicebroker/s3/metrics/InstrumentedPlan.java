@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.metrics;
+
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
+import org.cloudfoundry.community.servicebroker.s3.plan.Plan;
+
+/**
+ * Records the latency and failures of the broker operations of a plan in
+ * {@link OperationMetrics}.
+ */
+public class InstrumentedPlan implements Plan {
+
+    private static final String CATEGORY = "broker";
+
+    private final Plan plan;
+    private final OperationMetrics metrics;
+
+    public InstrumentedPlan(Plan plan, OperationMetrics metrics) {
+        this.plan = plan;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public ServiceInstance createServiceInstance(ServiceDefinition service, String serviceInstanceId, String planId,
+            String organizationGuid, String spaceGuid) {
+        long start = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            return plan.createServiceInstance(service, serviceInstanceId, planId, organizationGuid, spaceGuid);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            metrics.record(CATEGORY, "provision", System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public void createServiceInstanceAsync(ServiceDefinition service, String serviceInstanceId, String planId,
+            String organizationGuid, String spaceGuid) {
+        // the background work is recorded by AsyncOperations
+        plan.createServiceInstanceAsync(service, serviceInstanceId, planId, organizationGuid, spaceGuid);
+    }
+
+    @Override
+    public ServiceInstance deleteServiceInstance(String id) {
+        long start = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            return plan.deleteServiceInstance(id);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            metrics.record(CATEGORY, "deprovision", System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public ServiceInstance deleteServiceInstanceAsync(String id) {
+        return plan.deleteServiceInstanceAsync(id);
+    }
+
+    @Override
+    public ServiceInstance resumeDeprovision(String id) {
+        return plan.resumeDeprovision(id);
+    }
+
+    @Override
+    public ServiceInstanceBinding createServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
+            String serviceId, String planId, String appGuid) {
+        long start = System.nanoTime();
+        RuntimeException error = null;
+        try {
+            return plan.createServiceInstanceBinding(bindingId, serviceInstance, serviceId, planId, appGuid);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            metrics.record(CATEGORY, "bind", System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public ServiceInstanceBinding deleteServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
+            String serviceId, String planId) throws ServiceBrokerException {
+        long start = System.nanoTime();
+        Exception error = null;
+        try {
+            return plan.deleteServiceInstanceBinding(bindingId, serviceInstance, serviceId, planId);
+        } catch (ServiceBrokerException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            metrics.record(CATEGORY, "unbind", System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public ServiceInstanceBinding getServiceInstanceBinding(String bindingId) {
+        return plan.getServiceInstanceBinding(bindingId);
+    }
+
+    @Override
+    public List<ServiceInstance> getAllServiceInstances() {
+        return plan.getAllServiceInstances();
+    }
+
+    @Override
+    public ServiceInstance getServiceInstance(String id) {
+        return plan.getServiceInstance(id);
+    }
+}
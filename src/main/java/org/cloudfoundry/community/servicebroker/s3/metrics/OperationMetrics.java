@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+
+/**
+ * Latency histograms and call, error and throttling counts per AWS operation
+ * and per broker operation.
+ * <p>
+ * AWS calls are recorded under the client ("s3", "s3bulk" for the client that
+ * empties buckets, or "iam") and the client method name; broker operations
+ * under "broker" and the operation name, e.g. "provision" or "bind". Summaries are published on {@code /metrics} and the
+ * full histograms on {@code /prometheus}.
+ */
+@Component
+public class OperationMetrics implements PublicMetrics {
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentSkipListMap<String, Stats>();
+
+    static class Stats {
+        private final String category;
+        private final String operation;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+
+        Stats(String category, String operation) {
+            this.category = category;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Records one call.
+     * 
+     * @param error
+     *            the exception the call failed with, or null
+     */
+    public void record(String category, String operation, long nanos, Throwable error) {
+        Stats entry = stats(category, operation);
+        entry.latency.record(nanos);
+        if (error != null) {
+            entry.errors.incrementAndGet();
+            if (error instanceof AmazonServiceException
+                    && RetryUtils.isThrottlingException((AmazonServiceException) error)) {
+                entry.throttled.incrementAndGet();
+            }
+        }
+    }
+
+    private Stats stats(String category, String operation) {
+        String key = category + "." + operation;
+        Stats entry = stats.get(key);
+        if (entry == null) {
+            Stats created = new Stats(category, operation);
+            entry = stats.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a proxy that records every call of the client under the given
+     * service name.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T instrument(Class<T> clientInterface, final T client, final String service) {
+        return (T) Proxy.newProxyInstance(clientInterface.getClassLoader(), new Class<?>[] { clientInterface },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(client, args);
+                        }
+                        long start = System.nanoTime();
+                        Throwable error = null;
+                        try {
+                            return method.invoke(client, args);
+                        } catch (InvocationTargetException e) {
+                            error = e.getCause();
+                            throw error;
+                        } finally {
+                            record(service, method.getName(), System.nanoTime() - start, error);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<Metric<?>>();
+        for (Stats entry : stats.values()) {
+            String prefix = entry.category + "." + entry.operation + ".";
+            metrics.add(new Metric<Long>(prefix + "calls", entry.latency.getCount()));
+            metrics.add(new Metric<Long>(prefix + "errors", entry.errors.get()));
+            metrics.add(new Metric<Long>(prefix + "throttled", entry.throttled.get()));
+            metrics.add(new Metric<Double>(prefix + "latency.mean.millis", entry.latency.getMeanMillis()));
+            metrics.add(new Metric<Double>(prefix + "latency.p50.millis", entry.latency.getPercentileMillis(0.50)));
+            metrics.add(new Metric<Double>(prefix + "latency.p95.millis", entry.latency.getPercentileMillis(0.95)));
+            metrics.add(new Metric<Double>(prefix + "latency.p99.millis", entry.latency.getPercentileMillis(0.99)));
+        }
+        return metrics;
+    }
+
+    /**
+     * Appends the histograms and counters in the Prometheus text format.
+     */
+    public void writePrometheus(StringBuilder out) {
+        writeHistograms(out, "s3_broker_aws_call", true);
+        writeHistograms(out, "s3_broker_operation", false);
+    }
+
+    private void writeHistograms(StringBuilder out, String name, boolean aws) {
+        out.append("# TYPE ").append(name).append("_duration_seconds histogram\n");
+        for (Stats entry : stats.values()) {
+            if (aws == "broker".equals(entry.category)) {
+                continue;
+            }
+            String labels = labels(entry, aws);
+            long[] cumulative = entry.latency.getCumulativeCounts();
+            for (int i = 0; i < cumulative.length; i++) {
+                String le = i < LatencyHistogram.BOUNDS.length ? String.valueOf(LatencyHistogram.BOUNDS[i]) : "+Inf";
+                out.append(name).append("_duration_seconds_bucket{").append(labels).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative[i]).append('\n');
+            }
+            out.append(name).append("_duration_seconds_sum{").append(labels).append("} ")
+                    .append(String.format(Locale.ROOT, "%.6f", entry.latency.getSumSeconds())).append('\n');
+            out.append(name).append("_duration_seconds_count{").append(labels).append("} ")
+                    .append(entry.latency.getCount()).append('\n');
+        }
+        writeCounters(out, name + "_errors_total", aws, false);
+        if (aws) {
+            writeCounters(out, name + "_throttled_total", aws, true);
+        }
+    }
+
+    private void writeCounters(StringBuilder out, String name, boolean aws, boolean throttled) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Stats entry : stats.values()) {
+            if (aws == "broker".equals(entry.category)) {
+                continue;
+            }
+            long value = throttled ? entry.throttled.get() : entry.errors.get();
+            out.append(name).append('{').append(labels(entry, aws)).append("} ").append(value).append('\n');
+        }
+    }
+
+    private String labels(Stats entry, boolean aws) {
+        String operation = "operation=\"" + entry.operation + "\"";
+        return aws ? "service=\"" + entry.category + "\"," + operation : operation;
+    }
+}
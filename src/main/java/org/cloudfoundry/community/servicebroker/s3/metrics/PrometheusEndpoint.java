@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.metrics;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.Endpoint;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoint;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Publishes the broker's metrics in the Prometheus text format at
+ * {@code /prometheus}. Operation latencies are exposed as histograms; every
+ * other actuator metric is exposed as a gauge with its name converted to a
+ * valid Prometheus metric name. When several metrics convert to the same name
+ * only the first one is exposed, since Prometheus rejects a scrape that repeats
+ * a metric.
+ */
+@Component
+public class PrometheusEndpoint implements MvcEndpoint {
+
+    private final OperationMetrics operationMetrics;
+    private final Collection<PublicMetrics> publicMetrics;
+
+    @Autowired
+    public PrometheusEndpoint(OperationMetrics operationMetrics, Collection<PublicMetrics> publicMetrics) {
+        this.operationMetrics = operationMetrics;
+        this.publicMetrics = publicMetrics;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = "text/plain; version=0.0.4; charset=utf-8")
+    @ResponseBody
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        operationMetrics.writePrometheus(out);
+        Set<String> written = new HashSet<String>();
+        for (PublicMetrics source : publicMetrics) {
+            if (source == operationMetrics) {
+                continue;
+            }
+            for (Metric<?> metric : source.metrics()) {
+                String name = metric.getName().replaceAll("[^a-zA-Z0-9_:]", "_");
+                if (!written.add(name)) {
+                    continue;
+                }
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ')
+                        .append(String.format(Locale.ROOT, "%s", metric.getValue().doubleValue())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String getPath() {
+        return "/prometheus";
+    }
+
+    @Override
+    public boolean isSensitive() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends Endpoint> getEndpointType() {
+        return null;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.operation;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs asynchronous service instance operations on a dedicated executor and
+ * keeps the last operation of each instance for last_operation polling.
+ * <p>
+ * State is held in memory only. Completed operations are kept for
+ * {@code ASYNC_OPERATION_RETENTION_MINUTES} so the Cloud Controller can observe
+ * the final state. The duration of each operation, from submission to
+ * completion, is recorded in {@link OperationMetrics}.
+ */
+@Component
+public class AsyncOperations {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncOperations.class);
+
+    private final ConcurrentMap<String, LastOperation> operations = new ConcurrentHashMap<String, LastOperation>();
+    private final ScheduledExecutorService executor;
+    private final long retention;
+    private final TimeUnit retentionUnit;
+    private final OperationMetrics metrics;
+
+    @Autowired
+    public AsyncOperations(OperationMetrics metrics, @Value("${ASYNC_OPERATION_THREADS:4}") int threads,
+            @Value("${ASYNC_OPERATION_RETENTION_MINUTES:60}") long retentionMinutes) {
+        this(metrics, threads, retentionMinutes, TimeUnit.MINUTES);
+    }
+
+    AsyncOperations(OperationMetrics metrics, int threads, long retention, TimeUnit retentionUnit) {
+        this.metrics = metrics;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactoryBuilder()
+                .setNameFormat("async-operation-%d").setDaemon(true).build());
+        this.retention = retention;
+        this.retentionUnit = retentionUnit;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reserves the instance for an operation and runs the step in the
+     * background until it completes or fails.
+     * 
+     * @param pollInterval
+     *            delay before running the step again when it reports that the
+     *            operation is not yet complete
+     * @throws OperationInProgressException
+     *             if another operation on the instance is in progress
+     */
+    public void submit(String instanceId, OperationType type, String description, OperationStep step,
+            long pollInterval, TimeUnit unit) {
+        reserve(instanceId, type, description);
+        start(instanceId, type, step, pollInterval, unit);
+    }
+
+    /**
+     * Atomically records an in-progress operation for the instance. The
+     * operation is then either started with
+     * {@link #start(String, OperationType, OperationStep, long, TimeUnit)} or
+     * released with {@link #cancel(String)}.
+     * 
+     * @throws OperationInProgressException
+     *             if another operation on the instance is in progress
+     */
+    public void reserve(String instanceId, OperationType type, String description) {
+        LastOperation reserved = new LastOperation(type, OperationState.IN_PROGRESS, description);
+        while (true) {
+            LastOperation current = operations.get(instanceId);
+            if (current == null) {
+                if (operations.putIfAbsent(instanceId, reserved) == null) {
+                    return;
+                }
+            } else if (!current.isComplete()) {
+                throw new OperationInProgressException(instanceId, current);
+            } else if (operations.replace(instanceId, current, reserved)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the step of an operation reserved with
+     * {@link #reserve(String, OperationType, String)} in the background.
+     */
+    public void start(String instanceId, OperationType type, OperationStep step, long pollInterval, TimeUnit unit) {
+        executor.execute(new Runner(instanceId, type, step, pollInterval, unit));
+    }
+
+    /**
+     * Releases a reserved operation that could not be started.
+     */
+    public void cancel(String instanceId) {
+        LastOperation current = operations.get(instanceId);
+        if (current != null && !current.isComplete()) {
+            operations.remove(instanceId, current);
+        }
+    }
+
+    /**
+     * Updates the description of an in-progress operation.
+     */
+    public void describe(String instanceId, String description) {
+        LastOperation current = operations.get(instanceId);
+        if (current != null && !current.isComplete()) {
+            operations.replace(instanceId, current,
+                    new LastOperation(current.getType(), current.getState(), description));
+        }
+    }
+
+    public LastOperation getLastOperation(String instanceId) {
+        return operations.get(instanceId);
+    }
+
+    public boolean isInProgress(String instanceId) {
+        LastOperation operation = operations.get(instanceId);
+        return operation != null && !operation.isComplete();
+    }
+
+    private void complete(final String instanceId, OperationType type, OperationState state, String description) {
+        final LastOperation completed = new LastOperation(type, state, description);
+        operations.put(instanceId, completed);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                operations.remove(instanceId, completed);
+            }
+        }, retention, retentionUnit);
+    }
+
+    private class Runner implements Runnable {
+        private final String instanceId;
+        private final OperationType type;
+        private final OperationStep step;
+        private final long pollInterval;
+        private final TimeUnit unit;
+        private final long startNanos = System.nanoTime();
+
+        Runner(String instanceId, OperationType type, OperationStep step, long pollInterval, TimeUnit unit) {
+            this.instanceId = instanceId;
+            this.type = type;
+            this.step = step;
+            this.pollInterval = pollInterval;
+            this.unit = unit;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (step.run()) {
+                    logger.info("{} of service instance '{}' succeeded", type, instanceId);
+                    recordDuration(null);
+                    complete(instanceId, type, OperationState.SUCCEEDED, null);
+                } else {
+                    executor.schedule(this, pollInterval, unit);
+                }
+            } catch (Exception e) {
+                logger.error(type + " of service instance '" + instanceId + "' failed", e);
+                recordDuration(e);
+                complete(instanceId, type, OperationState.FAILED, e.getMessage());
+            }
+        }
+
+        private void recordDuration(Exception error) {
+            metrics.record("broker", type.name().toLowerCase(Locale.ROOT) + "_async", System.nanoTime() - startNanos,
+                    error);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.operation;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The most recent asynchronous operation on a service instance, serialized as
+ * the body of a last_operation response.
+ */
+public class LastOperation {
+
+    private final OperationType type;
+    private final OperationState state;
+    private final String description;
+
+    public LastOperation(OperationType type, OperationState state, String description) {
+        this.type = type;
+        this.state = state;
+        this.description = description;
+    }
+
+    @JsonIgnore
+    public OperationType getType() {
+        return type;
+    }
+
+    @JsonProperty("state")
+    public OperationState getState() {
+        return state;
+    }
+
+    @JsonProperty("description")
+    public String getDescription() {
+        return description;
+    }
+
+    @JsonIgnore
+    public boolean isComplete() {
+        return state != OperationState.IN_PROGRESS;
+    }
+}
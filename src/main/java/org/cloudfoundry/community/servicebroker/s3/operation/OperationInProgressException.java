@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.operation;
+
+/**
+ * Thrown when an operation is requested on a service instance while another
+ * asynchronous operation on it is still in progress.
+ */
+public class OperationInProgressException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LastOperation operation;
+
+    public OperationInProgressException(String instanceId, LastOperation operation) {
+        super("A " + operation.getType() + " of service instance '" + instanceId + "' is in progress");
+        this.operation = operation;
+    }
+
+    /**
+     * The operation that is in progress.
+     */
+    public LastOperation getOperation() {
+        return operation;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.operation;
+
+/**
+ * A unit of work run in the background for an asynchronous operation.
+ */
+public interface OperationStep {
+
+    /**
+     * @return true if the operation is complete, false if the step should run
+     *         again after the operation's poll interval
+     * @throws Exception
+     *             to fail the operation
+     */
+    boolean run() throws Exception;
+}
@@ -28,14 +28,29 @@ public interface Plan {
     ServiceInstance createServiceInstance(ServiceDefinition service, String serviceInstanceId, String planId,
                                           String organizationGuid, String spaceGuid);
 
+    // Creates the instance's resources in the background, reporting progress through AsyncOperations.
+    void createServiceInstanceAsync(ServiceDefinition service, String serviceInstanceId, String planId,
+                                    String organizationGuid, String spaceGuid);
+
     ServiceInstance deleteServiceInstance(String id);
 
+    // Revokes access to the instance and removes its resources in the background, reporting progress
+    // through AsyncOperations. Returns null if the instance does not exist.
+    ServiceInstance deleteServiceInstanceAsync(String id);
+
+    // Restarts in the background a deprovision that a broker restart cut short. Returns null if no deprovision of
+    // the instance was left unfinished.
+    ServiceInstance resumeDeprovision(String id);
+
     ServiceInstanceBinding createServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
                                                                String serviceId, String planId, String appGuid);
 
     ServiceInstanceBinding deleteServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
                                                                String serviceId, String planId) throws ServiceBrokerException;
 
+    // Returns null if the binding does not exist.
+    ServiceInstanceBinding getServiceInstanceBinding(String bindingId);
+
     List<ServiceInstance> getAllServiceInstances();
 
     ServiceInstance getServiceInstance(String id);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of named steps and the steps each one depends on. Steps that don't
+ * depend on each other are run in parallel by {@link StepGraphExecutor}.
+ * <p>
+ * Dependencies must be added before the steps that depend on them, so a graph
+ * can never contain a cycle.
+ */
+public class StepGraph {
+
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+    /**
+     * A unit of work in a graph. {@link #rollback()} is called for steps that
+     * completed when another step of the graph fails.
+     */
+    public static abstract class Step {
+
+        public abstract void run() throws Exception;
+
+        public void rollback() throws Exception {
+        }
+    }
+
+    static class Node {
+        private final String name;
+        private final Step step;
+        private final List<String> dependencies;
+        private final boolean onCaller;
+
+        Node(String name, Step step, List<String> dependencies, boolean onCaller) {
+            this.name = name;
+            this.step = step;
+            this.dependencies = dependencies;
+            this.onCaller = onCaller;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Step getStep() {
+            return step;
+        }
+
+        List<String> getDependencies() {
+            return dependencies;
+        }
+
+        boolean isOnCaller() {
+            return onCaller;
+        }
+    }
+
+    public StepGraph add(String name, Step step, String... dependsOn) {
+        return add(name, step, false, dependsOn);
+    }
+
+    /**
+     * Adds a step that runs on the thread calling
+     * {@link StepGraphExecutor#execute(StepGraph)} instead of a pool thread.
+     * Long steps, such as emptying a bucket, are added this way so they don't
+     * hold a pool thread that the steps of other graphs are waiting for.
+     */
+    public StepGraph addOnCaller(String name, Step step, String... dependsOn) {
+        return add(name, step, true, dependsOn);
+    }
+
+    private StepGraph add(String name, Step step, boolean onCaller, String... dependsOn) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Step '" + name + "' has already been added");
+        }
+        for (String dependency : dependsOn) {
+            if (!nodes.containsKey(dependency)) {
+                throw new IllegalArgumentException("Step '" + name + "' depends on unknown step '" + dependency
+                        + "'");
+            }
+        }
+        nodes.put(name, new Node(name, step, Collections.unmodifiableList(Arrays.asList(dependsOn)),
+                onCaller));
+        return this;
+    }
+
+    Collection<Node> getNodes() {
+        return nodes.values();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.PreDestroy;
+
+import org.cloudfoundry.community.servicebroker.s3.plan.StepGraph.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Runs the steps of a {@link StepGraph}, starting each step as soon as the
+ * steps it depends on have completed. Steps added with
+ * {@link StepGraph#addOnCaller} run on the calling thread, one at a time, while
+ * the other steps run on the pool.
+ * <p>
+ * When a step fails no further steps are started. Once the steps already
+ * running have finished, every completed step is rolled back in the reverse
+ * order of completion and the first failure is rethrown to the caller.
+ */
+@Component
+public class StepGraphExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(StepGraphExecutor.class);
+
+    private final ExecutorService executor;
+
+    @Autowired
+    public StepGraphExecutor(@Value("${STEP_GRAPH_THREADS:16}") int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("plan-step-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void execute(StepGraph graph) {
+        BlockingQueue<Future<Node>> finished = new LinkedBlockingQueue<Future<Node>>();
+        CompletionService<Node> completion = new ExecutorCompletionService<Node>(executor, finished);
+        List<Node> pending = new LinkedList<Node>(graph.getNodes());
+        List<Node> readyOnCaller = new LinkedList<Node>();
+        Set<String> done = new HashSet<String>();
+        List<Node> completed = new ArrayList<Node>();
+        Throwable failure = null;
+        int running = 0;
+
+        while (!pending.isEmpty() || !readyOnCaller.isEmpty() || running > 0) {
+            if (failure == null) {
+                running += submitReady(completion, pending, readyOnCaller, done);
+                if (!readyOnCaller.isEmpty()) {
+                    Node node = readyOnCaller.remove(0);
+                    try {
+                        node.getStep().run();
+                        done.add(node.getName());
+                        completed.add(node);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                    continue;
+                }
+            }
+            if (running == 0) {
+                break;
+            }
+            Future<Node> future = Uninterruptibles.takeUninterruptibly(finished);
+            running--;
+            try {
+                Node node = Uninterruptibles.getUninterruptibly(future);
+                done.add(node.getName());
+                completed.add(node);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    logger.warn("Step failed after an earlier failure", e.getCause());
+                }
+            }
+        }
+
+        if (failure != null) {
+            rollback(completed);
+            throw Throwables.propagate(failure);
+        }
+    }
+
+    private int submitReady(CompletionService<Node> completion, List<Node> pending, List<Node> readyOnCaller,
+            Set<String> done) {
+        int submitted = 0;
+        for (Iterator<Node> it = pending.iterator(); it.hasNext();) {
+            final Node node = it.next();
+            if (done.containsAll(node.getDependencies())) {
+                it.remove();
+                if (node.isOnCaller()) {
+                    readyOnCaller.add(node);
+                    continue;
+                }
+                completion.submit(new Callable<Node>() {
+                    @Override
+                    public Node call() throws Exception {
+                        node.getStep().run();
+                        return node;
+                    }
+                });
+                submitted++;
+            }
+        }
+        return submitted;
+    }
+
+    private void rollback(List<Node> completed) {
+        for (int i = completed.size() - 1; i >= 0; i--) {
+            Node node = completed.get(i);
+            try {
+                logger.info("Rolling back step '{}'", node.getName());
+                node.getStep().rollback();
+            } catch (Exception e) {
+                logger.error("Rollback of step '" + node.getName() + "' failed", e);
+            }
+        }
+    }
+}
@@ -17,34 +17,64 @@ package org.cloudfoundry.community.servicebroker.s3.plan.basic;
 
 import com.amazonaws.services.identitymanagement.model.AccessKey;
 import com.amazonaws.services.identitymanagement.model.User;
-import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.util.DateUtils;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
+import org.cloudfoundry.community.servicebroker.s3.operation.AsyncOperations;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationStep;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationType;
 import org.cloudfoundry.community.servicebroker.s3.plan.Plan;
+import org.cloudfoundry.community.servicebroker.s3.plan.StepGraph;
+import org.cloudfoundry.community.servicebroker.s3.plan.StepGraphExecutor;
 import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 public class BasicPlan implements Plan {
     public static final String PLAN_ID = "s3-basic-plan";
     public static final String AMAZON_S3_HOST = "s3.amazonaws.com";
+    private static final Logger logger = LoggerFactory.getLogger(BasicPlan.class);
     private final BasicPlanIam iam;
     private final S3 s3;
+    private final AsyncOperations operations;
+    private final StepGraphExecutor steps;
+    private final UserPool userPool;
+    private final StsBindings stsBindings;
+    private final BindingIndex bindingIndex;
+    private final int lifecycleExpiryThreshold;
+    private final long lifecycleExpiryPollMinutes;
 
     @Autowired
-    public BasicPlan(BasicPlanIam iam, S3 s3) {
+    public BasicPlan(BasicPlanIam iam, S3 s3, AsyncOperations operations, StepGraphExecutor steps,
+                     UserPool userPool, StsBindings stsBindings, BindingIndex bindingIndex,
+                     @Value("${LIFECYCLE_EXPIRY_OBJECT_THRESHOLD:100000}") int lifecycleExpiryThreshold,
+                     @Value("${LIFECYCLE_EXPIRY_POLL_MINUTES:60}") long lifecycleExpiryPollMinutes) {
         this.iam = iam;
         this.s3 = s3;
+        this.operations = operations;
+        this.steps = steps;
+        this.userPool = userPool;
+        this.stsBindings = stsBindings;
+        this.bindingIndex = bindingIndex;
+        this.lifecycleExpiryThreshold = lifecycleExpiryThreshold;
+        this.lifecycleExpiryPollMinutes = lifecycleExpiryPollMinutes;
     }
 
     public static org.cloudfoundry.community.servicebroker.model.Plan getPlan() {
@@ -64,40 +94,294 @@ public class BasicPlan implements Plan {
 
     public ServiceInstance createServiceInstance(ServiceDefinition service, String serviceInstanceId, String planId,
                                                  String organizationGuid, String spaceGuid) {
-        Bucket bucket = s3.createBucketForInstance(serviceInstanceId, service, planId, organizationGuid, spaceGuid);
-        iam.createGroupForInstance(serviceInstanceId, bucket.getName());
-        iam.applyGroupPolicyForInstance(serviceInstanceId, bucket.getName());
+        steps.execute(provisionSteps(service, serviceInstanceId, planId, organizationGuid, spaceGuid));
         return new ServiceInstance(serviceInstanceId, service.getId(), planId, organizationGuid, spaceGuid, null);
     }
 
-    public ServiceInstance deleteServiceInstance(String id) {
+    public void createServiceInstanceAsync(final ServiceDefinition service, final String serviceInstanceId,
+                                           final String planId, final String organizationGuid, final String spaceGuid) {
+        operations.submit(serviceInstanceId, OperationType.PROVISION,
+                iam.isSharedAccess() ? "Creating bucket" : "Creating bucket, IAM group and group policy",
+                new OperationStep() {
+                    @Override
+                    public boolean run() {
+                        steps.execute(provisionSteps(service, serviceInstanceId, planId, organizationGuid, spaceGuid));
+                        return true;
+                    }
+                }, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The bucket and the group don't depend on each other and are created in
+     * parallel. The group policy only needs the group, since the bucket name is
+     * derived from the instance id. The shared access model needs neither.
+     */
+    private StepGraph provisionSteps(final ServiceDefinition service, final String serviceInstanceId,
+                                     final String planId, final String organizationGuid, final String spaceGuid) {
+        final String bucketName = s3.getBucketNameForInstance(serviceInstanceId);
+        StepGraph graph = new StepGraph()
+                .add("createBucket", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        s3.createBucketForInstance(serviceInstanceId, service, planId, organizationGuid, spaceGuid);
+                    }
+
+                    @Override
+                    public void rollback() {
+                        s3.deleteBucket(serviceInstanceId);
+                    }
+                });
+        if (iam.isSharedAccess()) {
+            return graph;
+        }
+        return graph
+                .add("createGroup", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        iam.createGroupForInstance(serviceInstanceId, bucketName);
+                    }
+
+                    @Override
+                    public void rollback() {
+                        iam.deleteGroupForInstance(serviceInstanceId);
+                    }
+                })
+                .add("applyGroupPolicy", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        iam.applyGroupPolicyForInstance(serviceInstanceId, bucketName);
+                    }
+
+                    @Override
+                    public void rollback() {
+                        iam.deleteGroupPolicyForInstance(serviceInstanceId);
+                    }
+                }, "createGroup");
+    }
+
+    public ServiceInstance deleteServiceInstance(final String id) {
         ServiceInstance instance = s3.findServiceInstance(id);
         // TODO we need to make these deletes idempotent so we can handle retries on error
-        iam.deleteGroupPolicyForInstance(id);
-        iam.deleteGroupForInstance(id);
-        s3.emptyBucket(id);
-        s3.deleteBucket(id);
+        StepGraph graph = new StepGraph();
+        if (!iam.isSharedAccess()) {
+            graph.add("deleteGroupPolicy", new StepGraph.Step() {
+                @Override
+                public void run() {
+                    iam.deleteGroupPolicyForInstance(id);
+                }
+            }).add("deleteGroup", new StepGraph.Step() {
+                @Override
+                public void run() {
+                    iam.deleteGroupForInstance(id);
+                }
+            }, "deleteGroupPolicy");
+        }
+        steps.execute(graph
+                .addOnCaller("emptyBucket", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        s3.emptyBucket(id);
+                    }
+                })
+                .add("deleteBucket", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        s3.deleteBucket(id);
+                    }
+                }, "emptyBucket"));
+        return instance;
+    }
+
+    public ServiceInstance deleteServiceInstanceAsync(final String id) {
+        // reserve the instance first so a conflicting operation leaves it untouched and a repeated deprovision,
+        // which no longer finds the instance, is reported as in progress
+        operations.reserve(id, OperationType.DEPROVISION, "Deleting bucket contents");
+        ServiceInstance instance;
+        try {
+            instance = s3.findServiceInstance(id);
+            if (instance != null) {
+                if (!iam.isSharedAccess()) {
+                    iam.deleteGroupPolicyForInstance(id);
+                    iam.deleteGroupForInstance(id);
+                }
+                s3.markDeprovisioning(instance);
+            } else {
+                // resumes a deprovision that failed or was cut short by a restart after revoking access
+                instance = s3.findDeprovisioningServiceInstance(id);
+                if (instance == null) {
+                    operations.cancel(id);
+                    return null;
+                }
+            }
+        } catch (RuntimeException e) {
+            operations.cancel(id);
+            throw e;
+        }
+        operations.start(id, OperationType.DEPROVISION, new BucketRemoval(id), lifecycleExpiryPollMinutes,
+                TimeUnit.MINUTES);
+        return instance;
+    }
+
+    public ServiceInstance resumeDeprovision(String id) {
+        operations.reserve(id, OperationType.DEPROVISION, "Deleting bucket contents");
+        ServiceInstance instance;
+        try {
+            instance = s3.findDeprovisioningServiceInstance(id);
+        } catch (RuntimeException e) {
+            operations.cancel(id);
+            throw e;
+        }
+        if (instance == null) {
+            operations.cancel(id);
+            return null;
+        }
+        logger.info("Resuming the deprovision of instance '{}'", id);
+        operations.start(id, OperationType.DEPROVISION, new BucketRemoval(id), lifecycleExpiryPollMinutes,
+                TimeUnit.MINUTES);
         return instance;
     }
 
-    public ServiceInstanceBinding createServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
+    /**
+     * Empties and deletes the bucket of an instance. Buckets holding more than
+     * the lifecycle expiry threshold are first handed to an S3 expiration rule
+     * and checked again every poll interval until the remainder is small
+     * enough to delete from the broker.
+     */
+    private class BucketRemoval implements OperationStep {
+        private final String id;
+        private boolean expiring;
+
+        BucketRemoval(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean run() {
+            if (s3.hasMoreObjectsThan(id, lifecycleExpiryThreshold)) {
+                if (!expiring) {
+                    s3.expireAllObjects(id);
+                    expiring = true;
+                    operations.describe(id, "Waiting for S3 to expire bucket contents");
+                }
+                return false;
+            }
+            s3.emptyBucket(id);
+            s3.deleteBucket(id);
+            return true;
+        }
+    }
+
+    public ServiceInstanceBinding createServiceInstanceBinding(final String bindingId,
+                                                               final ServiceInstance serviceInstance,
                                                                String serviceId, String planId, String appGuid) {
-        User user = iam.createUserForBinding(bindingId);
-        AccessKey accessKey = iam.createAccessKey(user);
-        // TODO create password and add to credentials
-        iam.addUserToGroup(user, iam.getGroupNameForInstance(serviceInstance.getId()));
-        String bucketName = s3.getBucketNameForInstance(serviceInstance.getId());
+        final String bucketName = s3.getBucketNameForInstance(serviceInstance.getId());
+        if (stsBindings.isEnabled()) {
+            StsBindings.Binding binding = stsBindings.bind(bindingId, serviceInstance.getId(), planId, bucketName);
+            return new ServiceInstanceBinding(bindingId, serviceInstance.getId(),
+                    credentials(binding, stsBindings.getCredentialsUri(serviceInstance.getId(), bindingId)), null,
+                    appGuid);
+        }
+        final AtomicReference<User> user = new AtomicReference<User>();
+        final AtomicReference<AccessKey> accessKey = new AtomicReference<AccessKey>();
+        final UserPool.PooledUser pooledUser = userPool.take();
+        StepGraph bindSteps = new StepGraph();
+        if (pooledUser != null) {
+            // the pooled user already has an access key, it only needs the binding's name
+            bindSteps.add("claimPooledUser", new StepGraph.Step() {
+                @Override
+                public void run() {
+                    try {
+                        user.set(iam.claimUserForBinding(pooledUser.getUser(), bindingId, bucketName));
+                        accessKey.set(pooledUser.getAccessKey());
+                    } catch (RuntimeException e) {
+                        logger.warn("Claiming pooled user '" + pooledUser.getUser().getUserName()
+                                + "' failed, creating a user for binding " + bindingId, e);
+                        userPool.discard(pooledUser);
+                        user.set(iam.createUserForBinding(bindingId, bucketName));
+                        accessKey.set(iam.createAccessKey(user.get()));
+                    }
+                }
+
+                @Override
+                public void rollback() {
+                    iam.deleteUserAccessKeysForBinding(bindingId);
+                    iam.deleteUserForBinding(bindingId);
+                }
+            });
+        } else {
+            // the access key and the group membership only need the user to exist
+            bindSteps.add("createUser", new StepGraph.Step() {
+                @Override
+                public void run() {
+                    user.set(iam.createUserForBinding(bindingId, bucketName));
+                }
+
+                @Override
+                public void rollback() {
+                    iam.deleteUserForBinding(bindingId);
+                }
+            }).add("createAccessKey", new StepGraph.Step() {
+                @Override
+                public void run() {
+                    accessKey.set(iam.createAccessKey(user.get()));
+                }
+
+                @Override
+                public void rollback() {
+                    iam.deleteUserAccessKeysForBinding(bindingId);
+                }
+            }, "createUser");
+        }
+        bindSteps.add("addUserToGroup", new StepGraph.Step() {
+            @Override
+            public void run() {
+                // TODO create password and add to credentials
+                iam.addUserToGroup(user.get(), iam.getGroupNameForInstance(serviceInstance.getId()));
+            }
+
+            @Override
+            public void rollback() {
+                iam.removeUserFromGroupForInstance(bindingId, serviceInstance.getId());
+            }
+        }, pooledUser != null ? "claimPooledUser" : "createUser");
+        steps.execute(bindSteps);
+        bindingIndex.put(new BindingIndex.Entry(bindingId, user.get().getUserName(), serviceInstance.getId(),
+                Arrays.asList(accessKey.get().getAccessKeyId())));
+        Map<String, Object> credentials = credentials(user.get(), accessKey.get(), bucketName);
+        return new ServiceInstanceBinding(bindingId, serviceInstance.getId(), credentials, null, appGuid);
+    }
+
+    static Map<String, Object> credentials(User user, AccessKey accessKey, String bucketName) {
         Map<String, Object> credentials = new HashMap<String, Object>();
         credentials.put("bucket", bucketName);
         credentials.put("username", user.getUserName());
         credentials.put("access_key_id", accessKey.getAccessKeyId());
         credentials.put("secret_access_key", accessKey.getSecretAccessKey());
         credentials.put("host", AMAZON_S3_HOST);
-        credentials.put("uri", this.generateUri(accessKey.getAccessKeyId(), accessKey.getSecretAccessKey(), bucketName));
-        return new ServiceInstanceBinding(bindingId, serviceInstance.getId(), credentials, null, appGuid);
+        credentials.put("uri", generateUri(accessKey.getAccessKeyId(), accessKey.getSecretAccessKey(), bucketName));
+        return credentials;
+    }
+
+    /**
+     * Credentials of an STS binding. They expire, so apps that outlive them
+     * fetch new ones from {@code credentials_uri}, which serves them
+     * in the format of the AWS SDK's container credentials provider.
+     */
+    static Map<String, Object> credentials(StsBindings.Binding binding, String credentialsUri) {
+        Credentials sessionCredentials = binding.getCredentials();
+        Map<String, Object> credentials = new HashMap<String, Object>();
+        credentials.put("bucket", binding.getBucketName());
+        credentials.put("access_key_id", sessionCredentials.getAccessKeyId());
+        credentials.put("secret_access_key", sessionCredentials.getSecretAccessKey());
+        credentials.put("session_token", sessionCredentials.getSessionToken());
+        credentials.put("expiration", DateUtils.formatISO8601Date(sessionCredentials.getExpiration()));
+        credentials.put("host", AMAZON_S3_HOST);
+        credentials.put("credentials_uri", credentialsUri);
+        credentials.put("credentials_token", binding.getToken());
+        return credentials;
     }
 
-    private String generateUri(String accessKeyId, String secretAccessKey, String bucketName){
+    static String generateUri(String accessKeyId, String secretAccessKey, String bucketName){
         try {
             accessKeyId = URLEncoder.encode(accessKeyId, "UTF-8");
             secretAccessKey = URLEncoder.encode(secretAccessKey, "UTF-8");
@@ -112,15 +396,101 @@ public class BasicPlan implements Plan {
         );
     }
 
-    public ServiceInstanceBinding deleteServiceInstanceBinding(String bindingId, ServiceInstance serviceInstance,
+    public ServiceInstanceBinding deleteServiceInstanceBinding(final String bindingId,
+                                                               final ServiceInstance serviceInstance,
                                                                String serviceId, String planId) throws ServiceBrokerException {
+        if (stsBindings.isEnabled() && (stsBindings.unbind(serviceInstance.getId(), bindingId)
+                || !iam.hasUserForBinding(bindingId))) {
+            // a binding may instead have an IAM user from before STS bindings were enabled
+            return new ServiceInstanceBinding(bindingId, serviceInstance.getId(), null, null, null);
+        }
         // TODO make operations idempotent so we can handle retries on error
-        iam.removeUserFromGroupForInstance(bindingId, serviceInstance.getId());
-        iam.deleteUserAccessKeysForBinding(bindingId);
-        iam.deleteUserForBinding(bindingId);
+        deleteBindingUser(bindingId);
         return new ServiceInstanceBinding(bindingId, serviceInstance.getId(), null, null, null);
     }
 
+    /**
+     * Deletes the binding's IAM user with its access keys and group
+     * memberships, whichever instance it belongs to. The user's access keys
+     * and groups are listed in parallel, following every page, before the
+     * user is torn down.
+     */
+    void deleteBindingUser(String bindingId) {
+        final String userName = iam.getUserNameForBinding(bindingId);
+        final List<String> accessKeyIds = new ArrayList<String>();
+        final List<String> groupNames = new ArrayList<String>();
+        steps.execute(new StepGraph()
+                .add("listAccessKeys", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        accessKeyIds.addAll(iam.listAccessKeyIds(userName));
+                    }
+                })
+                .add("listGroups", new StepGraph.Step() {
+                    @Override
+                    public void run() {
+                        groupNames.addAll(iam.listGroupNamesForUser(userName));
+                    }
+                }));
+        steps.execute(unbindSteps(bindingId, userName, accessKeyIds, groupNames));
+        bindingIndex.remove(bindingId);
+    }
+
+    /**
+     * Deletes each access key and leaves each group in parallel. The user is
+     * deleted once all of them are gone.
+     */
+    private StepGraph unbindSteps(final String bindingId, final String userName, List<String> accessKeyIds,
+            List<String> groupNames) {
+        StepGraph graph = new StepGraph();
+        List<String> teardown = new ArrayList<String>();
+        for (final String accessKeyId : accessKeyIds) {
+            String name = "deleteAccessKey:" + accessKeyId;
+            graph.add(name, new StepGraph.Step() {
+                @Override
+                public void run() {
+                    iam.deleteAccessKey(userName, accessKeyId);
+                }
+            });
+            teardown.add(name);
+        }
+        for (final String groupName : groupNames) {
+            String name = "removeUserFromGroup:" + groupName;
+            graph.add(name, new StepGraph.Step() {
+                @Override
+                public void run() {
+                    iam.removeUserFromGroup(userName, groupName);
+                }
+            });
+            teardown.add(name);
+        }
+        return graph.add("deleteUser", new StepGraph.Step() {
+            @Override
+            public void run() {
+                iam.deleteUserForBinding(bindingId);
+            }
+        }, teardown.toArray(new String[teardown.size()]));
+    }
+
+    /**
+     * IAM user bindings only carry the user name and access key ids, since
+     * secret keys can't be read back from IAM. STS bindings aren't recorded
+     * anywhere, so they aren't found.
+     */
+    public ServiceInstanceBinding getServiceInstanceBinding(String bindingId) {
+        BindingIndex.Entry entry = bindingIndex.get(bindingId);
+        if (entry == null) {
+            return null;
+        }
+        Map<String, Object> credentials = new HashMap<String, Object>();
+        credentials.put("username", entry.getUserName());
+        credentials.put("access_key_ids", entry.getAccessKeyIds());
+        if (entry.getInstanceId() != null) {
+            credentials.put("bucket", s3.getBucketNameForInstance(entry.getInstanceId()));
+        }
+        return new ServiceInstanceBinding(bindingId, entry.getInstanceId(), credentials, null, null);
+    }
+
     public List<ServiceInstance> getAllServiceInstances() {
         return s3.getAllServiceInstances();
     }
@@ -15,6 +15,8 @@
  */
 package org.cloudfoundry.community.servicebroker.s3.plan.basic;
 
+import javax.annotation.PostConstruct;
+
 import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
 import org.cloudfoundry.community.servicebroker.s3.service.Iam;
 import org.slf4j.Logger;
@@ -24,15 +26,27 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.EntityAlreadyExistsException;
 import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.NoSuchEntityException;
+import com.amazonaws.services.identitymanagement.model.Tag;
 import com.amazonaws.services.identitymanagement.model.User;
 
 /**
+ * IAM entities of the basic plan. With the {@code group} access model every
+ * instance has its own group with an inline policy for its bucket. With the
+ * {@code shared} access model all bindings join one group with one managed
+ * policy, and each user is tagged with the bucket it may use, so provisioning
+ * and deprovisioning make no IAM calls.
+ *
  * @author David Ehringer
  */
 @Component
 public class BasicPlanIam extends Iam {
     private static final Logger logger = LoggerFactory.getLogger(BasicPlanIam.class);
+    private static final String SHARED = "shared";
+
+    private final boolean sharedAccess;
 
     @Autowired
     public BasicPlanIam(AmazonIdentityManagement iam, BucketGroupPolicy bucketGroupPolicy,
@@ -40,8 +54,39 @@ public class BasicPlanIam extends Iam {
                         @Value("${GROUP_NAME_PREFIX:cloud-foundry-s3-}") String groupNamePrefix,
                         @Value("${POLICY_NAME_PREFIX:cloud-foundry-s3-}") String policyNamePrefix,
                         @Value("${USER_PATH:/cloud-foundry/s3/}") String userPath,
-                        @Value("${USER_NAME_PREFIX:cloud-foundry-s3-}") String userNamePrefix) {
+                        @Value("${USER_NAME_PREFIX:cloud-foundry-s3-}") String userNamePrefix,
+                        @Value("${BUCKET_ACCESS_MODEL:group}") String accessModel) {
         super(iam, bucketGroupPolicy, groupPath, groupNamePrefix, policyNamePrefix, userPath, userNamePrefix);
+        if (!"group".equals(accessModel) && !SHARED.equals(accessModel)) {
+            throw new IllegalArgumentException("BUCKET_ACCESS_MODEL must be 'group' or 'shared', not '"
+                    + accessModel + "'");
+        }
+        this.sharedAccess = SHARED.equals(accessModel);
+    }
+
+    public boolean isSharedAccess() {
+        return sharedAccess;
+    }
+
+    /**
+     * Creates the shared group and managed policy, or brings the policy up to
+     * date with the shared template, when the shared access model is used.
+     */
+    @PostConstruct
+    public void createSharedAccess() {
+        if (!sharedAccess) {
+            return;
+        }
+        String groupName = getGroupNamePrefix() + SHARED;
+        String policyArn = putManagedPolicy(getPolicyNamePrefix() + SHARED, getGroupPath(),
+                getBucketGroupPolicy().sharedPolicyDocument());
+        try {
+            logger.info("Creating shared group '{}'", groupName);
+            createGroup(groupName);
+        } catch (EntityAlreadyExistsException e) {
+            logger.debug("Shared group '{}' already exists", groupName);
+        }
+        attachGroupPolicy(groupName, policyArn);
     }
 
     public Group createGroupForInstance(String instanceId, String bucketName) {
@@ -53,7 +98,7 @@ public class BasicPlanIam extends Iam {
     public void applyGroupPolicyForInstance(String instanceId, String bucketName) {
         String groupName = getGroupNameForInstance(instanceId);
         String policyName = getPolicyNameForInstance(instanceId);
-        applyGroupPolicy(groupName, policyName, bucketName);
+        applyGroupPolicy(groupName, policyName, BasicPlan.PLAN_ID, instanceId, bucketName);
     }
 
     public void deleteGroupPolicyForInstance(String instanceId) {
@@ -68,24 +113,89 @@ public class BasicPlanIam extends Iam {
         deleteGroup(groupName);
     }
 
+    /**
+     * Deletes a group of the group access model by name, with its policy if it
+     * still has one. Unlike {@link #deleteGroupForInstance(String)} this also
+     * works for groups left behind after switching to the shared access model.
+     */
+    public void deleteInstanceGroup(String groupName) {
+        String instanceId = getInstanceIdForGroup(groupName);
+        try {
+            deleteGroupPolicy(groupName, getPolicyNameForInstance(instanceId));
+        } catch (NoSuchEntityException e) {
+            logger.debug("Group '{}' has no policy", groupName);
+        }
+        logger.info("Deleting group '{}' for instance '{}'", groupName, instanceId);
+        deleteGroup(groupName);
+    }
+
     public String getGroupNameForInstance(String instanceId) {
-        return getGroupNamePrefix() + instanceId;
+        return getGroupNamePrefix() + (sharedAccess ? SHARED : instanceId);
+    }
+
+    /**
+     * @return the instance whose group this is, or null for the shared group
+     *         and groups the broker didn't create
+     */
+    public String getInstanceIdForGroup(String groupName) {
+        if (!groupName.startsWith(getGroupNamePrefix()) || isSharedGroup(groupName)) {
+            return null;
+        }
+        return groupName.substring(getGroupNamePrefix().length());
+    }
+
+    public boolean isSharedGroup(String groupName) {
+        return groupName.equals(getGroupNamePrefix() + SHARED);
     }
 
     private String getPolicyNameForInstance(String instanceId) {
         return getPolicyNamePrefix() + instanceId;
     }
 
-    public User createUserForBinding(String bindingId) {
+    public User createUserForBinding(String bindingId, String bucketName) {
         String userName = getUserNameForBinding(bindingId);
         logger.info("Creating user '{}' for service binding '{}'", userName, bindingId);
+        if (sharedAccess) {
+            return createUser(userName, getUserPath(), bucketTag(bucketName));
+        }
         return createUser(userName);
     }
 
+    /**
+     * Renames a pooled user to the user name of the binding. In the shared
+     * access model the user is tagged with the bucket first, so that a failed
+     * tag leaves a pooled user that can simply be discarded.
+     */
+    public User claimUserForBinding(User pooledUser, String bindingId, String bucketName) {
+        if (sharedAccess) {
+            tagUser(pooledUser.getUserName(), bucketTag(bucketName));
+        }
+        return renameUser(pooledUser, getUserNameForBinding(bindingId), getUserPath());
+    }
+
+    private static Tag bucketTag(String bucketName) {
+        return new Tag().withKey(BUCKET_TAG).withValue(bucketName);
+    }
+
+    public boolean hasUserForBinding(String bindingId) {
+        return userExists(getUserNameForBinding(bindingId));
+    }
+
     public String getUserNameForBinding(String bindingId) {
         return getUserNamePrefix() + bindingId;
     }
 
+    /**
+     * @return the binding of the user, or null if the broker didn't create the
+     *         user for a binding
+     */
+    public String getBindingIdForUser(User user) {
+        if (!user.getPath().equals(getUserPath()) || !user.getUserName().startsWith(getUserNamePrefix())) {
+            return null;
+        }
+        return user.getUserName().substring(getUserNamePrefix().length());
+    }
+
     /**
      * The user must not be a member of any groups or have any access keys.
      *
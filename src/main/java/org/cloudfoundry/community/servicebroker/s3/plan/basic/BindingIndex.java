@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.cloudfoundry.community.servicebroker.s3.service.Iam;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.identitymanagement.model.NoSuchEntityException;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Index of the IAM user bindings of the basic plan by binding id, so a binding
+ * is looked up without scanning IAM.
+ * <p>
+ * The index is loaded in the background on startup from the users directly
+ * under {@code USER_PATH}, with their groups and access keys, following every
+ * pagination marker. Bind and unbind update it as they go, and those updates
+ * win over what the load read for the same binding. A lookup the index can't
+ * answer reads the one user from IAM, so bindings made by other broker
+ * instances are found too. A failed load is retried after
+ * {@link #RETRY_MINUTES} minutes.
+ * <p>
+ * Entries expire after {@code BINDING_INDEX_TTL_SECONDS} and are then read
+ * from IAM again, so unbinds by other broker instances are eventually seen.
+ * Bindings that were looked up and not found are remembered for the shorter
+ * {@code BINDING_INDEX_NEGATIVE_TTL_SECONDS}.
+ */
+@Component
+public class BindingIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(BindingIndex.class);
+    private static final long RETRY_MINUTES = 1;
+
+    private final BasicPlanIam iam;
+    private final S3 s3;
+    private final ScheduledExecutorService executor;
+
+    // all state is guarded by this
+    private final Cache<String, Entry> entries;
+    private final Cache<String, Boolean> absent;
+    private final Set<String> changedWhileLoading = new HashSet<String>();
+    private boolean loaded;
+
+    /**
+     * An IAM user binding and the instance whose bucket it can use.
+     */
+    public static class Entry {
+        private final String bindingId;
+        private final String userName;
+        private final String instanceId;
+        private final List<String> accessKeyIds;
+
+        public Entry(String bindingId, String userName, String instanceId, List<String> accessKeyIds) {
+            this.bindingId = bindingId;
+            this.userName = userName;
+            this.instanceId = instanceId;
+            this.accessKeyIds = Collections.unmodifiableList(new ArrayList<String>(accessKeyIds));
+        }
+
+        public String getBindingId() {
+            return bindingId;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        /**
+         * @return the instance, or null if the user is in none of the
+         *         broker's groups
+         */
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public List<String> getAccessKeyIds() {
+            return accessKeyIds;
+        }
+    }
+
+    @Autowired
+    public BindingIndex(BasicPlanIam iam, S3 s3, @Value("${BINDING_INDEX_SIZE:100000}") long maximumSize,
+            @Value("${BINDING_INDEX_TTL_SECONDS:600}") long ttlSeconds,
+            @Value("${BINDING_INDEX_NEGATIVE_TTL_SECONDS:30}") long negativeTtlSeconds) {
+        this.iam = iam;
+        this.s3 = s3;
+        this.entries = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+        this.absent = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS).build();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("binding-index-%d").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } catch (RuntimeException e) {
+                    logger.warn("Loading the binding index failed, retrying in " + RETRY_MINUTES + " minutes", e);
+                    executor.schedule(this, RETRY_MINUTES, TimeUnit.MINUTES);
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return the binding, or null if there is no such IAM user binding
+     */
+    public Entry get(String bindingId) {
+        synchronized (this) {
+            Entry entry = entries.getIfPresent(bindingId);
+            if (entry != null || absent.getIfPresent(bindingId) != null) {
+                return entry;
+            }
+        }
+        Entry entry;
+        try {
+            entry = read(bindingId, iam.getUserNameForBinding(bindingId));
+        } catch (NoSuchEntityException e) {
+            entry = null;
+        }
+        synchronized (this) {
+            // a bind or unbind while reading wins
+            if (entries.getIfPresent(bindingId) == null && absent.getIfPresent(bindingId) == null) {
+                if (entry != null) {
+                    entries.put(bindingId, entry);
+                } else {
+                    absent.put(bindingId, Boolean.TRUE);
+                }
+            }
+        }
+        return entry;
+    }
+
+    public synchronized void put(Entry entry) {
+        absent.invalidate(entry.getBindingId());
+        entries.put(entry.getBindingId(), entry);
+        if (!loaded) {
+            changedWhileLoading.add(entry.getBindingId());
+        }
+    }
+
+    public synchronized void remove(String bindingId) {
+        entries.invalidate(bindingId);
+        absent.put(bindingId, Boolean.TRUE);
+        if (!loaded) {
+            changedWhileLoading.add(bindingId);
+        }
+    }
+
+    void load() {
+        long start = System.currentTimeMillis();
+        Map<String, Entry> read = new HashMap<String, Entry>();
+        for (User user : iam.listUsers(iam.getUserPath())) {
+            String bindingId = iam.getBindingIdForUser(user);
+            if (bindingId == null) {
+                continue;
+            }
+            try {
+                read.put(bindingId, read(bindingId, user.getUserName()));
+            } catch (NoSuchEntityException e) {
+                // unbound while loading
+            }
+        }
+        synchronized (this) {
+            for (Entry entry : read.values()) {
+                if (!changedWhileLoading.contains(entry.getBindingId())) {
+                    absent.invalidate(entry.getBindingId());
+                    entries.put(entry.getBindingId(), entry);
+                }
+            }
+            changedWhileLoading.clear();
+            loaded = true;
+        }
+        logger.info("Loaded {} bindings into the binding index in {} ms", read.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reads the binding's user from IAM, bypassing the index.
+     *
+     * @throws NoSuchEntityException
+     *             if the user doesn't exist
+     */
+    Entry read(String bindingId, String userName) {
+        String instanceId = null;
+        for (String groupName : iam.listGroupNamesForUser(userName)) {
+            if (iam.isSharedGroup(groupName)) {
+                String bucketName = iam.getUserTag(userName, Iam.BUCKET_TAG);
+                instanceId = bucketName == null ? null : s3.getInstanceIdForBucket(bucketName);
+            } else if (iam.getInstanceIdForGroup(groupName) != null) {
+                instanceId = iam.getInstanceIdForGroup(groupName);
+            }
+            if (instanceId != null) {
+                break;
+            }
+        }
+        return new Entry(bindingId, userName, instanceId, iam.listAccessKeyIds(userName));
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.cloudfoundry.community.servicebroker.s3.operation.AsyncOperations;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.NoSuchEntityException;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds and deletes what failed provisions, binds and deletes leave behind:
+ * buckets without a group, groups without a bucket and binding users that
+ * belong to no existing instance. Only buckets whose tags name the instance
+ * count, so buckets that merely share {@code BUCKET_NAME_PREFIX} are never
+ * touched. With the shared access model, groups of the
+ * group access model that no binding uses any more are orphans too.
+ * <p>
+ * A scan lists the buckets, the groups under {@code GROUP_PATH} and the users
+ * under {@code USER_PATH}, following every pagination marker, and matches them
+ * up by instance id in memory. The instance of each binding user comes from
+ * the {@link BindingIndex}, so the scan waits until the index is loaded.
+ * <p>
+ * Every {@code ORPHAN_REAPER_INTERVAL_MINUTES} the reaper scans and deletes
+ * the orphans that have been found in every scan for at least
+ * {@code ORPHAN_GRACE_PERIOD_MINUTES}, so operations still in flight are left
+ * alone. Each orphan is checked against AWS once more right before it is
+ * deleted. Users go first, then groups, then buckets, on
+ * {@code ORPHAN_REAPER_THREADS} threads at no more than
+ * {@code ORPHAN_REAPER_DELETES_PER_SECOND}. An interval of 0 disables the
+ * reaper, but {@link #report()} still works. Only the reaper's own scans
+ * count toward the grace period.
+ */
+@Component
+public class OrphanReaper {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrphanReaper.class);
+
+    /**
+     * The kinds of orphans, in the order they are deleted in.
+     */
+    public enum Kind {
+        USER, GROUP, BUCKET
+    }
+
+    public static class Orphan {
+        private final Kind kind;
+        private final String name;
+        private final String id;
+        private final String reason;
+        private final Date orphanedSince;
+        private final boolean pastGracePeriod;
+
+        Orphan(Kind kind, String name, String id, String reason, Date orphanedSince, boolean pastGracePeriod) {
+            this.kind = kind;
+            this.name = name;
+            this.id = id;
+            this.reason = reason;
+            this.orphanedSince = orphanedSince;
+            this.pastGracePeriod = pastGracePeriod;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the name of the user, group or bucket
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the binding id of a user, the instance id of a group or
+         *         bucket
+         */
+        public String getId() {
+            return id;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return when the orphan was first found, by this broker process
+         */
+        public Date getOrphanedSince() {
+            return orphanedSince;
+        }
+
+        public boolean isPastGracePeriod() {
+            return pastGracePeriod;
+        }
+    }
+
+    private final BasicPlan plan;
+    private final BasicPlanIam iam;
+    private final S3 s3;
+    private final BindingIndex bindingIndex;
+    private final AsyncOperations operations;
+    private final long intervalMinutes;
+    private final long gracePeriodMillis;
+    private final RateLimiter deleteRate;
+    private final ScheduledExecutorService scanner;
+    private final ExecutorService workers;
+
+    // when each orphan was first found, by kind and name; guarded by this
+    private final Map<String, Long> firstFound = new HashMap<String, Long>();
+
+    @Autowired
+    public OrphanReaper(BasicPlan plan, BasicPlanIam iam, S3 s3, BindingIndex bindingIndex,
+            AsyncOperations operations,
+            @Value("${ORPHAN_REAPER_INTERVAL_MINUTES:0}") long intervalMinutes,
+            @Value("${ORPHAN_GRACE_PERIOD_MINUTES:1440}") long gracePeriodMinutes,
+            @Value("${ORPHAN_REAPER_THREADS:2}") int threads,
+            @Value("${ORPHAN_REAPER_DELETES_PER_SECOND:1.0}") double deletesPerSecond) {
+        this.plan = plan;
+        this.iam = iam;
+        this.s3 = s3;
+        this.bindingIndex = bindingIndex;
+        this.operations = operations;
+        this.intervalMinutes = intervalMinutes;
+        this.gracePeriodMillis = TimeUnit.MINUTES.toMillis(gracePeriodMinutes);
+        if (intervalMinutes > 0 && deletesPerSecond <= 0) {
+            throw new IllegalArgumentException("ORPHAN_REAPER_DELETES_PER_SECOND must be greater than 0 when the "
+                    + "orphan reaper is enabled");
+        }
+        this.deleteRate = intervalMinutes > 0 ? RateLimiter.create(deletesPerSecond) : null;
+        this.scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("orphan-scan-%d").setDaemon(true).build());
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("orphan-reaper-%d").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        scanner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scanner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return intervalMinutes > 0;
+    }
+
+    /**
+     * Scans for orphans without deleting any. Orphans the reaper hasn't found
+     * yet are reported as orphaned since now.
+     *
+     * @throws IllegalStateException
+     *             if the binding index is still loading
+     */
+    public List<Orphan> report() {
+        return scan(System.currentTimeMillis(), false);
+    }
+
+    /**
+     * @param track
+     *            whether the orphans found start or continue their grace
+     *            period, only for the reaper's own scans
+     */
+    synchronized List<Orphan> scan(long now, boolean track) {
+        if (!bindingIndex.isLoaded()) {
+            throw new IllegalStateException("The binding index is still loading");
+        }
+        Set<String> bucketInstances = new HashSet<String>(s3.listInstanceIds());
+        Map<String, String> groupsByInstance = new HashMap<String, String>();
+        for (Group group : iam.listGroups(iam.getGroupPath())) {
+            String instanceId = iam.getInstanceIdForGroup(group.getGroupName());
+            if (instanceId != null) {
+                groupsByInstance.put(instanceId, group.getGroupName());
+            }
+        }
+
+        Map<String, Long> found = new HashMap<String, Long>();
+        List<Orphan> orphans = new ArrayList<Orphan>();
+        Set<String> boundInstances = new HashSet<String>();
+        for (User user : iam.listUsers(iam.getUserPath())) {
+            String bindingId = iam.getBindingIdForUser(user);
+            if (bindingId == null) {
+                continue;
+            }
+            BindingIndex.Entry entry = bindingIndex.get(bindingId);
+            String instanceId = entry == null ? null : entry.getInstanceId();
+            if (instanceId == null) {
+                add(orphans, found, now, Kind.USER, user.getUserName(), bindingId, "belongs to no instance");
+            } else if (!bucketInstances.contains(instanceId)) {
+                add(orphans, found, now, Kind.USER, user.getUserName(), bindingId, "the bucket of instance "
+                        + instanceId + " doesn't exist");
+            } else {
+                boundInstances.add(instanceId);
+            }
+        }
+        for (Map.Entry<String, String> group : groupsByInstance.entrySet()) {
+            if (!bucketInstances.contains(group.getKey())) {
+                add(orphans, found, now, Kind.GROUP, group.getValue(), group.getKey(), "the instance's bucket "
+                        + "doesn't exist");
+            } else if (iam.isSharedAccess() && !boundInstances.contains(group.getKey())) {
+                add(orphans, found, now, Kind.GROUP, group.getValue(), group.getKey(), "no binding uses it since "
+                        + "the shared access model is in use");
+            }
+        }
+        if (!iam.isSharedAccess()) {
+            for (String instanceId : bucketInstances) {
+                if (!groupsByInstance.containsKey(instanceId) && !operations.isInProgress(instanceId)
+                        && s3.isTaggedForInstance(instanceId)) {
+                    add(orphans, found, now, Kind.BUCKET, s3.getBucketNameForInstance(instanceId), instanceId,
+                            "the instance's group doesn't exist");
+                }
+            }
+        }
+
+        if (track) {
+            firstFound.clear();
+            firstFound.putAll(found);
+        }
+        return orphans;
+    }
+
+    private void add(List<Orphan> orphans, Map<String, Long> found, long now, Kind kind, String name, String id,
+            String reason) {
+        String key = kind + ":" + name;
+        Long since = firstFound.get(key);
+        if (since == null) {
+            since = now;
+        }
+        found.put(key, since);
+        orphans.add(new Orphan(kind, name, id, reason, new Date(since), now - since >= gracePeriodMillis));
+    }
+
+    void reap() {
+        List<Orphan> orphans;
+        try {
+            orphans = scan(System.currentTimeMillis(), true);
+        } catch (RuntimeException e) {
+            logger.warn("Scanning for orphans failed, will retry", e);
+            return;
+        }
+        final AtomicInteger deleted = new AtomicInteger();
+        int due = 0;
+        for (Kind kind : Kind.values()) {
+            List<Callable<Void>> deletes = new ArrayList<Callable<Void>>();
+            for (final Orphan orphan : orphans) {
+                if (orphan.getKind() == kind && orphan.isPastGracePeriod()) {
+                    deletes.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            deleteRate.acquire();
+                            if (delete(orphan)) {
+                                deleted.incrementAndGet();
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+            due += deletes.size();
+            try {
+                workers.invokeAll(deletes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        logger.info("Found {} orphans, deleted {} of the {} past the grace period", orphans.size(), deleted.get(),
+                due);
+    }
+
+    /**
+     * @return whether the orphan was deleted
+     */
+    boolean delete(Orphan orphan) {
+        try {
+            switch (orphan.getKind()) {
+            case USER:
+                return deleteUser(orphan);
+            case GROUP:
+                return deleteGroup(orphan);
+            default:
+                return deleteBucket(orphan);
+            }
+        } catch (NoSuchEntityException e) {
+            logger.debug("Orphaned {} '{}' is already gone", orphan.getKind(), orphan.getName());
+        } catch (RuntimeException e) {
+            logger.warn("Deleting orphaned " + orphan.getKind() + " '" + orphan.getName() + "' failed, will retry",
+                    e);
+        }
+        return false;
+    }
+
+    private boolean deleteUser(Orphan orphan) {
+        BindingIndex.Entry entry = bindingIndex.read(orphan.getId(), orphan.getName());
+        if (entry.getInstanceId() != null && s3.hasBucketForInstance(entry.getInstanceId())) {
+            return false;
+        }
+        logger.info("Deleting orphaned user '{}': {}", orphan.getName(), orphan.getReason());
+        plan.deleteBindingUser(orphan.getId());
+        return true;
+    }
+
+    private boolean deleteGroup(Orphan orphan) {
+        if (s3.hasBucketForInstance(orphan.getId())
+                && (!iam.isSharedAccess() || !iam.listUserNamesInGroup(orphan.getName()).isEmpty())) {
+            return false;
+        }
+        logger.info("Deleting orphaned group '{}': {}", orphan.getName(), orphan.getReason());
+        iam.deleteInstanceGroup(orphan.getName());
+        return true;
+    }
+
+    private boolean deleteBucket(Orphan orphan) {
+        if (iam.groupExists(iam.getGroupNameForInstance(orphan.getId())) || operations.isInProgress(orphan.getId())
+                || !s3.isTaggedForInstance(orphan.getId())) {
+            return false;
+        }
+        logger.info("Deleting orphaned bucket '{}': {}", orphan.getName(), orphan.getReason());
+        s3.emptyBucket(orphan.getId());
+        s3.deleteBucket(orphan.getId());
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Issues short-lived binding credentials from one broker-held role instead of
+ * creating an IAM user per binding.
+ * <p>
+ * Each binding gets its own AssumeRole session of {@code STS_ROLE_ARN}, with
+ * the plan's bucket policy as session policy so the credentials only reach the
+ * instance's bucket. Apps fetch current credentials with the binding's
+ * credentials token. A bind tags the instance's bucket with a random nonce for
+ * the binding, and the token is the nonce with an HMAC of the binding id,
+ * instance id and nonce under {@code STS_TOKEN_SECRET}. Unbinding removes the
+ * tag, which revokes the token, and any broker instance can check a token
+ * against the tag, before and after a restart.
+ * <p>
+ * A fetch with a valid token gets the credentials this broker last issued for
+ * the binding until they are within {@code STS_REFRESH_BEFORE_EXPIRY_SECONDS}
+ * of expiring, so apps polling for credentials don't each cost an AssumeRole.
+ * Tokens with a wrong HMAC are turned away without any AWS call.
+ * <p>
+ * Bindings get IAM users unless {@code BINDING_CREDENTIALS} is {@code sts}.
+ */
+@Component
+public class StsBindings {
+
+    private static final Logger logger = LoggerFactory.getLogger(StsBindings.class);
+    private static final int MAX_SESSION_NAME_LENGTH = 64;
+    private static final String TOKEN_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+    private static final long MAX_ISSUED_BINDINGS = 10000;
+
+    private final AWSSecurityTokenService sts;
+    private final BucketGroupPolicy bucketGroupPolicy;
+    private final S3 s3;
+    private final boolean enabled;
+    private final String roleArn;
+    private final int sessionSeconds;
+    private final String sessionNamePrefix;
+    private final String brokerUrl;
+    private final SecretKeySpec tokenKey;
+    private final SecureRandom random = new SecureRandom();
+    // the credentials last issued per binding id
+    private final Cache<String, Binding> issued;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public static class Binding {
+        private final String bindingId;
+        private final String instanceId;
+        private final String bucketName;
+        private final String token;
+        private final Credentials credentials;
+
+        Binding(String bindingId, String instanceId, String bucketName, String token, Credentials credentials) {
+            this.bindingId = bindingId;
+            this.instanceId = instanceId;
+            this.bucketName = bucketName;
+            this.token = token;
+            this.credentials = credentials;
+        }
+
+        public String getBindingId() {
+            return bindingId;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public String getBucketName() {
+            return bucketName;
+        }
+
+        /**
+         * @return the secret an app presents to fetch the current credentials
+         */
+        public String getToken() {
+            return token;
+        }
+
+        public Credentials getCredentials() {
+            return credentials;
+        }
+    }
+
+    @Autowired
+    public StsBindings(AWSSecurityTokenService sts, BucketGroupPolicy bucketGroupPolicy, S3 s3,
+            @Value("${BINDING_CREDENTIALS:user}") String bindingCredentials,
+            @Value("${STS_ROLE_ARN:}") String roleArn,
+            @Value("${STS_SESSION_SECONDS:3600}") int sessionSeconds,
+            @Value("${STS_REFRESH_BEFORE_EXPIRY_SECONDS:900}") int refreshBeforeExpirySeconds,
+            @Value("${USER_NAME_PREFIX:cloud-foundry-s3-}") String sessionNamePrefix,
+            @Value("${BROKER_URL:}") String brokerUrl,
+            @Value("${STS_TOKEN_SECRET:}") String tokenSecret) {
+        if (!"user".equals(bindingCredentials) && !"sts".equals(bindingCredentials)) {
+            throw new IllegalArgumentException("BINDING_CREDENTIALS must be 'user' or 'sts', not '"
+                    + bindingCredentials + "'");
+        }
+        this.enabled = "sts".equals(bindingCredentials);
+        if (enabled) {
+            required("STS_ROLE_ARN", roleArn);
+            required("BROKER_URL", brokerUrl);
+            required("STS_TOKEN_SECRET", tokenSecret);
+        }
+        if (refreshBeforeExpirySeconds < 0 || refreshBeforeExpirySeconds >= sessionSeconds) {
+            throw new IllegalArgumentException("STS_REFRESH_BEFORE_EXPIRY_SECONDS must be between 0 and "
+                    + "STS_SESSION_SECONDS");
+        }
+        this.sts = sts;
+        this.bucketGroupPolicy = bucketGroupPolicy;
+        this.s3 = s3;
+        this.roleArn = roleArn;
+        this.sessionSeconds = sessionSeconds;
+        this.sessionNamePrefix = sessionNamePrefix;
+        this.brokerUrl = brokerUrl.endsWith("/") ? brokerUrl.substring(0, brokerUrl.length() - 1) : brokerUrl;
+        this.tokenKey = enabled ? new SecretKeySpec(tokenSecret.getBytes(Charsets.UTF_8), TOKEN_ALGORITHM) : null;
+        this.issued = CacheBuilder.newBuilder().maximumSize(MAX_ISSUED_BINDINGS)
+                .expireAfterWrite(sessionSeconds - refreshBeforeExpirySeconds, TimeUnit.SECONDS).build();
+    }
+
+    private static void required(String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(name + " is required when BINDING_CREDENTIALS is 'sts'");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return where the app fetches the current credentials of the binding
+     */
+    public String getCredentialsUri(String instanceId, String bindingId) {
+        return brokerUrl + "/credentials/" + instanceId + "/" + bindingId;
+    }
+
+    /**
+     * Records the binding on the instance's bucket and issues its first
+     * credentials.
+     */
+    public Binding bind(String bindingId, String instanceId, String planId, String bucketName) {
+        byte[] bytes = new byte[NONCE_BYTES];
+        random.nextBytes(bytes);
+        String nonce = BaseEncoding.base64Url().omitPadding().encode(bytes);
+        s3.tagBinding(instanceId, bindingId, nonce);
+        try {
+            return issue(bindingId, instanceId, planId, bucketName, token(bindingId, instanceId, nonce));
+        } catch (RuntimeException e) {
+            s3.untagBinding(instanceId, bindingId);
+            throw e;
+        }
+    }
+
+    /**
+     * Revokes the binding's credentials token. Credentials already issued stay
+     * valid until they expire.
+     *
+     * @return whether the binding was an STS binding of the instance
+     */
+    public boolean unbind(String instanceId, String bindingId) {
+        issued.invalidate(bindingId);
+        return s3.untagBinding(instanceId, bindingId);
+    }
+
+    /**
+     * @return the binding with current credentials, or null if the token isn't
+     *         the credentials token of the binding, the binding was unbound or
+     *         the instance is gone
+     */
+    public Binding authenticate(String instanceId, String bindingId, String token) {
+        if (token == null || token.indexOf('.') < 0
+                || !MessageDigest.isEqual(token(bindingId, instanceId, nonce(token)).getBytes(Charsets.UTF_8),
+                        token.getBytes(Charsets.UTF_8))) {
+            return null;
+        }
+        Binding current = issued.getIfPresent(bindingId);
+        if (current != null && current.getInstanceId().equals(instanceId) && current.getToken().equals(token)) {
+            return current;
+        }
+        if (!nonce(token).equals(s3.getBindingTag(instanceId, bindingId))) {
+            return null;
+        }
+        ServiceInstance instance = s3.findServiceInstance(instanceId);
+        if (instance == null) {
+            return null;
+        }
+        return issue(bindingId, instanceId, instance.getPlanId(), s3.getBucketNameForInstance(instanceId), token);
+    }
+
+    private Binding issue(String bindingId, String instanceId, String planId, String bucketName, String token) {
+        Binding binding = new Binding(bindingId, instanceId, bucketName, token, assumeRole(bindingId,
+                sessionPolicy(planId, instanceId, bucketName)));
+        issued.put(bindingId, binding);
+        logger.info("Issued STS credentials for service binding '{}' expiring at {}", bindingId,
+                binding.getCredentials().getExpiration());
+        return binding;
+    }
+
+    /**
+     * @return the nonce followed by the HMAC of the binding id, instance id and
+     *         nonce
+     */
+    private String token(String bindingId, String instanceId, String nonce) {
+        try {
+            Mac mac = Mac.getInstance(TOKEN_ALGORITHM);
+            mac.init(tokenKey);
+            byte[] digest = mac.doFinal((bindingId + "/" + instanceId + "/" + nonce).getBytes(Charsets.UTF_8));
+            return nonce + "." + BaseEncoding.base64Url().omitPadding().encode(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't compute credentials tokens with " + TOKEN_ALGORITHM, e);
+        }
+    }
+
+    private static String nonce(String token) {
+        return token.substring(0, token.indexOf('.'));
+    }
+
+    private Credentials assumeRole(String bindingId, String sessionPolicy) {
+        String sessionName = sessionNamePrefix + bindingId;
+        if (sessionName.length() > MAX_SESSION_NAME_LENGTH) {
+            sessionName = sessionName.substring(0, MAX_SESSION_NAME_LENGTH);
+        }
+        AssumeRoleRequest request = new AssumeRoleRequest().withRoleArn(roleArn).withRoleSessionName(sessionName)
+                .withPolicy(sessionPolicy).withDurationSeconds(sessionSeconds);
+        return sts.assumeRole(request).getCredentials();
+    }
+
+    /**
+     * The plan's bucket policy without whitespace, since session policies have
+     * a tight size limit.
+     */
+    private String sessionPolicy(String planId, String instanceId, String bucketName) {
+        String policy = bucketGroupPolicy.policyDocument(planId, instanceId, bucketName);
+        try {
+            return mapper.writeValueAsString(mapper.readTree(policy));
+        } catch (IOException e) {
+            throw new IllegalStateException("Bucket policy is not valid JSON", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.identitymanagement.model.AccessKey;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps IAM users with access keys ready for bindings, so a bind only has to
+ * rename a user and add it to the instance's group.
+ * <p>
+ * Pooled users live under {@code USER_PATH + "pool/" + USER_POOL_ID + "/"}. The
+ * pool id defaults to {@code CF_INSTANCE_INDEX}, which is unique among the
+ * running instances of the broker and kept when an instance restarts. The pool
+ * is refilled in
+ * the background at no more than {@code USER_POOL_REFILL_PER_SECOND} users per
+ * second whenever it drops below {@code USER_POOL_LOW_WATER_MARK}, up to
+ * {@code USER_POOL_SIZE} users. A low-water mark of 0 disables the pool.
+ * <p>
+ * Secret keys are only known when a key is created, so pooled users are held
+ * in memory. Users left in the pool path by a previous run with the same pool
+ * id are deleted on startup. The pools of other broker instances are left
+ * alone.
+ */
+@Component
+public class UserPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserPool.class);
+
+    private final BasicPlanIam iam;
+    private final int lowWaterMark;
+    private final int size;
+    private final String poolId;
+    private final RateLimiter refillRate;
+    private final BlockingQueue<PooledUser> users = new LinkedBlockingQueue<PooledUser>();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    public static class PooledUser {
+        private final User user;
+        private final AccessKey accessKey;
+
+        PooledUser(User user, AccessKey accessKey) {
+            this.user = user;
+            this.accessKey = accessKey;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public AccessKey getAccessKey() {
+            return accessKey;
+        }
+    }
+
+    @Autowired
+    public UserPool(BasicPlanIam iam, @Value("${USER_POOL_LOW_WATER_MARK:0}") int lowWaterMark,
+            @Value("${USER_POOL_SIZE:20}") int size,
+            @Value("${USER_POOL_REFILL_PER_SECOND:1.0}") double refillPerSecond,
+            @Value("${USER_POOL_ID:${CF_INSTANCE_INDEX:0}}") String poolId) {
+        this.iam = iam;
+        this.lowWaterMark = lowWaterMark;
+        this.size = Math.max(size, lowWaterMark);
+        this.poolId = poolId;
+        this.refillRate = RateLimiter.create(refillPerSecond);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("user-pool-%d").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteLeftoverUsers();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refill();
+            }
+        }, 0, 30, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return lowWaterMark > 0;
+    }
+
+    public int getAvailable() {
+        return users.size();
+    }
+
+    /**
+     * @return a user with an access key and no group memberships, or null if
+     *         the pool is disabled or empty
+     */
+    public PooledUser take() {
+        PooledUser user = users.poll();
+        if (isEnabled() && users.size() < lowWaterMark && !refilling.get()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refill();
+                }
+            });
+        }
+        return user;
+    }
+
+    /**
+     * Deletes a user taken from the pool that could not be claimed.
+     */
+    public void discard(final PooledUser pooledUser) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String userName = pooledUser.getUser().getUserName();
+                try {
+                    iam.deleteUserAccessKeys(userName);
+                    iam.deleteUser(userName);
+                } catch (RuntimeException e) {
+                    logger.warn("Deleting pooled user '" + userName + "' failed, it will be deleted on restart", e);
+                }
+            }
+        });
+    }
+
+    String getPoolPath() {
+        return iam.getUserPath() + "pool/" + poolId + "/";
+    }
+
+    void refill() {
+        if (users.size() >= lowWaterMark || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (users.size() < size && !Thread.currentThread().isInterrupted()) {
+                refillRate.acquire();
+                users.add(createPooledUser());
+            }
+            logger.debug("User pool refilled to {} users", users.size());
+        } catch (RuntimeException e) {
+            logger.warn("Refilling the user pool failed, will retry", e);
+        } finally {
+            refilling.set(false);
+        }
+    }
+
+    private PooledUser createPooledUser() {
+        String userName = iam.getUserNamePrefix() + "pool-" + UUID.randomUUID();
+        User user = iam.createUser(userName, getPoolPath());
+        try {
+            return new PooledUser(user, iam.createAccessKey(user));
+        } catch (RuntimeException e) {
+            iam.deleteUser(userName);
+            throw e;
+        }
+    }
+
+    void deleteLeftoverUsers() {
+        try {
+            for (User user : iam.listUsers(getPoolPath())) {
+                logger.info("Deleting pooled user '{}' left by a previous run", user.getUserName());
+                iam.deleteUserAccessKeys(user.getUserName());
+                iam.deleteUser(user.getUserName());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Deleting pooled users left by a previous run failed", e);
+        }
+    }
+}
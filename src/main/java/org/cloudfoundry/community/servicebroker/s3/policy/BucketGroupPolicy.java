@@ -15,18 +15,104 @@
  */
 package org.cloudfoundry.community.servicebroker.s3.policy;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.community.servicebroker.s3.policy.PolicyTemplate.Variable;
+
+import com.google.common.base.Strings;
+
 /**
+ * Renders the group policy of a service instance from the policy template of
+ * its plan, or from the default template for plans without their own. The
+ * templates are compiled and checked when the policy is created.
+ * <p>
+ * The shared template is the single managed policy used by the shared access
+ * model. It can't refer to an instance or its bucket; it grants access through
+ * IAM policy variables such as the bucket tag of the calling user instead.
+ *
  * @author David Ehringer
  */
 public class BucketGroupPolicy {
 
-    private final String policyDocument;
+    private final PolicyTemplate defaultTemplate;
+    private final Map<String, PolicyTemplate> planTemplates = new HashMap<String, PolicyTemplate>();
+    private final PolicyTemplate sharedTemplate;
+    private final String accountId;
+    private final String region;
 
     public BucketGroupPolicy(String policyDocument) {
-        this.policyDocument = policyDocument;
+        this(policyDocument, Collections.<String, String> emptyMap(), null, null, null);
+    }
+
+    public BucketGroupPolicy(String defaultTemplate, Map<String, String> planTemplates, String accountId,
+            String region) {
+        this(defaultTemplate, planTemplates, null, accountId, region);
+    }
+
+    /**
+     * @param planTemplates
+     *            policy templates by plan id
+     * @param sharedTemplate
+     *            the managed policy of the shared access model, may be null
+     * @param accountId
+     *            value of {@code ${accountId}}, required if a template uses it
+     * @param region
+     *            value of {@code ${region}}, required if a template uses it
+     */
+    public BucketGroupPolicy(String defaultTemplate, Map<String, String> planTemplates, String sharedTemplate,
+            String accountId, String region) {
+        this.accountId = accountId;
+        this.region = region;
+        this.defaultTemplate = compile("default", defaultTemplate);
+        for (Map.Entry<String, String> planTemplate : planTemplates.entrySet()) {
+            this.planTemplates.put(planTemplate.getKey(), compile(planTemplate.getKey(), planTemplate.getValue()));
+        }
+        this.sharedTemplate = sharedTemplate == null ? null : compile("shared", sharedTemplate);
+        if (this.sharedTemplate != null
+                && (this.sharedTemplate.getVariables().contains(Variable.BUCKET_NAME)
+                || this.sharedTemplate.getVariables().contains(Variable.INSTANCE_ID))) {
+            throw new IllegalArgumentException("The shared bucket policy template can't use ${bucketName} or "
+                    + "${instanceId}");
+        }
+    }
+
+    private PolicyTemplate compile(String name, String template) {
+        PolicyTemplate compiled;
+        try {
+            compiled = new PolicyTemplate(template);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid " + name + " bucket policy template: " + e.getMessage(), e);
+        }
+        if (compiled.getVariables().contains(Variable.ACCOUNT_ID) && Strings.isNullOrEmpty(accountId)) {
+            throw new IllegalArgumentException("The " + name + " bucket policy template uses ${accountId} but no "
+                    + "account id is configured");
+        }
+        if (compiled.getVariables().contains(Variable.REGION) && Strings.isNullOrEmpty(region)) {
+            throw new IllegalArgumentException("The " + name + " bucket policy template uses ${region} but no "
+                    + "region is configured");
+        }
+        return compiled;
+    }
+
+    public String policyDocument(String planId, String instanceId, String bucketName) {
+        PolicyTemplate template = planTemplates.get(planId);
+        String[] values = new String[Variable.values().length];
+        values[Variable.BUCKET_NAME.ordinal()] = bucketName;
+        values[Variable.INSTANCE_ID.ordinal()] = instanceId;
+        values[Variable.ACCOUNT_ID.ordinal()] = accountId;
+        values[Variable.REGION.ordinal()] = region;
+        return (template != null ? template : defaultTemplate).render(values);
     }
 
-    public String policyDocumentForBucket(String bucketName){
-        return policyDocument.replace("${bucketName}", bucketName);
+    public String sharedPolicyDocument() {
+        if (sharedTemplate == null) {
+            throw new IllegalStateException("No shared bucket policy template is configured");
+        }
+        String[] values = new String[Variable.values().length];
+        values[Variable.ACCOUNT_ID.ordinal()] = accountId;
+        values[Variable.REGION.ordinal()] = region;
+        return sharedTemplate.render(values);
     }
 }
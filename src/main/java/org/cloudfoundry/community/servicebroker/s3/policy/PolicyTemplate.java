@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.policy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A policy document with {@code ${name}} placeholders, split into literal and
+ * placeholder segments once so that rendering only appends. The template is
+ * checked when it is compiled: every placeholder must be a {@link Variable}
+ * and the document must be valid JSON once the placeholders are filled in.
+ * IAM policy variables such as {@code ${aws:username}} and the escapes
+ * {@code ${*}}, {@code ${?}} and {@code ${$}} are left for IAM to evaluate.
+ */
+public class PolicyTemplate {
+
+    public enum Variable {
+        BUCKET_NAME("bucketName"), INSTANCE_ID("instanceId"), ACCOUNT_ID("accountId"), REGION("region");
+
+        private final String placeholder;
+
+        Variable(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        public String getPlaceholder() {
+            return placeholder;
+        }
+
+        static Variable forPlaceholder(String placeholder) {
+            for (Variable variable : values()) {
+                if (variable.placeholder.equals(placeholder)) {
+                    return variable;
+                }
+            }
+            return null;
+        }
+    }
+
+    // a segment is either a literal or a variable; the other is null
+    private final String[] literals;
+    private final Variable[] variables;
+    private final EnumSet<Variable> used = EnumSet.noneOf(Variable.class);
+    private final int literalLength;
+    private final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(literalLength + 256);
+        }
+    };
+
+    public PolicyTemplate(String template) {
+        List<String> literals = new ArrayList<String>();
+        List<Variable> variables = new ArrayList<Variable>();
+        int length = 0;
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf("${", position);
+            if (start < 0) {
+                start = template.length();
+            }
+            if (start > position) {
+                literals.add(template.substring(position, start));
+                variables.add(null);
+                length += start - position;
+            }
+            if (start == template.length()) {
+                break;
+            }
+            int end = template.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder at offset " + start);
+            }
+            String name = template.substring(start + 2, end);
+            if (isPolicyVariable(name)) {
+                literals.add(template.substring(start, end + 1));
+                variables.add(null);
+                length += end + 1 - start;
+                position = end + 1;
+                continue;
+            }
+            Variable variable = Variable.forPlaceholder(name);
+            if (variable == null) {
+                throw new IllegalArgumentException("Unknown placeholder " + template.substring(start, end + 1)
+                        + " at offset " + start);
+            }
+            literals.add(null);
+            variables.add(variable);
+            used.add(variable);
+            position = end + 1;
+        }
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = variables.toArray(new Variable[variables.size()]);
+        this.literalLength = length;
+        checkJson();
+    }
+
+    private static boolean isPolicyVariable(String name) {
+        return name.indexOf(':') > 0 || name.equals("*") || name.equals("?") || name.equals("$");
+    }
+
+    private void checkJson() {
+        String[] samples = new String[Variable.values().length];
+        for (Variable variable : Variable.values()) {
+            samples[variable.ordinal()] = "sample-" + variable.getPlaceholder();
+        }
+        try {
+            new ObjectMapper().readTree(render(samples));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Policy template is not valid JSON: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the variables the template refers to
+     */
+    public Set<Variable> getVariables() {
+        return EnumSet.copyOf(used);
+    }
+
+    /**
+     * @param values
+     *            the value of each variable, indexed by its ordinal
+     */
+    String render(String[] values) {
+        StringBuilder builder = builders.get();
+        builder.setLength(0);
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] != null) {
+                builder.append(literals[i]);
+            } else {
+                builder.append(values[variables[i].ordinal()]);
+            }
+        }
+        return builder.toString();
+    }
+}
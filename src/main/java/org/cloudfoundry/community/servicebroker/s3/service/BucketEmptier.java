@@ -0,0 +1,402 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Deletes all objects and object versions from a bucket.
+ * <p>
+ * Objects are deleted first and versions second, so that delete markers created
+ * in versioned buckets are removed as well. Each of the two phases runs as a
+ * pipeline: the keyspace is partitioned by top-level prefix using a delimiter
+ * listing, listing threads fetch pages of each partition ahead and delete
+ * threads turn each page into multi-object delete requests. Listing and
+ * deletion overlap while at most {@code BUCKET_EMPTYING_PREFETCH_PAGES} pages
+ * of a run are waiting or being deleted. The listing and delete threads,
+ * {@code BUCKET_EMPTYING_CONCURRENCY} of each, are shared by all runs. Queue
+ * depth and the time either side spent stalled on the other are reported in
+ * the {@link DeletionStats} of the run.
+ */
+@Component
+public class BucketEmptier {
+
+    private static final Logger logger = LoggerFactory.getLogger(BucketEmptier.class);
+
+    static final int MAX_KEYS_PER_DELETE = 1000;
+    private static final int MAX_DELETE_ATTEMPTS = 5;
+    private static final long RETRY_BASE_DELAY_MILLIS = 100;
+    private static final String DELIMITER = "/";
+
+    private final AmazonS3 s3;
+    private final int prefetchPages;
+    private final ExecutorService listers;
+    private final ExecutorService deleters;
+
+    private final Phase<ObjectListing> objects = new Phase<ObjectListing>("objects") {
+        @Override
+        ObjectListing first(String bucketName, String prefix, String delimiter) {
+            return s3.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix)
+                    .withDelimiter(delimiter));
+        }
+
+        @Override
+        ObjectListing next(ObjectListing listing) {
+            return listing.isTruncated() ? s3.listNextBatchOfObjects(listing) : null;
+        }
+
+        @Override
+        List<String> commonPrefixes(ObjectListing listing) {
+            return listing.getCommonPrefixes();
+        }
+
+        @Override
+        List<KeyVersion> keys(ObjectListing listing) {
+            List<KeyVersion> keys = new ArrayList<KeyVersion>(listing.getObjectSummaries().size());
+            for (S3ObjectSummary objectSummary : listing.getObjectSummaries()) {
+                keys.add(new KeyVersion(objectSummary.getKey()));
+            }
+            return keys;
+        }
+    };
+
+    private final Phase<VersionListing> versions = new Phase<VersionListing>("object versions") {
+        @Override
+        VersionListing first(String bucketName, String prefix, String delimiter) {
+            return s3.listVersions(new ListVersionsRequest().withBucketName(bucketName).withPrefix(prefix)
+                    .withDelimiter(delimiter));
+        }
+
+        @Override
+        VersionListing next(VersionListing listing) {
+            return listing.isTruncated() ? s3.listNextBatchOfVersions(listing) : null;
+        }
+
+        @Override
+        List<String> commonPrefixes(VersionListing listing) {
+            return listing.getCommonPrefixes();
+        }
+
+        @Override
+        List<KeyVersion> keys(VersionListing listing) {
+            List<KeyVersion> keys = new ArrayList<KeyVersion>(listing.getVersionSummaries().size());
+            for (S3VersionSummary versionSummary : listing.getVersionSummaries()) {
+                keys.add(new KeyVersion(versionSummary.getKey(), versionSummary.getVersionId()));
+            }
+            return keys;
+        }
+    };
+
+    @Autowired
+    public BucketEmptier(@Qualifier("bulk") AmazonS3 s3, @Value("${BUCKET_EMPTYING_CONCURRENCY:8}") int concurrency,
+            @Value("${BUCKET_EMPTYING_PREFETCH_PAGES:16}") int prefetchPages) {
+        this.s3 = s3;
+        this.prefetchPages = prefetchPages;
+        this.listers = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                .setNameFormat("bucket-lister-%d").setDaemon(true).build());
+        this.deleters = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                .setNameFormat("bucket-deleter-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        listers.shutdownNow();
+        deleters.shutdownNow();
+    }
+
+    public DeletionStats empty(String bucketName) {
+        DeletionStats stats = new DeletionStats();
+        new Pipeline<ObjectListing>(bucketName, objects, stats).run();
+        new Pipeline<VersionListing>(bucketName, versions, stats).run();
+        logger.info("Emptied bucket '{}': {}", bucketName, stats);
+        return stats;
+    }
+
+    /**
+     * How to list one kind of entry in a bucket.
+     */
+    private abstract static class Phase<L> {
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        abstract L first(String bucketName, String prefix, String delimiter);
+
+        /**
+         * @return the next page, or null after the last page
+         */
+        abstract L next(L listing);
+
+        abstract List<String> commonPrefixes(L listing);
+
+        abstract List<KeyVersion> keys(L listing);
+    }
+
+    /**
+     * One phase of emptying a bucket. Listing and delete tasks run on the
+     * shared executors. A listing task waits for one of the run's
+     * {@code BUCKET_EMPTYING_PREFETCH_PAGES} permits before handing a page to
+     * the deleters, and the delete task returns the permit. Delete tasks never
+     * wait on listing, so runs sharing the executors can't block each other.
+     */
+    private class Pipeline<L> {
+        private final String bucketName;
+        private final Phase<L> phase;
+        private final DeletionStats stats;
+        private final Semaphore permits = new Semaphore(prefetchPages);
+        // pages handed to the deleters and not yet started, and not yet finished
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger activeProducers = new AtomicInteger();
+        private final AtomicInteger activeTasks = new AtomicInteger();
+        // when the deleters last ran out of pages while listing went on, 0 while they have pages
+        private final AtomicLong idleSince = new AtomicLong(System.nanoTime());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final Set<String> prefixes = new HashSet<String>();
+
+        Pipeline(String bucketName, Phase<L> phase, DeletionStats stats) {
+            this.bucketName = bucketName;
+            this.phase = phase;
+            this.stats = stats;
+        }
+
+        void run() {
+            logger.info("Deleting all {} from bucket '{}'", phase.name, bucketName);
+            startProducer("", DELIMITER);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+            if (failure.get() != null) {
+                Throwable cause = failure.get();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Failed to empty bucket " + bucketName, cause);
+            }
+            logger.debug("Deleted all {} from bucket '{}' using {} prefix partitions", phase.name, bucketName,
+                    prefixes.size());
+        }
+
+        /**
+         * Lists one partition: the top-level keys when a delimiter is given,
+         * otherwise every key under the prefix.
+         */
+        private void startProducer(final String prefix, final String delimiter) {
+            activeProducers.incrementAndGet();
+            execute(listers, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (L page = phase.first(bucketName, prefix, delimiter); page != null
+                                && failure.get() == null; page = phase.next(page)) {
+                            if (delimiter != null) {
+                                for (String commonPrefix : phase.commonPrefixes(page)) {
+                                    if (prefixes.add(commonPrefix)) {
+                                        startProducer(commonPrefix, null);
+                                    }
+                                }
+                            }
+                            List<KeyVersion> keys = phase.keys(page);
+                            if (!keys.isEmpty()) {
+                                delete(keys);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail(e);
+                    } catch (Throwable t) {
+                        fail(t);
+                    } finally {
+                        if (activeProducers.decrementAndGet() == 0) {
+                            recordConsumerStall();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void delete(final List<KeyVersion> keys) throws InterruptedException {
+            if (!permits.tryAcquire()) {
+                long start = System.nanoTime();
+                permits.acquire();
+                stats.producerStalled(System.nanoTime() - start);
+            }
+            recordConsumerStall();
+            outstanding.incrementAndGet();
+            stats.queueDepth(queued.incrementAndGet());
+            boolean accepted = execute(deleters, new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    try {
+                        if (failure.get() == null) {
+                            deleteKeys(bucketName, keys, stats);
+                        }
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    } finally {
+                        pageDone();
+                    }
+                }
+            });
+            if (!accepted) {
+                // the run has failed, give back what the task would have so other listers don't wait for it
+                queued.decrementAndGet();
+                pageDone();
+            }
+        }
+
+        private void pageDone() {
+            permits.release();
+            if (outstanding.decrementAndGet() == 0 && activeProducers.get() > 0) {
+                idleSince.compareAndSet(0, System.nanoTime());
+            }
+        }
+
+        private void recordConsumerStall() {
+            long since = idleSince.getAndSet(0);
+            if (since != 0) {
+                stats.consumerStalled(System.nanoTime() - since);
+            }
+        }
+
+        /**
+         * Runs the task on the executor and completes the run once no task of
+         * it is left. A rejected task fails the run.
+         *
+         * @return whether the executor accepted the task
+         */
+        private boolean execute(ExecutorService executor, final Runnable task) {
+            activeTasks.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            taskDone();
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                fail(e);
+                taskDone();
+                return false;
+            }
+        }
+
+        private void taskDone() {
+            if (activeTasks.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        private void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    /**
+     * Deletes the keys with DeleteObjects requests of at most
+     * {@link #MAX_KEYS_PER_DELETE} keys. Keys reported in the error list of a
+     * partially failed request are retried with backoff.
+     */
+    void deleteKeys(String bucketName, List<KeyVersion> keys, DeletionStats stats) {
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_DELETE) {
+            List<KeyVersion> batch = keys.subList(from, Math.min(from + MAX_KEYS_PER_DELETE, keys.size()));
+            deleteBatch(bucketName, batch, stats);
+        }
+    }
+
+    private void deleteBatch(String bucketName, List<KeyVersion> batch, DeletionStats stats) {
+        List<KeyVersion> pending = batch;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName).withKeys(pending).withQuiet(true);
+            stats.requestIssued();
+            try {
+                s3.deleteObjects(request);
+                stats.objectsDeleted(pending.size());
+                return;
+            } catch (MultiObjectDeleteException e) {
+                List<DeleteError> errors = e.getErrors();
+                stats.objectsDeleted(pending.size() - errors.size());
+                if (attempt >= MAX_DELETE_ATTEMPTS) {
+                    logger.error("Giving up on {} keys in bucket '{}' after {} attempts, first error: {} {}",
+                            errors.size(), bucketName, attempt, errors.get(0).getCode(), errors.get(0).getMessage());
+                    throw e;
+                }
+                logger.warn("{} of {} keys could not be deleted from bucket '{}', retrying", errors.size(),
+                        pending.size(), bucketName);
+                pending = new ArrayList<KeyVersion>(errors.size());
+                for (DeleteError error : errors) {
+                    pending.add(new KeyVersion(error.getKey(), error.getVersionId()));
+                }
+                stats.keysRetried(pending.size());
+                backOff(attempt);
+            }
+        }
+    }
+
+    private void backOff(int attempt) {
+        try {
+            Thread.sleep(RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying deletes", e);
+        }
+    }
+}
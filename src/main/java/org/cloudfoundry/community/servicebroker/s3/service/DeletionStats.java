@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a single run of emptying a bucket. Safe to update from multiple
+ * threads.
+ */
+public class DeletionStats {
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong objectsDeleted = new AtomicLong();
+    private final AtomicLong requestsIssued = new AtomicLong();
+    private final AtomicLong keysRetried = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong producerStallNanos = new AtomicLong();
+    private final AtomicLong consumerStallNanos = new AtomicLong();
+
+    void requestIssued() {
+        requestsIssued.incrementAndGet();
+    }
+
+    void objectsDeleted(long count) {
+        objectsDeleted.addAndGet(count);
+    }
+
+    void keysRetried(long count) {
+        keysRetried.addAndGet(count);
+    }
+
+    void queueDepth(int depth) {
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    void producerStalled(long nanos) {
+        producerStallNanos.addAndGet(nanos);
+    }
+
+    void consumerStalled(long nanos) {
+        consumerStallNanos.addAndGet(nanos);
+    }
+
+    public long getObjectsDeleted() {
+        return objectsDeleted.get();
+    }
+
+    public long getRequestsIssued() {
+        return requestsIssued.get();
+    }
+
+    public long getKeysRetried() {
+        return keysRetried.get();
+    }
+
+    /**
+     * @return the largest number of listing pages observed waiting to be
+     *         deleted
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return total time listing threads waited for room in a full queue, which
+     *         means deletes are the bottleneck
+     */
+    public long getProducerStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(producerStallNanos.get());
+    }
+
+    /**
+     * @return total time delete threads waited on an empty queue, which means
+     *         listing is the bottleneck
+     */
+    public long getConsumerStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(consumerStallNanos.get());
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public double getObjectsPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : getObjectsDeleted() * 1000d / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d objects deleted with %d requests (%d keys retried) in %d ms, %.1f objects/s, "
+                + "max queue depth %d, listing stalled %d ms, deletes stalled %d ms", getObjectsDeleted(),
+                getRequestsIssued(), getKeysRetried(), getElapsedMillis(), getObjectsPerSecond(), getMaxQueueDepth(),
+                getProducerStallMillis(), getConsumerStallMillis());
+    }
+}
@@ -23,10 +23,25 @@ import org.springframework.beans.factory.annotation.Value;
 
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
 import com.amazonaws.services.identitymanagement.model.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class Iam {
     private static final Logger logger = LoggerFactory.getLogger(Iam.class);
 
+    /**
+     * User tag naming the bucket a user of the shared access model may use.
+     * The shared bucket policy refers to it as
+     * {@code ${aws:PrincipalTag/cloud-foundry-bucket}}.
+     */
+    public static final String BUCKET_TAG = "cloud-foundry-bucket";
+
+    private static final int MAX_POLICY_VERSIONS = 5;
+
     private final AmazonIdentityManagement iam;
     private final BucketGroupPolicy bucketGroupPolicy;
 
@@ -99,17 +114,92 @@ public abstract class Iam {
         return result.getGroup();
     }
 
-    public void applyGroupPolicy(String groupName, String policyName, String bucketName) {
+    public void applyGroupPolicy(String groupName, String policyName, String planId, String instanceId,
+            String bucketName) {
         // https://forums.aws.amazon.com/message.jspa?messageID=356160
         PutGroupPolicyRequest request = new PutGroupPolicyRequest();
-        logger.info("Putting policy document on group '{}': {}", groupName,
-                bucketGroupPolicy.policyDocumentForBucket(bucketName));
+        String policyDocument = bucketGroupPolicy.policyDocument(planId, instanceId, bucketName);
+        logger.info("Putting policy document on group '{}': {}", groupName, policyDocument);
         request.setGroupName(groupName);
         request.setPolicyName(policyName);
-        request.setPolicyDocument(bucketGroupPolicy.policyDocumentForBucket(bucketName));
+        request.setPolicyDocument(policyDocument);
         iam.putGroupPolicy(request);
     }
 
+    /**
+     * Creates the managed policy, or makes the document the default version of
+     * the existing policy if it differs. IAM keeps at most five versions of a
+     * policy, so the oldest non-default version is deleted to make room.
+     *
+     * @return the ARN of the policy
+     */
+    public String putManagedPolicy(String policyName, String path, String policyDocument) {
+        try {
+            CreatePolicyRequest request = new CreatePolicyRequest().withPolicyName(policyName).withPath(path)
+                    .withPolicyDocument(policyDocument);
+            Policy policy = iam.createPolicy(request).getPolicy();
+            logger.info("Created managed policy '{}': {}", policyName, policyDocument);
+            return policy.getArn();
+        } catch (EntityAlreadyExistsException e) {
+            logger.debug("Managed policy '{}' already exists", policyName);
+        }
+        Policy policy = findManagedPolicy(policyName, path);
+        GetPolicyVersionRequest getRequest = new GetPolicyVersionRequest().withPolicyArn(policy.getArn())
+                .withVersionId(policy.getDefaultVersionId());
+        if (sameDocument(iam.getPolicyVersion(getRequest).getPolicyVersion().getDocument(), policyDocument)) {
+            return policy.getArn();
+        }
+        List<PolicyVersion> versions = iam.listPolicyVersions(
+                new ListPolicyVersionsRequest().withPolicyArn(policy.getArn())).getVersions();
+        if (versions.size() >= MAX_POLICY_VERSIONS) {
+            PolicyVersion oldest = null;
+            for (PolicyVersion version : versions) {
+                if (!Boolean.TRUE.equals(version.isDefaultVersion())
+                        && (oldest == null || version.getCreateDate().before(oldest.getCreateDate()))) {
+                    oldest = version;
+                }
+            }
+            iam.deletePolicyVersion(new DeletePolicyVersionRequest().withPolicyArn(policy.getArn())
+                    .withVersionId(oldest.getVersionId()));
+        }
+        logger.info("Updating managed policy '{}': {}", policyName, policyDocument);
+        iam.createPolicyVersion(new CreatePolicyVersionRequest().withPolicyArn(policy.getArn())
+                .withPolicyDocument(policyDocument).withSetAsDefault(true));
+        return policy.getArn();
+    }
+
+    private Policy findManagedPolicy(String policyName, String path) {
+        ListPoliciesRequest request = new ListPoliciesRequest().withScope("Local").withPathPrefix(path);
+        ListPoliciesResult result;
+        do {
+            result = iam.listPolicies(request);
+            for (Policy policy : result.getPolicies()) {
+                if (policy.getPolicyName().equals(policyName)) {
+                    return policy;
+                }
+            }
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        throw new IllegalStateException("Managed policy '" + policyName + "' exists but is not under path " + path);
+    }
+
+    /**
+     * IAM returns policy documents URL encoded and may reformat them.
+     */
+    private static boolean sameDocument(String encoded, String policyDocument) {
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            return mapper.readTree(URLDecoder.decode(encoded, "UTF-8")).equals(mapper.readTree(policyDocument));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void attachGroupPolicy(String groupName, String policyArn) {
+        logger.info("Attaching policy '{}' to group '{}'", policyArn, groupName);
+        iam.attachGroupPolicy(new AttachGroupPolicyRequest().withGroupName(groupName).withPolicyArn(policyArn));
+    }
+
     public void deleteGroupPolicy(String groupName, String policyName) {
         logger.info("Deleting policy document for group '{}'", groupName);
         DeleteGroupPolicyRequest request = new DeleteGroupPolicyRequest(groupName, policyName);
@@ -122,11 +212,145 @@ public abstract class Iam {
     }
 
     public User createUser(String userName) {
-        CreateUserRequest request = new CreateUserRequest(userName).withPath(userPath);
+        return createUser(userName, userPath);
+    }
+
+    public User createUser(String userName, String path) {
+        CreateUserRequest request = new CreateUserRequest(userName).withPath(path);
         CreateUserResult result = iam.createUser(request);
         return result.getUser();
     }
 
+    public User createUser(String userName, String path, Tag tag) {
+        CreateUserRequest request = new CreateUserRequest(userName).withPath(path).withTags(tag);
+        CreateUserResult result = iam.createUser(request);
+        return result.getUser();
+    }
+
+    public void tagUser(String userName, Tag tag) {
+        logger.info("Tagging user '{}' with {}={}", userName, tag.getKey(), tag.getValue());
+        iam.tagUser(new TagUserRequest().withUserName(userName).withTags(tag));
+    }
+
+    public boolean userExists(String userName) {
+        try {
+            iam.getUser(new GetUserRequest().withUserName(userName));
+            return true;
+        } catch (NoSuchEntityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Renames the user and moves it to a new path. Access keys and group
+     * memberships stay with the user.
+     */
+    public User renameUser(User user, String newUserName, String newPath) {
+        logger.info("Renaming user '{}' to '{}'", user.getUserName(), newUserName);
+        UpdateUserRequest request = new UpdateUserRequest(user.getUserName()).withNewUserName(newUserName)
+                .withNewPath(newPath);
+        iam.updateUser(request);
+        return new User().withUserName(newUserName).withPath(newPath).withUserId(user.getUserId())
+                .withArn(user.getArn()).withCreateDate(user.getCreateDate());
+    }
+
+    public List<User> listUsers(String pathPrefix) {
+        List<User> users = new ArrayList<User>();
+        ListUsersRequest request = new ListUsersRequest().withPathPrefix(pathPrefix);
+        ListUsersResult result;
+        do {
+            result = iam.listUsers(request);
+            users.addAll(result.getUsers());
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return users;
+    }
+
+    public List<Group> listGroups(String pathPrefix) {
+        List<Group> groups = new ArrayList<Group>();
+        ListGroupsRequest request = new ListGroupsRequest().withPathPrefix(pathPrefix);
+        ListGroupsResult result;
+        do {
+            result = iam.listGroups(request);
+            groups.addAll(result.getGroups());
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return groups;
+    }
+
+    /**
+     * @throws NoSuchEntityException
+     *             if there is no such group
+     */
+    public List<String> listUserNamesInGroup(String groupName) {
+        List<String> userNames = new ArrayList<String>();
+        GetGroupRequest request = new GetGroupRequest(groupName);
+        GetGroupResult result;
+        do {
+            result = iam.getGroup(request);
+            for (User user : result.getUsers()) {
+                userNames.add(user.getUserName());
+            }
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return userNames;
+    }
+
+    public boolean groupExists(String groupName) {
+        try {
+            iam.getGroup(new GetGroupRequest(groupName).withMaxItems(1));
+            return true;
+        } catch (NoSuchEntityException e) {
+            return false;
+        }
+    }
+
+    public List<String> listGroupNamesForUser(String userName) {
+        List<String> groupNames = new ArrayList<String>();
+        ListGroupsForUserRequest request = new ListGroupsForUserRequest().withUserName(userName);
+        ListGroupsForUserResult result;
+        do {
+            result = iam.listGroupsForUser(request);
+            for (Group group : result.getGroups()) {
+                groupNames.add(group.getGroupName());
+            }
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return groupNames;
+    }
+
+    public List<String> listAccessKeyIds(String userName) {
+        List<String> accessKeyIds = new ArrayList<String>();
+        ListAccessKeysRequest request = new ListAccessKeysRequest().withUserName(userName);
+        ListAccessKeysResult result;
+        do {
+            result = iam.listAccessKeys(request);
+            for (AccessKeyMetadata keyMeta : result.getAccessKeyMetadata()) {
+                accessKeyIds.add(keyMeta.getAccessKeyId());
+            }
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return accessKeyIds;
+    }
+
+    /**
+     * @return the value of the user's tag, or null if it has no such tag
+     */
+    public String getUserTag(String userName, String key) {
+        ListUserTagsRequest request = new ListUserTagsRequest().withUserName(userName);
+        ListUserTagsResult result;
+        do {
+            result = iam.listUserTags(request);
+            for (Tag tag : result.getTags()) {
+                if (tag.getKey().equals(key)) {
+                    return tag.getValue();
+                }
+            }
+            request.setMarker(result.getMarker());
+        } while (Boolean.TRUE.equals(result.isTruncated()));
+        return null;
+    }
+
     /**
      * The user must not be a member of any groups or have any access keys.
      *
@@ -139,21 +363,19 @@ public abstract class Iam {
 
     public void removeUserFromGroup(String userName, String groupName) {
         logger.info("Removing user '{}' from group '{}'", userName, groupName);
-        // iam.listGroupsForUser(listGroupsForUserRequest)
         RemoveUserFromGroupRequest removeUserFromGroupRequest = new RemoveUserFromGroupRequest(groupName, userName);
         iam.removeUserFromGroup(removeUserFromGroupRequest);
     }
 
+    public void deleteAccessKey(String userName, String accessKeyId) {
+        logger.info("Deleting access key '{}' of user '{}'", accessKeyId, userName);
+        iam.deleteAccessKey(new DeleteAccessKeyRequest(userName, accessKeyId));
+    }
+
     public void deleteUserAccessKeys(String userName) {
         logger.info("Deleting all access keys for user '{}'", userName);
-        ListAccessKeysRequest accessKeysRequest = new ListAccessKeysRequest();
-        accessKeysRequest.setUserName(userName);
-        ListAccessKeysResult accessKeysResult = iam.listAccessKeys(accessKeysRequest);
-        for (AccessKeyMetadata keyMeta : accessKeysResult.getAccessKeyMetadata()) {
-            DeleteAccessKeyRequest request = new DeleteAccessKeyRequest(userName, keyMeta.getAccessKeyId());
-            iam.deleteAccessKey(request);
+        for (String accessKeyId : listAccessKeyIds(userName)) {
+            iam.deleteAccessKey(new DeleteAccessKeyRequest(userName, accessKeyId));
         }
-        // ListAccessKeysResult has truncation in it but there doesn't seem to
-        // be a way to use it
     }
 }
@@ -15,7 +15,21 @@
  */
 package org.cloudfoundry.community.servicebroker.s3.service;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PreDestroy;
 
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
@@ -26,15 +40,20 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Rule;
 import com.amazonaws.services.s3.model.BucketTaggingConfiguration;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
 import com.amazonaws.services.s3.model.Region;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.model.S3VersionSummary;
 import com.amazonaws.services.s3.model.TagSet;
 import com.amazonaws.services.s3.model.VersionListing;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * @author David Ehringer
@@ -44,114 +63,411 @@ public class S3 {
 
     private static final Logger logger = LoggerFactory.getLogger(S3.class);
 
+    private static final String EXPIRATION_RULE_ID = "cloud-foundry-deprovision";
+    private static final String DEPROVISIONING_TAG = "deprovisioning";
+    private static final String BINDING_TAG_PREFIX = "binding:";
+    private static final int MAX_TAG_UPDATE_ATTEMPTS = 3;
+
     private final AmazonS3 s3;
+    private final BucketEmptier bucketEmptier;
+    private final ServiceInstanceRegistry registry;
+    private final ServiceInstanceIndex index;
     private final String bucketNamePrefix;
     private final String region;
+    private final ExecutorService scanExecutor;
+    private final ConcurrentMap<String, FutureTask<ServiceInstance>> lookups =
+            new ConcurrentHashMap<String, FutureTask<ServiceInstance>>();
+    // serializes this broker's tag updates per bucket
+    private final Striped<Lock> tagLocks = Striped.lock(64);
 
     @Autowired
-    public S3(AmazonS3 s3, @Value("${BUCKET_NAME_PREFIX:cloud-foundry-}") String bucketNamePrefix, @Value("${AWS_REGION:US}") String region) {
+    public S3(AmazonS3 s3, BucketEmptier bucketEmptier, ServiceInstanceRegistry registry,
+            ServiceInstanceIndex index, @Value("${BUCKET_NAME_PREFIX:cloud-foundry-}") String bucketNamePrefix, @Value("${AWS_REGION:US}") String region,
+            @Value("${INSTANCE_SCAN_CONCURRENCY:8}") int scanConcurrency) {
         this.s3 = s3;
+        this.bucketEmptier = bucketEmptier;
+        this.registry = registry;
+        this.index = index;
         this.bucketNamePrefix = bucketNamePrefix;
         this.region = region;
+        this.scanExecutor = Executors.newFixedThreadPool(scanConcurrency, new ThreadFactoryBuilder()
+                .setNameFormat("instance-scan-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scanExecutor.shutdownNow();
     }
 
     public Bucket createBucketForInstance(String instanceId, ServiceDefinition service, String planId,
             String organizationGuid, String spaceGuid) {
         String bucketName = getBucketNameForInstance(instanceId);
         logger.info("Creating bucket '{}' for serviceInstanceId '{}'", bucketName, instanceId);
+        registry.clearAbsent(instanceId);
         Bucket bucket = s3.createBucket(bucketName, Region.fromValue(region));
 
         // TODO allow for additional, custom tagging options
-        BucketTaggingConfiguration bucketTaggingConfiguration = new BucketTaggingConfiguration();
-        TagSet tagSet = new TagSet();
-        tagSet.setTag("serviceInstanceId", instanceId);
-        tagSet.setTag("serviceDefinitionId", service.getId());
-        tagSet.setTag("planId", planId);
-        tagSet.setTag("organizationGuid", organizationGuid);
-        tagSet.setTag("spaceGuid", spaceGuid);
-        bucketTaggingConfiguration.withTagSets(tagSet);
-        s3.setBucketTaggingConfiguration(bucket.getName(), bucketTaggingConfiguration);
+        ServiceInstance serviceInstance = new ServiceInstance(instanceId, service.getId(), planId, organizationGuid,
+                spaceGuid, null);
+        s3.setBucketTaggingConfiguration(bucket.getName(),
+                new BucketTaggingConfiguration().withTagSets(tagSet(serviceInstance)));
+        registry.put(serviceInstance);
+        index.put(serviceInstance, bucketName);
 
         return bucket;
     }
 
+    /**
+     * Tags the bucket of an instance whose deprovisioning has started, so the
+     * instance is reported as missing while the bucket is still being
+     * emptied, also after a restart or by another broker instance.
+     */
+    public void markDeprovisioning(ServiceInstance serviceInstance) {
+        String bucketName = getBucketNameForInstance(serviceInstance.getId());
+        TagSet tagSet = tagSet(serviceInstance);
+        tagSet.setTag(DEPROVISIONING_TAG, "true");
+        s3.setBucketTaggingConfiguration(bucketName, new BucketTaggingConfiguration().withTagSets(tagSet));
+        registry.remove(serviceInstance.getId());
+        registry.markAbsent(serviceInstance.getId());
+        index.remove(serviceInstance.getId());
+    }
+
+    /**
+     * Reads the bucket tags from S3, bypassing the registry.
+     * 
+     * @return the instance if its bucket was marked with
+     *         {@link #markDeprovisioning(ServiceInstance)}, otherwise null
+     */
+    public ServiceInstance findDeprovisioningServiceInstance(String instanceId) {
+        String bucketName = getBucketNameForInstance(instanceId);
+        if (!s3.doesBucketExist(bucketName)) {
+            return null;
+        }
+        BucketTaggingConfiguration taggingConfiguration = s3.getBucketTaggingConfiguration(bucketName);
+        if (taggingConfiguration == null || taggingConfiguration.getAllTagSets().isEmpty()
+                || taggingConfiguration.getTagSet().getTag(DEPROVISIONING_TAG) == null) {
+            return null;
+        }
+        return createServiceInstance(taggingConfiguration.getTagSet());
+    }
+
+    /**
+     * Tags the instance's bucket with a value for one of its bindings.
+     */
+    public void tagBinding(String instanceId, String bindingId, String value) {
+        updateTag(getBucketNameForInstance(instanceId), BINDING_TAG_PREFIX + bindingId, value);
+    }
+
+    /**
+     * Removes the tag of a binding from the instance's bucket.
+     * 
+     * @return whether the bucket had a tag for the binding
+     */
+    public boolean untagBinding(String instanceId, String bindingId) {
+        String bucketName = getBucketNameForInstance(instanceId);
+        if (readTags(bucketName).get(BINDING_TAG_PREFIX + bindingId) == null) {
+            return false;
+        }
+        updateTag(bucketName, BINDING_TAG_PREFIX + bindingId, null);
+        return true;
+    }
+
+    /**
+     * Reads the bucket tags from S3, bypassing the registry.
+     * 
+     * @return the value the binding was tagged with, or null if the bucket
+     *         has no tag for it or doesn't exist
+     */
+    public String getBindingTag(String instanceId, String bindingId) {
+        return readTags(getBucketNameForInstance(instanceId)).get(BINDING_TAG_PREFIX + bindingId);
+    }
+
+    /**
+     * Sets or, with a null value, removes one tag. S3 replaces the tag set as a
+     * whole, so the tags are read back and the update is repeated if a
+     * concurrent update from another broker instance undid it.
+     */
+    private void updateTag(String bucketName, String key, String value) {
+        Lock lock = tagLocks.get(bucketName);
+        lock.lock();
+        try {
+            for (int attempt = 1;; attempt++) {
+                Map<String, String> tags = readTags(bucketName);
+                if (value == null) {
+                    tags.remove(key);
+                } else {
+                    tags.put(key, value);
+                }
+                s3.setBucketTaggingConfiguration(bucketName,
+                        new BucketTaggingConfiguration().withTagSets(new TagSet(tags)));
+                String current = readTags(bucketName).get(key);
+                if (value == null ? current == null : value.equals(current)) {
+                    return;
+                }
+                if (attempt >= MAX_TAG_UPDATE_ATTEMPTS) {
+                    throw new IllegalStateException("Tag '" + key + "' of bucket " + bucketName
+                            + " kept being overwritten by concurrent updates");
+                }
+                logger.warn("A concurrent update of the tags of bucket '{}' undid tag '{}', retrying", bucketName,
+                        key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the bucket's tags, empty if the bucket has none or
+     *         doesn't exist
+     */
+    private Map<String, String> readTags(String bucketName) {
+        BucketTaggingConfiguration taggingConfiguration;
+        try {
+            taggingConfiguration = s3.getBucketTaggingConfiguration(bucketName);
+        } catch (AmazonS3Exception e) {
+            if (!"NoSuchBucket".equals(e.getErrorCode())) {
+                throw e;
+            }
+            return new HashMap<String, String>();
+        }
+        if (taggingConfiguration == null || taggingConfiguration.getAllTagSets().isEmpty()) {
+            return new HashMap<String, String>();
+        }
+        return new HashMap<String, String>(taggingConfiguration.getTagSet().getAllTags());
+    }
+
+    private static TagSet tagSet(ServiceInstance serviceInstance) {
+        TagSet tagSet = new TagSet();
+        tagSet.setTag("serviceInstanceId", serviceInstance.getId());
+        tagSet.setTag("serviceDefinitionId", serviceInstance.getServiceDefinitionId());
+        tagSet.setTag("planId", serviceInstance.getPlanId());
+        tagSet.setTag("organizationGuid", serviceInstance.getOrganizationGuid());
+        tagSet.setTag("spaceGuid", serviceInstance.getSpaceGuid());
+        return tagSet;
+    }
+
     public void deleteBucket(String id) {
         String bucketName = getBucketNameForInstance(id);
         logger.info("Deleting bucket '{}' for serviceInstanceId '{}'", bucketName, id);
         s3.deleteBucket(bucketName);
+        registry.remove(id);
+        index.remove(id);
     }
 
     /**
      * Deletes all objects and all object versions in the bucket.
      * 
      * @param id
+     * @return counters for the run
      */
-    public void emptyBucket(String id) {
-        String bucketName = getBucketNameForInstance(id);
-        deleteAllObjects(bucketName);
-        deleteAllVersions(bucketName);
+    public DeletionStats emptyBucket(String id) {
+        return bucketEmptier.empty(getBucketNameForInstance(id));
     }
 
-    private void deleteAllObjects(String bucketName) {
-        logger.info("Deleting all objects from bucket '{}'", bucketName);
-        ObjectListing objectList = s3.listObjects(bucketName);
-        delete(objectList);
-        while (objectList.isTruncated()) {
-            objectList = s3.listNextBatchOfObjects(objectList);
-            delete(objectList);
+    /**
+     * Counts the object versions in the bucket, noncurrent versions and delete
+     * markers included since each one takes a delete, stopping as soon as the
+     * threshold is exceeded.
+     */
+    public boolean hasMoreObjectsThan(String id, int threshold) {
+        String bucketName = getBucketNameForInstance(id);
+        VersionListing versionListing = s3.listVersions(new ListVersionsRequest().withBucketName(bucketName));
+        int count = versionListing.getVersionSummaries().size();
+        while (count <= threshold && versionListing.isTruncated()) {
+            versionListing = s3.listNextBatchOfVersions(versionListing);
+            count += versionListing.getVersionSummaries().size();
         }
+        return count > threshold;
     }
 
-    private void delete(ObjectListing objectList) {
-        for (S3ObjectSummary objectSummary : objectList.getObjectSummaries()) {
-            s3.deleteObject(objectSummary.getBucketName(), objectSummary.getKey());
-        }
+    /**
+     * Replaces the lifecycle configuration of the bucket with rules that
+     * expire every object and noncurrent version, and then the delete markers
+     * left without a version, so that S3 removes them server side. S3 doesn't
+     * allow both expirations in one rule.
+     */
+    public void expireAllObjects(String id) {
+        String bucketName = getBucketNameForInstance(id);
+        logger.info("Applying expiration lifecycle rule to bucket '{}' for serviceInstanceId '{}'", bucketName, id);
+        Rule expireAll = new Rule().withId(EXPIRATION_RULE_ID).withPrefix("").withExpirationInDays(1)
+                .withNoncurrentVersionExpirationInDays(1).withStatus(BucketLifecycleConfiguration.ENABLED);
+        Rule expireDeleteMarkers = new Rule().withId(EXPIRATION_RULE_ID + "-delete-markers").withPrefix("")
+                .withExpiredObjectDeleteMarker(true).withStatus(BucketLifecycleConfiguration.ENABLED);
+        s3.setBucketLifecycleConfiguration(bucketName, new BucketLifecycleConfiguration(Arrays.asList(expireAll,
+                expireDeleteMarkers)));
     }
 
-    private void deleteAllVersions(String bucketName) {
-        logger.info("Deleting all object versions from bucket '{}'", bucketName);
-        VersionListing versionListing = s3.listVersions(bucketName, null);
-        delete(versionListing);
-        while (versionListing.isTruncated()) {
-            versionListing = s3.listNextBatchOfVersions(versionListing);
-            delete(versionListing);
+    public String getBucketNameForInstance(String instanceId) {
+        return bucketNamePrefix + instanceId;
+    }
+
+    /**
+     * @return the instance the bucket belongs to, or null if the broker didn't
+     *         create the bucket
+     */
+    public String getInstanceIdForBucket(String bucketName) {
+        return bucketName.startsWith(bucketNamePrefix) ? bucketName.substring(bucketNamePrefix.length()) : null;
+    }
+
+    /**
+     * @return the instances of all buckets named with the configured prefix,
+     *         without reading their tags
+     */
+    public List<String> listInstanceIds() {
+        List<String> instanceIds = Lists.newArrayList();
+        for (Bucket bucket : s3.listBuckets()) {
+            String instanceId = getInstanceIdForBucket(bucket.getName());
+            if (instanceId != null) {
+                instanceIds.add(instanceId);
+            }
         }
+        return instanceIds;
     }
 
-    private void delete(VersionListing versionListing) {
-        for (S3VersionSummary versionSummary : versionListing.getVersionSummaries()) {
-            s3.deleteVersion(versionSummary.getBucketName(), versionSummary.getKey(), versionSummary.getVersionId());
+    public boolean hasBucketForInstance(String instanceId) {
+        return s3.doesBucketExist(getBucketNameForInstance(instanceId));
+    }
+
+    /**
+     * Reads the bucket tags from S3, bypassing the registry. Unlike
+     * {@link #findServiceInstance(String)} this also accepts a bucket that is
+     * being deprovisioned.
+     *
+     * @return whether the instance's bucket exists and is tagged as the
+     *         broker's bucket of that instance
+     */
+    public boolean isTaggedForInstance(String instanceId) {
+        String bucketName = getBucketNameForInstance(instanceId);
+        BucketTaggingConfiguration taggingConfiguration;
+        try {
+            taggingConfiguration = s3.getBucketTaggingConfiguration(bucketName);
+        } catch (AmazonS3Exception e) {
+            if (!"NoSuchBucket".equals(e.getErrorCode()) && !"AccessDenied".equals(e.getErrorCode())) {
+                throw e;
+            }
+            return false;
         }
+        return taggingConfiguration != null && !taggingConfiguration.getAllTagSets().isEmpty()
+                && instanceId.equals(taggingConfiguration.getTagSet().getTag("serviceInstanceId"));
     }
 
-    public String getBucketNameForInstance(String instanceId) {
-        return bucketNamePrefix + instanceId;
+    /**
+     * Looks the instance up in the registry and falls back to reading the
+     * bucket tags from S3. Instances that were recently found to be missing
+     * are reported as missing without asking S3 again, and concurrent lookups
+     * of the same instance share a single read from S3.
+     */
+    public ServiceInstance findServiceInstance(final String instanceId) {
+        ServiceInstance serviceInstance = registry.get(instanceId);
+        if (serviceInstance != null || registry.isKnownAbsent(instanceId)) {
+            return serviceInstance;
+        }
+        FutureTask<ServiceInstance> lookup = new FutureTask<ServiceInstance>(new Callable<ServiceInstance>() {
+            @Override
+            public ServiceInstance call() {
+                return loadServiceInstance(instanceId);
+            }
+        });
+        FutureTask<ServiceInstance> inFlight = lookups.putIfAbsent(instanceId, lookup);
+        if (inFlight == null) {
+            inFlight = lookup;
+            try {
+                lookup.run();
+            } finally {
+                lookups.remove(instanceId, lookup);
+            }
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(inFlight);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
     }
 
-    public ServiceInstance findServiceInstance(String instanceId) {
+    private ServiceInstance loadServiceInstance(String instanceId) {
+        ServiceInstance serviceInstance = null;
         String bucketName = getBucketNameForInstance(instanceId);
         if (s3.doesBucketExist(bucketName)) {
             BucketTaggingConfiguration taggingConfiguration = s3.getBucketTaggingConfiguration(bucketName);
-            return createServiceInstance(taggingConfiguration);
+            serviceInstance = createServiceInstance(taggingConfiguration);
         }
-        return null;
+        if (serviceInstance != null) {
+            registry.put(serviceInstance);
+        } else {
+            registry.markAbsent(instanceId);
+        }
+        return serviceInstance;
     }
 
+    /**
+     * Reads the tags of every bucket named with the configured prefix. Buckets
+     * with other names are skipped without a request and the remaining tag
+     * sets are fetched concurrently.
+     */
     public List<ServiceInstance> getAllServiceInstances() {
-        List<ServiceInstance> serviceInstances = Lists.newArrayList();
+        List<Future<ServiceInstance>> lookups = Lists.newArrayList();
         for (Bucket bucket : s3.listBuckets()) {
-            BucketTaggingConfiguration taggingConfiguration = s3.getBucketTaggingConfiguration(bucket.getName());
-            ServiceInstance serviceInstance = createServiceInstance(taggingConfiguration);
-            serviceInstances.add(serviceInstance);
+            final String bucketName = bucket.getName();
+            if (!bucketName.startsWith(bucketNamePrefix)) {
+                continue;
+            }
+            lookups.add(scanExecutor.submit(new Callable<ServiceInstance>() {
+                @Override
+                public ServiceInstance call() {
+                    return readServiceInstance(bucketName);
+                }
+            }));
+        }
+        List<ServiceInstance> serviceInstances = Lists.newArrayListWithCapacity(lookups.size());
+        try {
+            for (Future<ServiceInstance> lookup : lookups) {
+                ServiceInstance serviceInstance = Uninterruptibles.getUninterruptibly(lookup);
+                if (serviceInstance != null) {
+                    registry.put(serviceInstance);
+                    serviceInstances.add(serviceInstance);
+                }
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<ServiceInstance> lookup : lookups) {
+                lookup.cancel(true);
+            }
         }
         return serviceInstances;
     }
 
-    private ServiceInstance createServiceInstance(BucketTaggingConfiguration taggingConfiguration) {
+    private ServiceInstance readServiceInstance(String bucketName) {
+        try {
+            return createServiceInstance(s3.getBucketTaggingConfiguration(bucketName));
+        } catch (AmazonS3Exception e) {
+            // the bucket may have been deleted since it was listed or may not
+            // be readable by the broker, anything else fails the listing
+            if (!"NoSuchBucket".equals(e.getErrorCode()) && !"AccessDenied".equals(e.getErrorCode())) {
+                throw e;
+            }
+            logger.warn("Skipping bucket '{}': {}", bucketName, e.getMessage());
+            return null;
+        }
+    }
+
+    static ServiceInstance createServiceInstance(BucketTaggingConfiguration taggingConfiguration) {
+        if (taggingConfiguration == null || taggingConfiguration.getAllTagSets().isEmpty()) {
+            // the bucket has no tags
+            return null;
+        }
         // While the Java API has multiple TagSets, it would appear from
         // http://docs.aws.amazon.com/AmazonS3/latest/API/RESTBucketPUTtagging.html
         // that only one TagSet is supported.
         TagSet tagSet = taggingConfiguration.getTagSet();
+        if (tagSet.getTag(DEPROVISIONING_TAG) != null) {
+            // the bucket is being emptied and deleted
+            return null;
+        }
+        return createServiceInstance(tagSet);
+    }
+
+    private static ServiceInstance createServiceInstance(TagSet tagSet) {
         String serviceInstanceId = tagSet.getTag("serviceInstanceId");
         if (serviceInstanceId == null) {
             // could occur if someone used this broker AWS ID to a bucket
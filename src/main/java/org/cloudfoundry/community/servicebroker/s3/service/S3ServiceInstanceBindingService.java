@@ -51,6 +51,6 @@ public class S3ServiceInstanceBindingService implements ServiceInstanceBindingSe
 
     @Override
     public ServiceInstanceBinding getServiceInstanceBinding(String id) {
-        throw new IllegalStateException("Not implemented");
+        return plan.getServiceInstanceBinding(id);
     }
 }
@@ -21,6 +21,9 @@ import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceExistsException;
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.operation.AsyncOperations;
+import org.cloudfoundry.community.servicebroker.s3.operation.LastOperation;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationInProgressException;
 import org.cloudfoundry.community.servicebroker.s3.plan.Plan;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,10 +35,12 @@ import org.springframework.stereotype.Service;
 @Service
 public class S3ServiceInstanceService implements ServiceInstanceService {
     private final Plan plan;
+    private final AsyncOperations operations;
 
     @Autowired
-    public S3ServiceInstanceService(Plan plan) {
+    public S3ServiceInstanceService(Plan plan, AsyncOperations operations) {
         this.plan = plan;
+        this.operations = operations;
     }
 
     @Override
@@ -44,12 +49,67 @@ public class S3ServiceInstanceService implements ServiceInstanceService {
         return plan.createServiceInstance(service, serviceInstanceId, planId, organizationGuid, spaceGuid);
     }
 
+    /**
+     * Starts provisioning the instance in the background. Progress is reported
+     * through {@link #getLastOperation(String)}.
+     * 
+     * @throws OperationInProgressException
+     *             if another operation on the instance is in progress
+     */
+    public void createServiceInstanceAsync(ServiceDefinition service, String serviceInstanceId, String planId,
+            String organizationGuid, String spaceGuid) throws ServiceInstanceExistsException, ServiceBrokerException {
+        // checked before the bucket, which an in-progress provision may already have created
+        LastOperation current = operations.getLastOperation(serviceInstanceId);
+        if (current != null && !current.isComplete()) {
+            throw new OperationInProgressException(serviceInstanceId, current);
+        }
+        ServiceInstance existing = plan.getServiceInstance(serviceInstanceId);
+        if (existing != null) {
+            throw new ServiceInstanceExistsException(existing);
+        }
+        plan.createServiceInstanceAsync(service, serviceInstanceId, planId, organizationGuid, spaceGuid);
+    }
+
     @Override
     public ServiceInstance deleteServiceInstance(String id, String serviceId, String planId)
             throws ServiceBrokerException {
         return plan.deleteServiceInstance(id);
     }
 
+    /**
+     * Starts deprovisioning the instance in the background.
+     * 
+     * @throws OperationInProgressException
+     *             if another operation on the instance is in progress
+     */
+    public ServiceInstance deleteServiceInstanceAsync(String id, String serviceId, String planId)
+            throws ServiceBrokerException {
+        return plan.deleteServiceInstanceAsync(id);
+    }
+
+    public LastOperation getLastOperation(String id) {
+        return operations.getLastOperation(id);
+    }
+
+    /**
+     * Restarts a deprovision that a broker restart cut short, which leaves the
+     * instance's bucket behind without an operation to report.
+     * 
+     * @return the resumed deprovision, or null if no deprovision of the
+     *         instance was left unfinished
+     */
+    public LastOperation resumeDeprovision(String id) {
+        try {
+            if (plan.resumeDeprovision(id) == null) {
+                return null;
+            }
+        } catch (OperationInProgressException e) {
+            // a concurrent poll resumed it first
+            return e.getOperation();
+        }
+        return operations.getLastOperation(id);
+    }
+
     @Override
     public List<ServiceInstance> getAllServiceInstances() {
         return plan.getAllServiceInstances();
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Append-only local file of the service instances known to the broker, so a
+ * restarted broker can answer lookups before it has rescanned S3.
+ * <p>
+ * Each record is a one byte type followed by length-prefixed UTF-8 strings: the
+ * instance id, service definition id, plan id, organization, space and bucket
+ * name for a put, or only the instance id for a remove. The file is
+ * memory-mapped and replayed once on startup; a record torn by a crash is
+ * truncated away and the file is compacted when it holds more removed than
+ * live entries. Writes are not forced to disk, the index is a cache of state
+ * that lives in S3.
+ * <p>
+ * The index is disabled unless {@code INSTANCE_INDEX_FILE} is set.
+ */
+@Component
+public class ServiceInstanceIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceInstanceIndex.class);
+
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+    private static final Charset UTF_8 = Charsets.UTF_8;
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private FileChannel channel;
+    private int recordCount;
+
+    @Autowired
+    public ServiceInstanceIndex(@Value("${INSTANCE_INDEX_FILE:}") String path) throws IOException {
+        this.file = path.isEmpty() ? null : new File(path);
+        if (file != null) {
+            open();
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    public synchronized Collection<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized void put(ServiceInstance instance, String bucketName) {
+        if (!isEnabled()) {
+            return;
+        }
+        Entry entry = new Entry(instance, bucketName);
+        if (entry.equals(entries.get(instance.getId()))) {
+            return;
+        }
+        entries.put(instance.getId(), entry);
+        append(encode(PUT, entry.getFields()));
+    }
+
+    public synchronized void remove(String instanceId) {
+        if (!isEnabled() || entries.remove(instanceId) == null) {
+            return;
+        }
+        append(encode(REMOVE, Collections.singletonList(instanceId)));
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void open() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory for instance index " + parent);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long validLength = replay();
+        if (validLength < channel.size()) {
+            logger.warn("Truncating torn record at offset {} of instance index '{}'", validLength, file);
+            channel.truncate(validLength);
+        }
+        if (recordCount > 2 * entries.size() + 100) {
+            compact();
+        }
+        channel.position(channel.size());
+        logger.info("Loaded {} service instances from instance index '{}'", entries.size(), file);
+    }
+
+    private long replay() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int valid = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                if (type == PUT) {
+                    Entry entry = new Entry(readString(buffer), readString(buffer), readString(buffer),
+                            readString(buffer), readString(buffer), readString(buffer));
+                    entries.put(entry.getInstanceId(), entry);
+                } else if (type == REMOVE) {
+                    entries.remove(readString(buffer));
+                } else {
+                    break;
+                }
+                recordCount++;
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // torn final record
+        }
+        return valid;
+    }
+
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(0);
+            for (Entry entry : entries.values()) {
+                out.getChannel().write(encode(PUT, entry.getFields()));
+            }
+        } finally {
+            out.close();
+        }
+        channel.close();
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Could not replace instance index " + file + " with " + compacted);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        logger.info("Compacted instance index '{}' from {} to {} records", file, recordCount, entries.size());
+        recordCount = entries.size();
+    }
+
+    private void append(ByteBuffer record) {
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            recordCount++;
+        } catch (IOException e) {
+            // the index only speeds up restarts, S3 remains the source of truth
+            logger.error("Could not write to instance index '" + file + "'", e);
+        }
+    }
+
+    private static ByteBuffer encode(byte type, List<String> fields) {
+        List<byte[]> encoded = new ArrayList<byte[]>(fields.size());
+        int length = 1;
+        for (String field : fields) {
+            byte[] bytes = field == null ? null : field.getBytes(UTF_8);
+            encoded.add(bytes);
+            length += 2 + (bytes == null ? 0 : bytes.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(type);
+        for (byte[] bytes : encoded) {
+            if (bytes == null) {
+                buffer.putShort((short) -1);
+            } else {
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * A service instance and the name of its bucket.
+     */
+    public static class Entry {
+        private final String instanceId;
+        private final String serviceDefinitionId;
+        private final String planId;
+        private final String organizationGuid;
+        private final String spaceGuid;
+        private final String bucketName;
+
+        Entry(ServiceInstance instance, String bucketName) {
+            this(instance.getId(), instance.getServiceDefinitionId(), instance.getPlanId(),
+                    instance.getOrganizationGuid(), instance.getSpaceGuid(), bucketName);
+        }
+
+        Entry(String instanceId, String serviceDefinitionId, String planId, String organizationGuid,
+                String spaceGuid, String bucketName) {
+            this.instanceId = instanceId;
+            this.serviceDefinitionId = serviceDefinitionId;
+            this.planId = planId;
+            this.organizationGuid = organizationGuid;
+            this.spaceGuid = spaceGuid;
+            this.bucketName = bucketName;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public String getBucketName() {
+            return bucketName;
+        }
+
+        public ServiceInstance toServiceInstance() {
+            return new ServiceInstance(instanceId, serviceDefinitionId, planId, organizationGuid, spaceGuid, null);
+        }
+
+        private List<String> getFields() {
+            List<String> fields = new ArrayList<String>(6);
+            Collections.addAll(fields, instanceId, serviceDefinitionId, planId, organizationGuid, spaceGuid,
+                    bucketName);
+            return fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && getFields().equals(((Entry) o).getFields());
+        }
+
+        @Override
+        public int hashCode() {
+            return getFields().hashCode();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Warms the registry from the local instance index on startup and then brings
+ * the index in line with the buckets in S3 on a background thread.
+ * <p>
+ * An entry missing from the bucket listing is only removed if it was already
+ * indexed when the listing started and S3 confirms that its bucket doesn't
+ * exist, so instances created during the listing and buckets that merely
+ * couldn't be read are kept.
+ */
+@Component
+public class ServiceInstanceIndexReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceInstanceIndexReconciler.class);
+
+    private final ServiceInstanceIndex index;
+    private final ServiceInstanceRegistry registry;
+    private final S3 s3;
+
+    @Autowired
+    public ServiceInstanceIndexReconciler(ServiceInstanceIndex index, ServiceInstanceRegistry registry, S3 s3) {
+        this.index = index;
+        this.registry = registry;
+        this.s3 = s3;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!index.isEnabled()) {
+            return;
+        }
+        for (ServiceInstanceIndex.Entry entry : index.getEntries()) {
+            registry.put(entry.toServiceInstance());
+        }
+        Thread reconciler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, "instance-index-reconciler");
+        reconciler.setDaemon(true);
+        reconciler.start();
+    }
+
+    void reconcile() {
+        try {
+            List<ServiceInstanceIndex.Entry> indexed = new ArrayList<ServiceInstanceIndex.Entry>(index.getEntries());
+            List<ServiceInstance> instances = s3.getAllServiceInstances();
+            Set<String> instanceIds = new HashSet<String>();
+            for (ServiceInstance instance : instances) {
+                instanceIds.add(instance.getId());
+                index.put(instance, s3.getBucketNameForInstance(instance.getId()));
+            }
+            int removed = 0;
+            for (ServiceInstanceIndex.Entry entry : indexed) {
+                if (!instanceIds.contains(entry.getInstanceId()) && !s3.hasBucketForInstance(entry.getInstanceId())) {
+                    index.remove(entry.getInstanceId());
+                    registry.remove(entry.getInstanceId());
+                    removed++;
+                }
+            }
+            logger.info("Reconciled instance index with S3: {} instances, {} stale entries removed", instances.size(),
+                    removed);
+        } catch (RuntimeException e) {
+            logger.error("Could not reconcile instance index with S3", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Size-bounded cache of service instances keyed by instance id. Entries are
+ * written when a bucket is created or read from S3 and removed when the bucket
+ * is deleted, and expire after {@code INSTANCE_CACHE_TTL_SECONDS} so changes
+ * made outside the broker are eventually seen.
+ * <p>
+ * Instance ids that were looked up and not found are remembered for the
+ * shorter {@code INSTANCE_NEGATIVE_CACHE_TTL_SECONDS}, so repeated probes for
+ * missing instances don't each cost a round trip to S3.
+ */
+@Component
+public class ServiceInstanceRegistry {
+
+    private final Cache<String, ServiceInstance> instances;
+    private final Cache<String, Boolean> absent;
+
+    @Autowired
+    public ServiceInstanceRegistry(@Value("${INSTANCE_CACHE_SIZE:10000}") long maximumSize,
+            @Value("${INSTANCE_CACHE_TTL_SECONDS:300}") long ttlSeconds,
+            @Value("${INSTANCE_NEGATIVE_CACHE_TTL_SECONDS:30}") long negativeTtlSeconds) {
+        this.instances = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).recordStats().build();
+        this.absent = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS).recordStats().build();
+    }
+
+    /**
+     * @return the cached instance, or null on a miss
+     */
+    public ServiceInstance get(String instanceId) {
+        return instances.getIfPresent(instanceId);
+    }
+
+    public void put(ServiceInstance instance) {
+        absent.invalidate(instance.getId());
+        instances.put(instance.getId(), instance);
+    }
+
+    public void remove(String instanceId) {
+        instances.invalidate(instanceId);
+    }
+
+    /**
+     * @return true if the instance was recently looked up and not found
+     */
+    public boolean isKnownAbsent(String instanceId) {
+        return absent.getIfPresent(instanceId) != null;
+    }
+
+    public void markAbsent(String instanceId) {
+        absent.put(instanceId, Boolean.TRUE);
+    }
+
+    public void clearAbsent(String instanceId) {
+        absent.invalidate(instanceId);
+    }
+
+    /**
+     * @return hit, miss and eviction counts since startup
+     */
+    public CacheStats getStats() {
+        return instances.stats();
+    }
+
+    /**
+     * @return hit, miss and eviction counts of the cache of missing instances
+     */
+    public CacheStats getAbsentStats() {
+        return absent.stats();
+    }
+}
@@ -15,11 +15,13 @@
  */
 package org.cloudfoundry.community.servicebroker.s3;
 
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
 import com.amazonaws.services.identitymanagement.model.Group;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
@@ -56,7 +58,7 @@ public class S3ServiceBrokerV2IntegrationTests extends ServiceBrokerV2Integratio
     @Autowired
     private AmazonS3 s3;
     @Autowired
-    private AmazonIdentityManagementClient iam;
+    private AmazonIdentityManagement iam;
     @Autowired
     private AwsClientConfiguration awsClientConfiguration;
 
@@ -82,7 +84,10 @@ public class S3ServiceBrokerV2IntegrationTests extends ServiceBrokerV2Integratio
     }
 
     private void testBucketOperations(String accessKey, String secretKey, String bucketName) throws IOException {
-        AmazonS3Client instanceS3 = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey), awsClientConfiguration.toClientConfiguration());
+        AmazonS3 instanceS3 = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey)))
+                .withRegion(Regions.US_EAST_1).withForceGlobalBucketAccessEnabled(true)
+                .withClientConfiguration(awsClientConfiguration.toClientConfiguration()).build();
         assertTrue(instanceS3.doesBucketExist(bucketName));
         String objectName = "testObject";
         String objectContent = "Hello World!";
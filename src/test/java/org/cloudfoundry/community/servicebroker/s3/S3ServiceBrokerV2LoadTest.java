@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3;
+
+import com.jayway.restassured.http.ContentType;
+import com.jayway.restassured.response.Response;
+import org.apache.http.HttpStatus;
+import org.cloudfoundry.community.servicebroker.ServiceBrokerV2IntegrationTestBase;
+import org.cloudfoundry.community.servicebroker.s3.config.Application;
+import org.cloudfoundry.community.servicebroker.s3.config.InMemoryAwsConfiguration;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.restassured.RestAssured.given;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives the v2 endpoints of one broker with concurrent clients against the
+ * in-memory AWS stand-ins and reports throughput and latency percentiles per
+ * endpoint. The inherited cases run as a smoke test; the load run itself is
+ * skipped unless enabled with {@code -Dloadtest=true}:
+ *
+ * <pre>
+ * mvn test -Dtest=S3ServiceBrokerV2LoadTest -Dloadtest=true -Dloadtest.concurrency=32 \
+ *     -Dloadtest.mix=provision=1,bind=3,unbind=2,deprovision=1 -DIN_MEMORY_AWS_LATENCY=s3=20/80,iam=40/400
+ * </pre>
+ *
+ * Each client keeps its own instances and bindings and picks the next request
+ * from the weighted mix, falling back to a request that is possible in its
+ * state: a bind needs an instance, an unbind a binding and a deprovision an
+ * instance without bindings.
+ */
+@SpringApplicationConfiguration(classes = Application.class)
+@ActiveProfiles(InMemoryAwsConfiguration.PROFILE)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class S3ServiceBrokerV2LoadTest extends ServiceBrokerV2IntegrationTestBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3ServiceBrokerV2LoadTest.class);
+
+    private enum Endpoint {
+        PROVISION, BIND, UNBIND, DEPROVISION
+    }
+
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 16);
+    private final int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 5);
+    private final int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 30);
+    // the Cloud Controller gives up on a broker request after 60 seconds
+    private final int timeoutSeconds = Integer.getInteger("loadtest.timeoutSeconds", 60);
+    private final String mix = System.getProperty("loadtest.mix", "provision=1,bind=3,unbind=2,deprovision=1");
+
+    @Test
+    public void case6_sustainedLoad() throws Exception {
+        assumeTrue(Boolean.getBoolean("loadtest"));
+
+        final Map<Endpoint, Integer> weights = parseMix(mix);
+        final long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        List<Future<Map<Endpoint, Latencies>>> results = new ArrayList<Future<Map<Endpoint, Latencies>>>();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                final long seed = i;
+                results.add(clients.submit(new Callable<Map<Endpoint, Latencies>>() {
+                    @Override
+                    public Map<Endpoint, Latencies> call() {
+                        return new Client(weights, seed).run(warmupEnd, end);
+                    }
+                }));
+            }
+            Map<Endpoint, Latencies> total = new EnumMap<Endpoint, Latencies>(Endpoint.class);
+            for (Future<Map<Endpoint, Latencies>> result : results) {
+                for (Map.Entry<Endpoint, Latencies> entry : result.get().entrySet()) {
+                    if (!total.containsKey(entry.getKey())) {
+                        total.put(entry.getKey(), new Latencies());
+                    }
+                    total.get(entry.getKey()).addAll(entry.getValue());
+                }
+            }
+            report(total);
+            assertTrue("no request completed", !total.isEmpty());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private Map<Endpoint, Integer> parseMix(String mix) {
+        Map<Endpoint, Integer> weights = new EnumMap<Endpoint, Integer>(Endpoint.class);
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.trim().split("=");
+            weights.put(Endpoint.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+        return weights;
+    }
+
+    private void report(Map<Endpoint, Latencies> total) {
+        StringBuilder report = new StringBuilder(String.format("%nLoad test: %d clients, %d s measured after %d s "
+                + "warmup, mix %s%n", concurrency, durationSeconds, warmupSeconds, mix));
+        report.append(String.format("%-12s %9s %7s %9s %9s %9s %9s %9s %9s %9s%n", "endpoint", "requests", "errors",
+                "req/s", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms", "> timeout"));
+        for (Map.Entry<Endpoint, Latencies> entry : total.entrySet()) {
+            Latencies latencies = entry.getValue();
+            report.append(String.format("%-12s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9d%n", entry.getKey()
+                    .name().toLowerCase(), latencies.count(), latencies.errors, latencies.count()
+                    / (double) durationSeconds, latencies.meanMillis(), latencies.percentileMillis(0.5), latencies
+                    .percentileMillis(0.95), latencies.percentileMillis(0.99), latencies.percentileMillis(1),
+                    latencies.over(TimeUnit.SECONDS.toNanos(timeoutSeconds))));
+        }
+        logger.info("{}", report);
+    }
+
+    /**
+     * One client of the broker, with the instances and bindings it created.
+     */
+    private class Client {
+
+        private final Random random;
+        private final Endpoint[] choices;
+        private final List<String> instances = new ArrayList<String>();
+        private final Map<String, List<String>> bindings = new HashMap<String, List<String>>();
+        private final Map<Endpoint, Latencies> latencies = new EnumMap<Endpoint, Latencies>(Endpoint.class);
+
+        Client(Map<Endpoint, Integer> weights, long seed) {
+            this.random = new Random(seed);
+            List<Endpoint> choices = new ArrayList<Endpoint>();
+            for (Map.Entry<Endpoint, Integer> weight : weights.entrySet()) {
+                choices.addAll(Collections.nCopies(weight.getValue(), weight.getKey()));
+            }
+            this.choices = choices.toArray(new Endpoint[choices.size()]);
+        }
+
+        Map<Endpoint, Latencies> run(long warmupEnd, long end) {
+            while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                Endpoint endpoint = possible(choices[random.nextInt(choices.length)]);
+                long start = System.nanoTime();
+                boolean success = send(endpoint);
+                long elapsed = System.nanoTime() - start;
+                if (start >= warmupEnd) {
+                    if (!latencies.containsKey(endpoint)) {
+                        latencies.put(endpoint, new Latencies());
+                    }
+                    latencies.get(endpoint).add(elapsed, success);
+                }
+            }
+            return latencies;
+        }
+
+        private Endpoint possible(Endpoint endpoint) {
+            if (instances.isEmpty()) {
+                return Endpoint.PROVISION;
+            }
+            if (endpoint == Endpoint.DEPROVISION && unboundInstance() == null) {
+                return Endpoint.UNBIND;
+            }
+            if (endpoint == Endpoint.UNBIND && boundInstance() == null) {
+                return Endpoint.BIND;
+            }
+            return endpoint;
+        }
+
+        private boolean send(Endpoint endpoint) {
+            switch (endpoint) {
+            case PROVISION:
+                return provision();
+            case BIND:
+                return bind(instances.get(random.nextInt(instances.size())));
+            case UNBIND:
+                return unbind(boundInstance());
+            default:
+                return deprovision(unboundInstance());
+            }
+        }
+
+        private boolean provision() {
+            String id = UUID.randomUUID().toString();
+            String body = "{\"service_id\":\"" + serviceId + "\",\"plan_id\":\"" + planId
+                    + "\",\"organization_guid\":\"" + organizationGuid + "\",\"space_guid\":\"" + spaceGuid + "\"}";
+            Response response = given().auth().basic(username, password).contentType(ContentType.JSON).body(body)
+                    .put(String.format(provisionOrRemoveInstanceBasePath, id));
+            if (response.statusCode() != HttpStatus.SC_CREATED) {
+                return false;
+            }
+            instances.add(id);
+            bindings.put(id, new ArrayList<String>());
+            return true;
+        }
+
+        private boolean bind(String instance) {
+            String id = UUID.randomUUID().toString();
+            String body = "{\"service_id\":\"" + serviceId + "\",\"plan_id\":\"" + planId + "\",\"app_guid\":\""
+                    + UUID.randomUUID() + "\"}";
+            Response response = given().auth().basic(username, password).contentType(ContentType.JSON).body(body)
+                    .put(String.format(createOrRemoveBindingBasePath, instance, id));
+            if (response.statusCode() != HttpStatus.SC_CREATED) {
+                return false;
+            }
+            bindings.get(instance).add(id);
+            return true;
+        }
+
+        private boolean unbind(String instance) {
+            List<String> instanceBindings = bindings.get(instance);
+            String id = instanceBindings.remove(instanceBindings.size() - 1);
+            Response response = given().auth().basic(username, password).delete(
+                    String.format(createOrRemoveBindingBasePath, instance, id) + "?service_id=" + serviceId
+                            + "&plan_id=" + planId);
+            return response.statusCode() == HttpStatus.SC_OK;
+        }
+
+        private boolean deprovision(String instance) {
+            instances.remove(instance);
+            bindings.remove(instance);
+            Response response = given().auth().basic(username, password).delete(
+                    String.format(provisionOrRemoveInstanceBasePath, instance) + "?service_id=" + serviceId
+                            + "&plan_id=" + planId);
+            return response.statusCode() == HttpStatus.SC_OK;
+        }
+
+        private String boundInstance() {
+            for (String instance : instances) {
+                if (!bindings.get(instance).isEmpty()) {
+                    return instance;
+                }
+            }
+            return null;
+        }
+
+        private String unboundInstance() {
+            for (String instance : instances) {
+                if (bindings.get(instance).isEmpty()) {
+                    return instance;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Latencies of the requests to one endpoint, kept in full so percentiles
+     * are exact.
+     */
+    private static class Latencies {
+
+        private long[] nanos = new long[1024];
+        private int count;
+        private long errors;
+
+        void add(long elapsed, boolean success) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+            if (!success) {
+                errors++;
+            }
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.nanos[i], true);
+            }
+            errors += other.errors;
+        }
+
+        int count() {
+            return count;
+        }
+
+        double meanMillis() {
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += nanos[i];
+            }
+            return count == 0 ? 0 : sum / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        double percentileMillis(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * count) - 1;
+            return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        long over(long thresholdNanos) {
+            long over = 0;
+            for (int i = 0; i < count; i++) {
+                if (nanos[i] > thresholdNanos) {
+                    over++;
+                }
+            }
+            return over;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.CreateUserRequest;
+import com.amazonaws.services.identitymanagement.model.CreateUserResult;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AwsCallLimiterTest {
+
+    private AmazonIdentityManagement client;
+    private AwsCallLimiter limiter;
+    private AmazonIdentityManagement limited;
+
+    @Before
+    public void setUp() {
+        client = mock(AmazonIdentityManagement.class);
+        limiter = new AwsCallLimiter(0, 0, 0, 0, 0, 0, 2, 1, 1);
+        limited = limiter.limit(AmazonIdentityManagement.class, client, "iam");
+    }
+
+    @Test
+    public void throttledCallsAreRetried() {
+        CreateUserResult result = new CreateUserResult();
+        when(client.createUser(any(CreateUserRequest.class))).thenThrow(throttling()).thenReturn(result);
+
+        assertSame(result, limited.createUser(new CreateUserRequest("user")));
+        verify(client, times(2)).createUser(any(CreateUserRequest.class));
+        assertThat(metric("aws.iam.write.retries"), is(1L));
+    }
+
+    @Test
+    public void throttlingIsPassedOnWhenTheRetryBudgetIsExhausted() {
+        when(client.createUser(any(CreateUserRequest.class))).thenThrow(throttling());
+
+        try {
+            limited.createUser(new CreateUserRequest("user"));
+            fail("expected the throttling error to be passed on");
+        } catch (AmazonServiceException e) {
+            assertThat(e.getErrorCode(), is("Throttling"));
+        }
+        verify(client, times(3)).createUser(any(CreateUserRequest.class));
+        assertThat(metric("aws.iam.write.retry.budget.exhausted"), is(1L));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        AmazonServiceException conflict = new AmazonServiceException("exists");
+        conflict.setErrorCode("EntityAlreadyExists");
+        when(client.createUser(any(CreateUserRequest.class))).thenThrow(conflict);
+
+        try {
+            limited.createUser(new CreateUserRequest("user"));
+            fail("expected the error to be passed on");
+        } catch (AmazonServiceException e) {
+            assertSame(conflict, e);
+        }
+        verify(client, times(1)).createUser(any(CreateUserRequest.class));
+    }
+
+    @Test
+    public void bulkS3CallsHaveTheirOwnFamily() {
+        AmazonS3 bulk = limiter.limit(AmazonS3.class, mock(AmazonS3.class), "s3bulk");
+
+        bulk.deleteObjects(new DeleteObjectsRequest("bucket"));
+
+        assertThat(metric("aws.s3bulk.write.calls"), is(1L));
+        assertThat(metric("aws.s3.write.calls"), is(0L));
+    }
+
+    private AmazonServiceException throttling() {
+        AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+        e.setErrorCode("Throttling");
+        e.setStatusCode(400);
+        return e;
+    }
+
+    private Object metric(String name) {
+        for (Metric<?> metric : limiter.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
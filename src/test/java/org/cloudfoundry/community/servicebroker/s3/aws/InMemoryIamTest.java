@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.AddUserToGroupRequest;
+import com.amazonaws.services.identitymanagement.model.CreateAccessKeyRequest;
+import com.amazonaws.services.identitymanagement.model.CreateGroupRequest;
+import com.amazonaws.services.identitymanagement.model.CreateUserRequest;
+import com.amazonaws.services.identitymanagement.model.DeleteConflictException;
+import com.amazonaws.services.identitymanagement.model.DeleteUserRequest;
+import com.amazonaws.services.identitymanagement.model.EntityAlreadyExistsException;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysRequest;
+import com.amazonaws.services.identitymanagement.model.ListAccessKeysResult;
+import com.amazonaws.services.identitymanagement.model.ListGroupsForUserRequest;
+import com.amazonaws.services.identitymanagement.model.ListGroupsForUserResult;
+import com.amazonaws.services.identitymanagement.model.ListUsersRequest;
+import com.amazonaws.services.identitymanagement.model.ListUsersResult;
+import com.amazonaws.services.identitymanagement.model.UpdateUserRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class InMemoryIamTest {
+
+    private AmazonIdentityManagement iam;
+
+    @Before
+    public void setUp() {
+        iam = new InMemoryIam(FaultInjector.none()).client();
+    }
+
+    @Test
+    public void userNamesAreUnique() {
+        iam.createUser(new CreateUserRequest("user").withPath("/a/"));
+        try {
+            iam.createUser(new CreateUserRequest("user").withPath("/b/"));
+            fail("expected the second user to be rejected");
+        } catch (EntityAlreadyExistsException e) {
+            assertThat(e.getStatusCode(), is(409));
+        }
+    }
+
+    @Test
+    public void usersWithAccessKeysCannotBeDeleted() {
+        iam.createUser(new CreateUserRequest("user"));
+        iam.createAccessKey(new CreateAccessKeyRequest().withUserName("user"));
+        try {
+            iam.deleteUser(new DeleteUserRequest("user"));
+            fail("expected a delete conflict");
+        } catch (DeleteConflictException e) {
+            assertThat(e.getErrorCode(), is("DeleteConflict"));
+        }
+    }
+
+    @Test
+    public void renamedUsersKeepTheirKeysAndGroups() {
+        iam.createUser(new CreateUserRequest("pool-1").withPath("/pool/"));
+        iam.createAccessKey(new CreateAccessKeyRequest().withUserName("pool-1"));
+        iam.createGroup(new CreateGroupRequest("group"));
+        iam.addUserToGroup(new AddUserToGroupRequest().withGroupName("group").withUserName("pool-1"));
+
+        iam.updateUser(new UpdateUserRequest("pool-1").withNewUserName("binding").withNewPath("/bound/"));
+
+        assertThat(iam.listAccessKeys(new ListAccessKeysRequest().withUserName("binding")).getAccessKeyMetadata()
+                .size(), is(1));
+        assertThat(iam.listGroupsForUser(new ListGroupsForUserRequest("binding")).getGroups().size(), is(1));
+        assertTrue(iam.listUsers(new ListUsersRequest().withPathPrefix("/pool/")).getUsers().isEmpty());
+    }
+
+    @Test
+    public void userListingsArePaged() {
+        for (int i = 0; i < 150; i++) {
+            iam.createUser(new CreateUserRequest("user-" + i));
+        }
+
+        ListUsersResult first = iam.listUsers(new ListUsersRequest());
+        ListUsersResult second = iam.listUsers(new ListUsersRequest().withMarker(first.getMarker()));
+
+        assertThat(first.getUsers().size(), is(100));
+        assertTrue(first.isTruncated());
+        assertThat(second.getUsers().size(), is(50));
+        assertFalse(second.isTruncated());
+    }
+
+    @Test
+    public void groupAndAccessKeyListingsArePaged() {
+        iam.createUser(new CreateUserRequest("user"));
+        for (int i = 0; i < 3; i++) {
+            iam.createGroup(new CreateGroupRequest("group-" + i));
+            iam.addUserToGroup(new AddUserToGroupRequest().withGroupName("group-" + i).withUserName("user"));
+        }
+        iam.createAccessKey(new CreateAccessKeyRequest().withUserName("user"));
+        iam.createAccessKey(new CreateAccessKeyRequest().withUserName("user"));
+
+        ListGroupsForUserResult groups = iam.listGroupsForUser(new ListGroupsForUserRequest("user").withMaxItems(2));
+        ListAccessKeysResult keys = iam.listAccessKeys(new ListAccessKeysRequest().withUserName("user")
+                .withMaxItems(1));
+
+        assertThat(groups.getGroups().size(), is(2));
+        assertTrue(groups.isTruncated());
+        assertThat(iam.listGroupsForUser(new ListGroupsForUserRequest("user").withMarker(groups.getMarker()))
+                .getGroups().size(), is(1));
+        assertThat(keys.getAccessKeyMetadata().size(), is(1));
+        assertTrue(keys.isTruncated());
+        assertFalse(iam.listAccessKeys(new ListAccessKeysRequest().withUserName("user").withMarker(keys.getMarker()))
+                .isTruncated());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import org.cloudfoundry.community.servicebroker.s3.service.BucketEmptier;
+import org.cloudfoundry.community.servicebroker.s3.service.DeletionStats;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class InMemoryS3Test {
+
+    private static final String BUCKET = "cloud-foundry-instance";
+
+    private InMemoryS3 inMemoryS3;
+    private AmazonS3 s3;
+
+    @Before
+    public void setUp() {
+        inMemoryS3 = new InMemoryS3(FaultInjector.none(), 2500, 4);
+        s3 = inMemoryS3.client();
+        s3.createBucket(BUCKET);
+    }
+
+    @Test
+    public void listingsArePagedLikeS3() {
+        ObjectListing listing = s3.listObjects(BUCKET);
+        int count = listing.getObjectSummaries().size();
+        assertThat(listing.getObjectSummaries().get(0).getKey(), is("part-0000/object-0000000000"));
+        while (listing.isTruncated()) {
+            listing = s3.listNextBatchOfObjects(listing);
+            count += listing.getObjectSummaries().size();
+        }
+        assertThat(count, is(2500));
+    }
+
+    @Test
+    public void delimiterListingsReturnTheTopLevelPrefixes() {
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest().withBucketName(BUCKET).withDelimiter("/"));
+
+        assertThat(listing.getCommonPrefixes(), is(Arrays.asList("part-0000/", "part-0001/", "part-0002/",
+                "part-0003/")));
+        assertTrue(listing.getObjectSummaries().isEmpty());
+        assertFalse(listing.isTruncated());
+    }
+
+    @Test
+    public void bucketEmptierDeletesEveryObject() {
+        inMemoryS3.seed(BUCKET, 250000, 16);
+
+        BucketEmptier emptier = new BucketEmptier(s3, 4, 4);
+        DeletionStats stats;
+        try {
+            stats = emptier.empty(BUCKET);
+        } finally {
+            emptier.shutdown();
+        }
+
+        assertThat(stats.getObjectsDeleted(), is(250000L));
+        assertThat(inMemoryS3.getObjectCount(BUCKET), is(0));
+        s3.deleteBucket(BUCKET);
+        assertFalse(s3.doesBucketExist(BUCKET));
+    }
+
+    @Test
+    public void bucketsWithObjectsCannotBeDeleted() {
+        try {
+            s3.deleteBucket(BUCKET);
+            fail("expected the bucket to be reported as not empty");
+        } catch (AmazonS3Exception e) {
+            assertThat(e.getErrorCode(), is("BucketNotEmpty"));
+        }
+    }
+
+    @Test
+    public void throttledCallsFailWithTheThrottlingErrorOfS3() {
+        AmazonS3 throttled = new InMemoryS3(new FaultInjector("", "s3.listBuckets=1", 0), 0, 1).client();
+
+        throttled.createBucket(BUCKET);
+        try {
+            throttled.listBuckets();
+            fail("expected the call to be throttled");
+        } catch (AmazonServiceException e) {
+            assertTrue(RetryUtils.isThrottlingException(e));
+        }
+    }
+}
@@ -53,4 +53,23 @@ public class AwsClientConfigurationTest {
         assertNull(clientConfiguration.getProxyPassword());
         assertFalse(clientConfiguration.isPreemptiveBasicProxyAuth());
     }
+
+    @Test
+    public void connectionPoolCanBeTuned(){
+        AwsClientConfiguration brokerConfiguration = new AwsClientConfiguration();
+        brokerConfiguration.setAwsMaxConnections(100);
+        brokerConfiguration.setAwsBulkMaxConnections(20);
+        brokerConfiguration.setAwsConnectionTtlMillis(60000L);
+        brokerConfiguration.setAwsSocketTimeoutMillis(10000);
+        brokerConfiguration.setAwsRequestTimeoutMillis(30000);
+        brokerConfiguration.setAwsTcpKeepAlive(true);
+
+        ClientConfiguration clientConfiguration = brokerConfiguration.toClientConfiguration();
+        assertThat(clientConfiguration.getMaxConnections(), is(100));
+        assertThat(clientConfiguration.getConnectionTTL(), is(60000L));
+        assertThat(clientConfiguration.getSocketTimeout(), is(10000));
+        assertThat(clientConfiguration.getRequestTimeout(), is(30000));
+        assertThat(clientConfiguration.useTcpKeepAlive(), is(true));
+        assertThat(brokerConfiguration.toBulkClientConfiguration().getMaxConnections(), is(20));
+    }
 }
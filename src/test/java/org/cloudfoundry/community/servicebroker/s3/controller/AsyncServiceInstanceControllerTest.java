@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.controller;
+
+import java.util.Map;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceExistsException;
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.operation.LastOperation;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationInProgressException;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationState;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationType;
+import org.cloudfoundry.community.servicebroker.s3.service.S3ServiceInstanceService;
+import org.cloudfoundry.community.servicebroker.service.CatalogService;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AsyncServiceInstanceControllerTest {
+
+    private static final LastOperation PROVISIONING = new LastOperation(OperationType.PROVISION,
+            OperationState.IN_PROGRESS, "Creating bucket");
+    private static final LastOperation DEPROVISIONING = new LastOperation(OperationType.DEPROVISION,
+            OperationState.IN_PROGRESS, "Deleting bucket contents");
+
+    private static final ServiceDefinition SERVICE = new ServiceDefinition("s3", "amazon-s3", "Amazon S3", true,
+            null, null, null, null, null);
+
+    private final S3ServiceInstanceService service = mock(S3ServiceInstanceService.class);
+    private final CatalogService catalogService = mock(CatalogService.class);
+    private final AsyncServiceInstanceController controller = new AsyncServiceInstanceController(service,
+            catalogService);
+
+    @Test
+    public void provisionIsAccepted() throws Exception {
+        when(catalogService.getServiceDefinition("s3")).thenReturn(SERVICE);
+
+        assertThat(controller.createServiceInstance("id", request()).getStatusCode(), is(HttpStatus.ACCEPTED));
+        verify(service).createServiceInstanceAsync(SERVICE, "id", "plan", "org", "space");
+    }
+
+    @Test
+    public void provisionOfUnknownServiceIsRejected() throws Exception {
+        assertThat(controller.createServiceInstance("id", request()).getStatusCode(),
+                is(HttpStatus.UNPROCESSABLE_ENTITY));
+    }
+
+    @Test
+    public void provisionOfExistingInstanceConflicts() throws Exception {
+        when(catalogService.getServiceDefinition("s3")).thenReturn(SERVICE);
+        doThrow(new ServiceInstanceExistsException(instance())).when(service).createServiceInstanceAsync(
+                SERVICE, "id", "plan", "org", "space");
+
+        assertThat(controller.createServiceInstance("id", request()).getStatusCode(), is(HttpStatus.CONFLICT));
+    }
+
+    @Test
+    public void repeatedProvisionIsAcceptedAgain() throws Exception {
+        when(catalogService.getServiceDefinition("s3")).thenReturn(SERVICE);
+        doThrow(new OperationInProgressException("id", PROVISIONING)).when(service).createServiceInstanceAsync(
+                SERVICE, "id", "plan", "org", "space");
+
+        assertThat(controller.createServiceInstance("id", request()).getStatusCode(), is(HttpStatus.ACCEPTED));
+    }
+
+    @Test
+    public void provisionDuringDeprovisionIsAConcurrencyError() throws Exception {
+        when(catalogService.getServiceDefinition("s3")).thenReturn(SERVICE);
+        doThrow(new OperationInProgressException("id", DEPROVISIONING)).when(service).createServiceInstanceAsync(
+                SERVICE, "id", "plan", "org", "space");
+
+        ResponseEntity<Map<String, Object>> response = controller.createServiceInstance("id", request());
+
+        assertThat(response.getStatusCode(), is(HttpStatus.UNPROCESSABLE_ENTITY));
+        assertThat(response.getBody().get("error"), is((Object) "ConcurrencyError"));
+    }
+
+    @Test
+    public void lastOperationOfSucceededProvisionIsReported() {
+        when(service.getLastOperation("id")).thenReturn(
+                new LastOperation(OperationType.PROVISION, OperationState.SUCCEEDED, null));
+
+        ResponseEntity<?> response = controller.getLastOperation("id");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(((LastOperation) response.getBody()).getState(), is(OperationState.SUCCEEDED));
+    }
+
+    @Test
+    public void deprovisionIsAccepted() throws Exception {
+        when(service.deleteServiceInstanceAsync("id", "s3", "plan")).thenReturn(instance());
+
+        assertThat(controller.deleteServiceInstance("id", "s3", "plan").getStatusCode(), is(HttpStatus.ACCEPTED));
+    }
+
+    @Test
+    public void deprovisionOfMissingInstanceIsGone() throws Exception {
+        assertThat(controller.deleteServiceInstance("id", "s3", "plan").getStatusCode(), is(HttpStatus.GONE));
+    }
+
+    @Test
+    public void repeatedDeprovisionIsAcceptedAgain() throws Exception {
+        when(service.deleteServiceInstanceAsync("id", "s3", "plan")).thenThrow(
+                new OperationInProgressException("id", DEPROVISIONING));
+
+        assertThat(controller.deleteServiceInstance("id", "s3", "plan").getStatusCode(), is(HttpStatus.ACCEPTED));
+    }
+
+    @Test
+    public void deprovisionDuringProvisionIsAConcurrencyError() throws Exception {
+        when(service.deleteServiceInstanceAsync("id", "s3", "plan")).thenThrow(
+                new OperationInProgressException("id", PROVISIONING));
+
+        ResponseEntity<Map<String, Object>> response = controller.deleteServiceInstance("id", "s3", "plan");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.UNPROCESSABLE_ENTITY));
+        assertThat(response.getBody().get("error"), is((Object) "ConcurrencyError"));
+    }
+
+    @Test
+    public void lastOperationReportsTheOperationInProgress() {
+        when(service.getLastOperation("id")).thenReturn(DEPROVISIONING);
+
+        ResponseEntity<?> response = controller.getLastOperation("id");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertSame(DEPROVISIONING, response.getBody());
+    }
+
+    @Test
+    public void lastOperationOfCompletedDeprovisionIsGone() {
+        when(service.getLastOperation("id")).thenReturn(
+                new LastOperation(OperationType.DEPROVISION, OperationState.SUCCEEDED, null));
+
+        assertThat(controller.getLastOperation("id").getStatusCode(), is(HttpStatus.GONE));
+    }
+
+    @Test
+    public void lastOperationOfFailedDeprovisionIsReported() {
+        when(service.getLastOperation("id")).thenReturn(
+                new LastOperation(OperationType.DEPROVISION, OperationState.FAILED, "Access Denied"));
+
+        ResponseEntity<?> response = controller.getLastOperation("id");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(((LastOperation) response.getBody()).getState(), is(OperationState.FAILED));
+    }
+
+    @Test
+    public void lastOperationOfUnknownInstanceIsGone() {
+        assertThat(controller.getLastOperation("id").getStatusCode(), is(HttpStatus.GONE));
+    }
+
+    @Test
+    public void deprovisionCutShortByARestartIsResumed() {
+        when(service.resumeDeprovision("id")).thenReturn(DEPROVISIONING);
+
+        ResponseEntity<?> response = controller.getLastOperation("id");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertSame(DEPROVISIONING, response.getBody());
+    }
+
+    @Test
+    public void forgottenOperationOfExistingInstanceIsReportedAsFailed() {
+        when(service.getServiceInstance("id")).thenReturn(instance());
+
+        ResponseEntity<?> response = controller.getLastOperation("id");
+
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(((LastOperation) response.getBody()).getState(), is(OperationState.FAILED));
+    }
+
+    private CreateServiceInstanceRequest request() {
+        return new CreateServiceInstanceRequest("s3", "plan", "org", "space");
+    }
+
+    private ServiceInstance instance() {
+        return new ServiceInstance("id", "s3", "plan", "org", "space", null);
+    }
+}
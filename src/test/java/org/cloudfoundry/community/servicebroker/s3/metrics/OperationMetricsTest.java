@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.CreateUserRequest;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OperationMetricsTest {
+
+    private final OperationMetrics metrics = new OperationMetrics();
+
+    @Test
+    public void percentilesComeFromTheHistogramBuckets() {
+        for (int i = 0; i < 98; i++) {
+            metrics.record("broker", "bind", TimeUnit.MILLISECONDS.toNanos(20), null);
+        }
+        metrics.record("broker", "bind", TimeUnit.SECONDS.toNanos(2), null);
+        metrics.record("broker", "bind", TimeUnit.SECONDS.toNanos(8), null);
+
+        assertThat(metric("broker.bind.calls"), is((Object) 100L));
+        assertThat(metric("broker.bind.latency.p50.millis"), is((Object) 25.0));
+        assertThat(metric("broker.bind.latency.p99.millis"), is((Object) 2500.0));
+    }
+
+    @Test
+    public void instrumentedClientsCountErrorsAndThrottling() {
+        AmazonIdentityManagement client = mock(AmazonIdentityManagement.class);
+        AmazonServiceException throttling = new AmazonServiceException("Rate exceeded");
+        throttling.setErrorCode("Throttling");
+        when(client.createUser(any(CreateUserRequest.class))).thenThrow(throttling);
+        AmazonIdentityManagement instrumented = metrics.instrument(AmazonIdentityManagement.class, client, "iam");
+
+        try {
+            instrumented.createUser(new CreateUserRequest("user"));
+            fail("expected the error to be passed on");
+        } catch (AmazonServiceException e) {
+            assertSame(throttling, e);
+        }
+
+        assertThat(metric("iam.createUser.errors"), is((Object) 1L));
+        assertThat(metric("iam.createUser.throttled"), is((Object) 1L));
+    }
+
+    @Test
+    public void prometheusOutputHasCumulativeBuckets() {
+        metrics.record("s3", "deleteBucket", TimeUnit.MILLISECONDS.toNanos(40), null);
+        metrics.record("broker", "provision", TimeUnit.MILLISECONDS.toNanos(400), null);
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+
+        assertThat(out.toString(), containsString(
+                "s3_broker_aws_call_duration_seconds_bucket{service=\"s3\",operation=\"deleteBucket\",le=\"0.05\"} 1"));
+        assertThat(out.toString(), containsString(
+                "s3_broker_operation_duration_seconds_bucket{operation=\"provision\",le=\"0.25\"} 0"));
+        assertThat(out.toString(), containsString(
+                "s3_broker_operation_duration_seconds_count{operation=\"provision\"} 1"));
+    }
+
+    private Object metric(String name) {
+        for (Metric<?> metric : metrics.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
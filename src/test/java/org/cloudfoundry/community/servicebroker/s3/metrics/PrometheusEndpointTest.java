@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.metrics;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void metricsWithTheSameConvertedNameAreExposedOnce() {
+        PublicMetrics source = new PublicMetrics() {
+            @Override
+            public Collection<Metric<?>> metrics() {
+                return Arrays.<Metric<?>> asList(new Metric<Long>("aws.s3.calls", 1L),
+                        new Metric<Long>("aws_s3_calls", 2L), new Metric<Long>("aws.iam.calls", 3L));
+            }
+        };
+        OperationMetrics operationMetrics = new OperationMetrics();
+
+        String scrape = new PrometheusEndpoint(operationMetrics, Collections.singletonList(source)).scrape();
+
+        assertThat(scrape.split("# TYPE aws_s3_calls gauge", -1).length, is(2));
+        assertThat(scrape, containsString("aws_s3_calls 1.0\n"));
+        assertThat(scrape, not(containsString("aws_s3_calls 2.0")));
+        assertThat(scrape, containsString("aws_iam_calls 3.0\n"));
+    }
+}
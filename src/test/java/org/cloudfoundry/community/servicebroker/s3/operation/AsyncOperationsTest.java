@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class AsyncOperationsTest {
+
+    private final AsyncOperations operations = new AsyncOperations(new OperationMetrics(), 2, 500,
+            TimeUnit.MILLISECONDS);
+
+    @After
+    public void tearDown() {
+        operations.shutdown();
+    }
+
+    @Test
+    public void operationIsPolledUntilItSucceeds() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        operations.submit("id", OperationType.DEPROVISION, "Deleting bucket contents", new OperationStep() {
+            @Override
+            public boolean run() {
+                if (runs.incrementAndGet() == 1) {
+                    operations.describe("id", "Waiting for S3 to expire bucket contents");
+                }
+                return runs.get() == 3;
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        LastOperation completed = awaitCompletion("id");
+
+        assertThat(completed.getState(), is(OperationState.SUCCEEDED));
+        assertThat(completed.getType(), is(OperationType.DEPROVISION));
+        assertThat(runs.get(), is(3));
+    }
+
+    @Test
+    public void failedOperationReportsTheError() throws Exception {
+        operations.submit("id", OperationType.PROVISION, "Creating bucket", new OperationStep() {
+            @Override
+            public boolean run() {
+                throw new IllegalStateException("bucket name taken");
+            }
+        }, 0, TimeUnit.SECONDS);
+
+        LastOperation completed = awaitCompletion("id");
+
+        assertThat(completed.getState(), is(OperationState.FAILED));
+        assertThat(completed.getDescription(), is("bucket name taken"));
+    }
+
+    @Test
+    public void completedOperationsAreDroppedAfterTheRetention() throws Exception {
+        operations.submit("id", OperationType.PROVISION, "Creating bucket", succeeding(), 0, TimeUnit.SECONDS);
+        awaitCompletion("id");
+
+        Thread.sleep(100);
+        assertNotNull(operations.getLastOperation("id"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (operations.getLastOperation("id") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(operations.getLastOperation("id"));
+    }
+
+    @Test
+    public void conflictingOperationIsRejected() {
+        operations.reserve("id", OperationType.PROVISION, "Creating bucket");
+
+        try {
+            operations.reserve("id", OperationType.DEPROVISION, "Deleting bucket contents");
+            fail("expected the provision in progress to conflict");
+        } catch (OperationInProgressException e) {
+            assertThat(e.getOperation().getType(), is(OperationType.PROVISION));
+        }
+        assertThat(operations.getLastOperation("id").getType(), is(OperationType.PROVISION));
+    }
+
+    @Test
+    public void completedOrCancelledOperationCanBeFollowedByAnother() throws Exception {
+        operations.submit("id", OperationType.PROVISION, "Creating bucket", succeeding(), 0, TimeUnit.SECONDS);
+        awaitCompletion("id");
+
+        operations.reserve("id", OperationType.DEPROVISION, "Deleting bucket contents");
+        operations.cancel("id");
+        operations.reserve("id", OperationType.DEPROVISION, "Deleting bucket contents");
+
+        assertTrue(operations.isInProgress("id"));
+    }
+
+    @Test
+    public void onlyOneConcurrentReservationWins() throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> reservations = new ArrayList<Callable<Boolean>>();
+            for (int i = 0; i < 32; i++) {
+                reservations.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            operations.reserve("id", OperationType.DEPROVISION, "Deleting bucket contents");
+                            return true;
+                        } catch (OperationInProgressException e) {
+                            return false;
+                        }
+                    }
+                });
+            }
+            int reserved = 0;
+            for (Future<Boolean> result : callers.invokeAll(reservations)) {
+                if (result.get()) {
+                    reserved++;
+                }
+            }
+            assertThat(reserved, is(1));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private OperationStep succeeding() {
+        return new OperationStep() {
+            @Override
+            public boolean run() {
+                return true;
+            }
+        };
+    }
+
+    private LastOperation awaitCompletion(String instanceId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        LastOperation operation = operations.getLastOperation(instanceId);
+        while (!operation.isComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            operation = operations.getLastOperation(instanceId);
+        }
+        assertTrue("operation did not complete", operation.isComplete());
+        return operation;
+    }
+}
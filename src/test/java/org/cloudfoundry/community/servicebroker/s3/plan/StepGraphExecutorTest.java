@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class StepGraphExecutorTest {
+
+    private StepGraphExecutor executor;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        executor = new StepGraphExecutor(4);
+        events = new CopyOnWriteArrayList<String>();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void independentStepsRunInParallel() {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        StepGraph.Step waitForOther = new StepGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                bothStarted.countDown();
+                assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+            }
+        };
+
+        executor.execute(new StepGraph().add("a", waitForOther).add("b", waitForOther));
+
+        assertThat(bothStarted.getCount(), is(0L));
+    }
+
+    @Test
+    public void stepsRunAfterTheirDependencies() {
+        executor.execute(new StepGraph()
+                .add("a", new Recording("a"))
+                .add("b", new Recording("b"), "a")
+                .add("c", new Recording("c"), "b"));
+
+        assertThat(events, contains("run a", "run b", "run c"));
+    }
+
+    @Test
+    public void completedStepsAreRolledBackInReverseOrderWhenAStepFails() {
+        IllegalStateException failure = new IllegalStateException("boom");
+        try {
+            executor.execute(new StepGraph()
+                    .add("a", new Recording("a"))
+                    .add("b", new Recording("b"), "a")
+                    .add("c", new Failing(failure), "b")
+                    .add("d", new Recording("d"), "c"));
+            fail("expected the step failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(sameInstance(failure)));
+        }
+
+        assertThat(events, contains("run a", "run b", "rollback b", "rollback a"));
+    }
+
+    @Test
+    public void callerStepsRunOnTheCallingThreadAlongsidePoolSteps() {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        StepGraph.Step waitForOther = new StepGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                threads.add(Thread.currentThread());
+                bothStarted.countDown();
+                assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+            }
+        };
+
+        executor.execute(new StepGraph().addOnCaller("a", waitForOther).add("b", waitForOther));
+
+        assertThat(bothStarted.getCount(), is(0L));
+        assertThat(threads, hasItem(Thread.currentThread()));
+        assertThat(threads.size(), is(2));
+    }
+
+    @Test
+    public void failedCallerStepsRollBackTheCompletedSteps() {
+        IllegalStateException failure = new IllegalStateException("boom");
+        try {
+            executor.execute(new StepGraph()
+                    .add("a", new Recording("a"))
+                    .addOnCaller("b", new Failing(failure), "a")
+                    .add("c", new Recording("c"), "b"));
+            fail("expected the step failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(sameInstance(failure)));
+        }
+
+        assertThat(events, contains("run a", "rollback a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dependenciesMustBeAddedFirst() {
+        new StepGraph().add("b", new Recording("b"), "a");
+    }
+
+    private class Recording extends StepGraph.Step {
+        private final String name;
+
+        Recording(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            events.add("run " + name);
+        }
+
+        @Override
+        public void rollback() {
+            events.add("rollback " + name);
+        }
+    }
+
+    private static class Failing extends StepGraph.Step {
+        private final RuntimeException failure;
+
+        Failing(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.aws.FaultInjector;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryIam;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryS3;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemorySts;
+import org.cloudfoundry.community.servicebroker.s3.metrics.OperationMetrics;
+import org.cloudfoundry.community.servicebroker.s3.operation.AsyncOperations;
+import org.cloudfoundry.community.servicebroker.s3.plan.StepGraphExecutor;
+import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
+import org.cloudfoundry.community.servicebroker.s3.service.BucketEmptier;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceIndex;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceRegistry;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Wires a basic plan to the in-memory AWS clients for the tests of this
+ * package. The plan and its IAM, user pool, binding index and STS components
+ * are only built by {@link #plan(String)}.
+ */
+class BasicPlanFixture {
+
+    static final String PREFIX = "cloud-foundry-s3-";
+    static final String PATH = "/cloud-foundry/s3/";
+    static final String TEMPLATE = "{\"Resource\": \"arn:aws:s3:::${bucketName}\"}";
+    static final String SHARED_TEMPLATE = "{\"Version\": \"2012-10-17\", "
+            + "\"Resource\": \"arn:aws:s3:::${aws:PrincipalTag/cloud-foundry-bucket}\"}";
+
+    final InMemoryIam inMemoryIam = new InMemoryIam(FaultInjector.none());
+    final InMemoryS3 inMemoryS3 = new InMemoryS3(FaultInjector.none(), 0, 1);
+    final AmazonS3 amazonS3 = inMemoryS3.client();
+    final BucketEmptier bucketEmptier = new BucketEmptier(amazonS3, 1, 1);
+    final S3 s3;
+    final AsyncOperations operations = new AsyncOperations(new OperationMetrics(), 1, 1);
+    final StepGraphExecutor steps = new StepGraphExecutor(4);
+    final ServiceDefinition service = new ServiceDefinition("s3", "amazon-s3", "Amazon S3", true, null, null, null,
+            null, null);
+
+    int lifecycleExpiryThreshold = 100000;
+    int userPoolLowWaterMark = 0;
+
+    BasicPlanIam iam;
+    UserPool userPool;
+    BindingIndex bindingIndex;
+    StsBindings stsBindings;
+    BasicPlan plan;
+
+    BasicPlanFixture() throws IOException {
+        s3 = new S3(amazonS3, bucketEmptier, new ServiceInstanceRegistry(100, 60, 60),
+                new ServiceInstanceIndex(""), "cloud-foundry-", "US", 1);
+    }
+
+    /**
+     * Creates a {@link BasicPlanIam} on the in-memory IAM client without
+     * creating any of its resources.
+     */
+    BasicPlanIam iam(String sharedTemplate, String accessModel) {
+        return new BasicPlanIam(inMemoryIam.client(), policy(sharedTemplate), PATH, PREFIX, PREFIX, PATH, PREFIX,
+                accessModel);
+    }
+
+    /**
+     * Builds the plan with IAM user bindings, an empty user pool and a binding
+     * index that is not loaded yet.
+     */
+    BasicPlan plan(String accessModel) {
+        iam = iam(SHARED_TEMPLATE, accessModel);
+        iam.createSharedAccess();
+        userPool = new UserPool(iam, userPoolLowWaterMark, userPoolLowWaterMark, 1, "0");
+        bindingIndex = new BindingIndex(iam, s3, 100, 60, 60);
+        stsBindings = new StsBindings(new InMemorySts(FaultInjector.none()).client(), policy(SHARED_TEMPLATE), s3,
+                "user", "", 3600, 900, PREFIX, "", "");
+        plan = new BasicPlan(iam, s3, operations, steps, userPool, stsBindings, bindingIndex,
+                lifecycleExpiryThreshold, 60);
+        return plan;
+    }
+
+    ServiceInstance provision(String instanceId) {
+        return plan.createServiceInstance(service, instanceId, BasicPlan.PLAN_ID, "org", "space");
+    }
+
+    void shutdown() {
+        if (plan != null) {
+            bindingIndex.shutdown();
+            userPool.shutdown();
+        }
+        steps.shutdown();
+        operations.shutdown();
+        s3.shutdown();
+        bucketEmptier.shutdown();
+    }
+
+    private static BucketGroupPolicy policy(String sharedTemplate) {
+        return new BucketGroupPolicy(TEMPLATE, Collections.<String, String> emptyMap(), sharedTemplate, null, null);
+    }
+}
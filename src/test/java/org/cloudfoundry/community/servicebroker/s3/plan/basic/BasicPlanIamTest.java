@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryIam;
+import org.cloudfoundry.community.servicebroker.s3.service.Iam;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.identitymanagement.model.User;
+
+import static org.cloudfoundry.community.servicebroker.s3.plan.basic.BasicPlanFixture.*;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class BasicPlanIamTest {
+
+    private BasicPlanFixture fixture;
+    private InMemoryIam inMemoryIam;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new BasicPlanFixture();
+        inMemoryIam = fixture.inMemoryIam;
+    }
+
+    @After
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Test
+    public void sharedAccessCreatesOneGroupWithTheManagedPolicy() {
+        BasicPlanIam iam = iam(SHARED_TEMPLATE, "shared");
+        iam.createSharedAccess();
+
+        assertThat(iam.getGroupNameForInstance("instance"), is(PREFIX + "shared"));
+        assertThat(inMemoryIam.getGroupCount(), is(1));
+        assertThat(inMemoryIam.getAttachedPolicyDocument(PREFIX + "shared", PREFIX + "shared"), is(SHARED_TEMPLATE));
+    }
+
+    @Test
+    public void sharedAccessUpdatesAChangedPolicyOnRestart() {
+        iam(SHARED_TEMPLATE, "shared").createSharedAccess();
+        String changed = SHARED_TEMPLATE.substring(0, SHARED_TEMPLATE.length() - 1) + ", \"Effect\": \"Allow\"}";
+        for (int i = 0; i < 6; i++) {
+            iam(i % 2 == 0 ? changed : SHARED_TEMPLATE, "shared").createSharedAccess();
+        }
+        iam(changed, "shared").createSharedAccess();
+
+        assertThat(inMemoryIam.getGroupCount(), is(1));
+        assertThat(inMemoryIam.getAttachedPolicyDocument(PREFIX + "shared", PREFIX + "shared"), is(changed));
+    }
+
+    @Test
+    public void sharedAccessTagsBindingUsersWithTheirBucket() {
+        BasicPlanIam iam = iam(SHARED_TEMPLATE, "shared");
+        User created = iam.createUserForBinding("binding", "bucket");
+        User pooled = iam.createUser("pooled", PATH + "pool/");
+        User claimed = iam.claimUserForBinding(pooled, "other-binding", "other-bucket");
+
+        assertThat(inMemoryIam.getUserTag(created.getUserName(), Iam.BUCKET_TAG), is("bucket"));
+        assertThat(inMemoryIam.getUserTag(claimed.getUserName(), Iam.BUCKET_TAG), is("other-bucket"));
+    }
+
+    @Test
+    public void groupAccessUsesAGroupPerInstance() {
+        BasicPlanIam iam = iam(SHARED_TEMPLATE, "group");
+        iam.createSharedAccess();
+        User user = iam.createUserForBinding("binding", "bucket");
+
+        assertThat(iam.getGroupNameForInstance("instance"), is(PREFIX + "instance"));
+        assertThat(inMemoryIam.getGroupCount(), is(0));
+        assertNull(inMemoryIam.getUserTag(user.getUserName(), Iam.BUCKET_TAG));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAccessModelsAreRejected() {
+        iam(SHARED_TEMPLATE, "per-user");
+    }
+
+    private BasicPlanIam iam(String sharedTemplate, String accessModel) {
+        return fixture.iam(sharedTemplate, accessModel);
+    }
+}
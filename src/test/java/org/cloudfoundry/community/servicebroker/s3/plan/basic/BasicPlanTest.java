@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
+import org.cloudfoundry.community.servicebroker.s3.operation.LastOperation;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationInProgressException;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationState;
+import org.cloudfoundry.community.servicebroker.s3.operation.OperationType;
+import org.cloudfoundry.community.servicebroker.s3.service.BucketEmptier;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceIndex;
+import org.cloudfoundry.community.servicebroker.s3.service.ServiceInstanceRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.identitymanagement.model.User;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+
+import static org.cloudfoundry.community.servicebroker.s3.plan.basic.BasicPlanFixture.PREFIX;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class BasicPlanTest {
+
+    private BasicPlanFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new BasicPlanFixture();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Test
+    public void bindCreatesAUserWhenClaimingAPooledUserFails() {
+        fixture.userPoolLowWaterMark = 1;
+        BasicPlan plan = fixture.plan("group");
+        ServiceInstance instance = fixture.provision("instance");
+        fixture.userPool.refill();
+        // deleting the pooled user behind the pool's back makes the claim fail
+        for (User pooled : fixture.iam.listUsers(fixture.userPool.getPoolPath())) {
+            fixture.iam.deleteUserAccessKeys(pooled.getUserName());
+            fixture.iam.deleteUser(pooled.getUserName());
+        }
+
+        ServiceInstanceBinding binding = plan.createServiceInstanceBinding("binding", instance, "s3",
+                BasicPlan.PLAN_ID, "app");
+
+        String userName = fixture.iam.getUserNameForBinding("binding");
+        assertThat(binding.getCredentials().get("username"), is((Object) userName));
+        assertThat(fixture.iam.listAccessKeyIds(userName).get(0), is(binding.getCredentials().get("access_key_id")));
+        assertThat(fixture.iam.listGroupNamesForUser(userName).get(0), is(PREFIX + "instance"));
+    }
+
+    @Test
+    public void asyncProvisionCreatesTheBucketAndGroupInTheBackground() throws Exception {
+        BasicPlan plan = fixture.plan("group");
+
+        plan.createServiceInstanceAsync(fixture.service, "instance", BasicPlan.PLAN_ID, "org", "space");
+
+        LastOperation completed = awaitCompletion("instance");
+        assertThat(completed.getType(), is(OperationType.PROVISION));
+        assertThat(completed.getState(), is(OperationState.SUCCEEDED));
+        assertNotNull(plan.getServiceInstance("instance"));
+        assertThat(fixture.inMemoryIam.getGroupCount(), is(1));
+    }
+
+    @Test
+    public void failedAsyncProvisionIsRolledBack() throws Exception {
+        BasicPlan plan = fixture.plan("group");
+        fixture.iam.createGroup(PREFIX + "instance");
+
+        plan.createServiceInstanceAsync(fixture.service, "instance", BasicPlan.PLAN_ID, "org", "space");
+
+        assertThat(awaitCompletion("instance").getState(), is(OperationState.FAILED));
+        assertFalse(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    @Test
+    public void asyncProvisionDuringAnotherOperationIsRejected() {
+        BasicPlan plan = fixture.plan("group");
+        fixture.operations.reserve("instance", OperationType.DEPROVISION, "Deleting bucket contents");
+
+        try {
+            plan.createServiceInstanceAsync(fixture.service, "instance", BasicPlan.PLAN_ID, "org", "space");
+            fail("expected the deprovision in progress to conflict");
+        } catch (OperationInProgressException e) {
+            assertThat(e.getOperation().getType(), is(OperationType.DEPROVISION));
+        }
+        assertFalse(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    @Test
+    public void asyncDeprovisionRevokesAccessBeforeDeletingTheBucketInTheBackground() throws Exception {
+        BasicPlan plan = fixture.plan("group");
+        fixture.provision("instance");
+
+        assertNotNull(plan.deleteServiceInstanceAsync("instance"));
+        assertThat(fixture.inMemoryIam.getGroupCount(), is(0));
+
+        LastOperation completed = awaitCompletion("instance");
+        assertThat(completed.getType(), is(OperationType.DEPROVISION));
+        assertThat(completed.getState(), is(OperationState.SUCCEEDED));
+        assertFalse(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    @Test
+    public void instancesBeingDeprovisionedAreNoLongerFound() throws Exception {
+        fixture.lifecycleExpiryThreshold = 2;
+        BasicPlan plan = fixture.plan("group");
+        fixture.provision("instance");
+        fixture.inMemoryS3.seed("cloud-foundry-instance", 3, 1);
+        assertNotNull(plan.getServiceInstance("instance"));
+
+        plan.deleteServiceInstanceAsync("instance");
+
+        assertNull(plan.getServiceInstance("instance"));
+        S3 otherBroker = new S3(fixture.amazonS3, fixture.bucketEmptier,
+                new ServiceInstanceRegistry(100, 60, 60), new ServiceInstanceIndex(""), "cloud-foundry-", "US", 1);
+        try {
+            assertNull(otherBroker.findServiceInstance("instance"));
+        } finally {
+            otherBroker.shutdown();
+        }
+    }
+
+    @Test
+    public void interruptedDeprovisionIsResumed() throws Exception {
+        BasicPlan plan = fixture.plan("group");
+        ServiceInstance instance = fixture.provision("instance");
+        fixture.iam.deleteGroupPolicyForInstance("instance");
+        fixture.iam.deleteGroupForInstance("instance");
+        fixture.s3.markDeprovisioning(instance);
+
+        assertNotNull(plan.deleteServiceInstanceAsync("instance"));
+
+        assertThat(awaitCompletion("instance").getState(), is(OperationState.SUCCEEDED));
+        assertFalse(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    @Test
+    public void deprovisionCutShortByARestartIsResumedWithoutADeprovisionRequest() throws Exception {
+        BasicPlan plan = fixture.plan("group");
+        ServiceInstance instance = fixture.provision("instance");
+        fixture.iam.deleteGroupPolicyForInstance("instance");
+        fixture.iam.deleteGroupForInstance("instance");
+        fixture.s3.markDeprovisioning(instance);
+
+        assertNotNull(plan.resumeDeprovision("instance"));
+
+        assertThat(awaitCompletion("instance").getState(), is(OperationState.SUCCEEDED));
+        assertFalse(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+        assertNull(plan.resumeDeprovision("instance"));
+    }
+
+    @Test
+    public void liveInstancesAreNotDeprovisionedByAResume() {
+        BasicPlan plan = fixture.plan("group");
+        fixture.provision("instance");
+
+        assertNull(plan.resumeDeprovision("instance"));
+        assertNull(fixture.operations.getLastOperation("instance"));
+        assertTrue(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    @Test
+    public void asyncDeprovisionOfMissingInstanceReturnsNull() {
+        assertNull(fixture.plan("group").deleteServiceInstanceAsync("missing"));
+        assertNull(fixture.operations.getLastOperation("missing"));
+    }
+
+    @Test
+    public void largeBucketsAreLeftToALifecycleRule() throws Exception {
+        fixture.lifecycleExpiryThreshold = 2;
+        BasicPlan plan = fixture.plan("group");
+        fixture.provision("instance");
+        fixture.inMemoryS3.seed("cloud-foundry-instance", 3, 1);
+
+        plan.deleteServiceInstanceAsync("instance");
+
+        BucketLifecycleConfiguration lifecycle = awaitLifecycle("cloud-foundry-instance");
+        assertThat(lifecycle.getRules().size(), is(2));
+        assertTrue(fixture.operations.isInProgress("instance"));
+        assertThat(fixture.inMemoryS3.getObjectCount("cloud-foundry-instance"), is(3));
+    }
+
+    @Test
+    public void asyncDeprovisionDuringAnotherOperationLeavesTheInstanceAlone() {
+        BasicPlan plan = fixture.plan("group");
+        fixture.provision("instance");
+        fixture.operations.reserve("instance", OperationType.PROVISION, "Creating bucket");
+
+        try {
+            plan.deleteServiceInstanceAsync("instance");
+            fail("expected the provision in progress to conflict");
+        } catch (OperationInProgressException e) {
+            assertThat(e.getOperation().getType(), is(OperationType.PROVISION));
+        }
+        assertThat(fixture.inMemoryIam.getGroupCount(), is(1));
+        assertTrue(fixture.amazonS3.doesBucketExist("cloud-foundry-instance"));
+    }
+
+    private LastOperation awaitCompletion(String instanceId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        LastOperation operation = fixture.operations.getLastOperation(instanceId);
+        while (!operation.isComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            operation = fixture.operations.getLastOperation(instanceId);
+        }
+        assertTrue("operation did not complete", operation.isComplete());
+        return operation;
+    }
+
+    private BucketLifecycleConfiguration awaitLifecycle(String bucketName) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        BucketLifecycleConfiguration lifecycle = fixture.amazonS3.getBucketLifecycleConfiguration(bucketName);
+        while (lifecycle == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            lifecycle = fixture.amazonS3.getBucketLifecycleConfiguration(bucketName);
+        }
+        assertNotNull("no lifecycle rule was applied", lifecycle);
+        return lifecycle;
+    }
+}
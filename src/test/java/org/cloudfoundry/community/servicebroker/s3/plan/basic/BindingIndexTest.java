@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.identitymanagement.model.AccessKey;
+import com.amazonaws.services.identitymanagement.model.User;
+
+import static org.cloudfoundry.community.servicebroker.s3.plan.basic.BasicPlanFixture.*;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class BindingIndexTest {
+
+    private BasicPlanFixture fixture;
+    private S3 s3;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new BasicPlanFixture();
+        s3 = fixture.s3;
+    }
+
+    @After
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Test
+    public void loadReadsBindingUsersWithTheirInstanceAndKeys() {
+        BasicPlanIam iam = iam("group");
+        iam.createGroupForInstance("instance", "cloud-foundry-instance");
+        User user = iam.createUserForBinding("binding", "cloud-foundry-instance");
+        AccessKey accessKey = iam.createAccessKey(user);
+        iam.addUserToGroup(user, iam.getGroupNameForInstance("instance"));
+        iam.createUser("pooled", PATH + "pool/");
+        BindingIndex index = index(iam);
+
+        index.load();
+
+        assertTrue(index.isLoaded());
+        BindingIndex.Entry entry = index.get("binding");
+        assertThat(entry.getUserName(), is(PREFIX + "binding"));
+        assertThat(entry.getInstanceId(), is("instance"));
+        assertThat(entry.getAccessKeyIds(), is(Arrays.asList(accessKey.getAccessKeyId())));
+        assertNull(index.get("pooled"));
+        assertNull(index.get("unknown"));
+    }
+
+    @Test
+    public void sharedAccessBindingsAreMatchedByTheirBucketTag() {
+        BasicPlanIam iam = iam("shared");
+        iam.createSharedAccess();
+        User user = iam.createUserForBinding("binding", "cloud-foundry-instance");
+        iam.addUserToGroup(user, iam.getGroupNameForInstance("instance"));
+        BindingIndex index = index(iam);
+
+        index.load();
+
+        assertThat(index.get("binding").getInstanceId(), is("instance"));
+    }
+
+    @Test
+    public void lookupsBeforeTheLoadReadIam() {
+        BasicPlanIam iam = iam("group");
+        iam.createUserForBinding("binding", "cloud-foundry-instance");
+        BindingIndex index = index(iam);
+
+        assertThat(index.get("binding").getUserName(), is(PREFIX + "binding"));
+        assertNull(index.get("unknown"));
+    }
+
+    @Test
+    public void lookupsMissingTheLoadedIndexReadIam() {
+        BasicPlanIam iam = iam("group");
+        BindingIndex index = index(iam);
+        index.load();
+        iam.createUserForBinding("elsewhere", "cloud-foundry-instance");
+
+        assertThat(index.get("elsewhere").getUserName(), is(PREFIX + "elsewhere"));
+        assertNull(index.get("unknown"));
+    }
+
+    @Test
+    public void changesMadeWhileLoadingWin() {
+        BasicPlanIam iam = iam("group");
+        iam.createUserForBinding("unbound", "cloud-foundry-instance");
+        BindingIndex index = index(iam);
+        index.remove("unbound");
+        index.put(new BindingIndex.Entry("bound", PREFIX + "bound", "instance", Collections.<String> emptyList()));
+
+        index.load();
+        // the unbind that removed the binding deletes its user
+        iam.deleteUser(PREFIX + "unbound");
+
+        assertNull(index.get("unbound"));
+        assertThat(index.get("bound").getInstanceId(), is("instance"));
+    }
+
+    @Test
+    public void expiredEntriesAreReadFromIamAgain() {
+        BasicPlanIam iam = iam("group");
+        iam.createUserForBinding("binding", "cloud-foundry-instance");
+        BindingIndex index = new BindingIndex(iam, s3, 100, 0, 60);
+        index.load();
+        // unbound by another broker instance
+        iam.deleteUser(PREFIX + "binding");
+
+        assertNull(index.get("binding"));
+    }
+
+    @Test
+    public void missingBindingsAreRememberedBriefly() {
+        BasicPlanIam iam = iam("group");
+        BindingIndex remembering = index(iam);
+        BindingIndex forgetting = new BindingIndex(iam, s3, 100, 60, 0);
+        assertNull(remembering.get("later"));
+        assertNull(forgetting.get("later"));
+        // bound by another broker instance
+        iam.createUserForBinding("later", "cloud-foundry-instance");
+
+        assertNull(remembering.get("later"));
+        assertThat(forgetting.get("later").getUserName(), is(PREFIX + "later"));
+    }
+
+    private BindingIndex index(BasicPlanIam iam) {
+        return new BindingIndex(iam, s3, 100, 60, 60);
+    }
+
+    private BasicPlanIam iam(String accessModel) {
+        return fixture.iam(SHARED_TEMPLATE, accessModel);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemoryIam;
+import org.cloudfoundry.community.servicebroker.s3.service.S3;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.BucketTaggingConfiguration;
+import com.amazonaws.services.s3.model.TagSet;
+
+import static org.cloudfoundry.community.servicebroker.s3.plan.basic.BasicPlanFixture.PREFIX;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class OrphanReaperTest {
+
+    private BasicPlanFixture fixture;
+    private InMemoryIam inMemoryIam;
+    private S3 s3;
+    private ServiceDefinition service;
+    private BasicPlanIam iam;
+    private BindingIndex bindingIndex;
+    private BasicPlan plan;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new BasicPlanFixture();
+        inMemoryIam = fixture.inMemoryIam;
+        s3 = fixture.s3;
+        service = fixture.service;
+    }
+
+    @After
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Test
+    public void debrisOfFailedOperationsIsReported() throws Exception {
+        OrphanReaper reaper = reaper("group", 60);
+        ServiceInstance live = provision("live");
+        plan.createServiceInstanceBinding("bound", live, "s3", BasicPlan.PLAN_ID, "app");
+        provision("no-group");
+        iam.deleteGroupPolicyForInstance("no-group");
+        iam.deleteGroupForInstance("no-group");
+        provision("no-bucket");
+        s3.deleteBucket("no-bucket");
+        iam.createUserForBinding("failed", s3.getBucketNameForInstance("live"));
+
+        List<String> names = names(reaper.report());
+
+        assertThat(names.size(), is(3));
+        assertTrue(names.contains(PREFIX + "failed"));
+        assertTrue(names.contains(PREFIX + "no-bucket"));
+        assertTrue(names.contains("cloud-foundry-no-group"));
+    }
+
+    @Test
+    public void orphansAreOnlyDeletedAfterTheGracePeriod() throws Exception {
+        OrphanReaper reaper = reaper("group", 60);
+        ServiceInstance live = provision("live");
+        plan.createServiceInstanceBinding("bound", live, "s3", BasicPlan.PLAN_ID, "app");
+        iam.createUserForBinding("failed", s3.getBucketNameForInstance("live"));
+        provision("no-bucket");
+        s3.deleteBucket("no-bucket");
+        long start = System.currentTimeMillis();
+
+        List<OrphanReaper.Orphan> first = reaper.scan(start, true);
+        List<OrphanReaper.Orphan> later = reaper.scan(start + 60 * 60 * 1000, true);
+
+        assertFalse(first.get(0).isPastGracePeriod());
+        assertTrue(later.get(0).isPastGracePeriod());
+        for (OrphanReaper.Orphan orphan : sortedForDeletion(later)) {
+            assertTrue(reaper.delete(orphan));
+        }
+        assertTrue(reaper.report().isEmpty());
+        assertThat(inMemoryIam.getUserCount(), is(1));
+        assertThat(inMemoryIam.getGroupCount(), is(1));
+    }
+
+    @Test
+    public void reportsDontStartTheGracePeriod() throws Exception {
+        OrphanReaper reaper = reaper("group", 60);
+        provision("no-bucket");
+        s3.deleteBucket("no-bucket");
+        long start = System.currentTimeMillis();
+
+        reaper.report();
+        reaper.scan(start, false);
+        List<OrphanReaper.Orphan> first = reaper.scan(start + 60 * 60 * 1000, true);
+
+        assertFalse(first.get(0).isPastGracePeriod());
+        assertThat(first.get(0).getOrphanedSince().getTime(), is(start + 60 * 60 * 1000));
+    }
+
+    @Test
+    public void aDisabledReaperAcceptsAnyDeleteRate() {
+        fixture.plan("group");
+        new OrphanReaper(fixture.plan, fixture.iam, s3, fixture.bindingIndex, fixture.operations, 0, 60, 1, 0)
+                .shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEnabledReaperNeedsADeleteRate() {
+        fixture.plan("group");
+        new OrphanReaper(fixture.plan, fixture.iam, s3, fixture.bindingIndex, fixture.operations, 60, 60, 1, 0);
+    }
+
+    @Test
+    public void orphansThatCameBackAreKept() throws Exception {
+        OrphanReaper reaper = reaper("group", 0);
+        provision("no-bucket");
+        s3.deleteBucket("no-bucket");
+        OrphanReaper.Orphan orphan = reaper.report().get(0);
+
+        s3.createBucketForInstance("no-bucket", service, BasicPlan.PLAN_ID, "org", "space");
+
+        assertFalse(reaper.delete(orphan));
+        assertThat(inMemoryIam.getGroupCount(), is(1));
+    }
+
+    @Test
+    public void bucketsNotTaggedForTheirInstanceAreLeftAlone() throws Exception {
+        OrphanReaper reaper = reaper("group", 0);
+        fixture.amazonS3.createBucket("cloud-foundry-untagged");
+        provision("retagged");
+        iam.deleteGroupPolicyForInstance("retagged");
+        iam.deleteGroupForInstance("retagged");
+        OrphanReaper.Orphan orphan = reaper.report().get(0);
+
+        TagSet tagSet = new TagSet();
+        tagSet.setTag("serviceInstanceId", "someone-else");
+        fixture.amazonS3.setBucketTaggingConfiguration("cloud-foundry-retagged",
+                new BucketTaggingConfiguration().withTagSets(tagSet));
+
+        assertThat(orphan.getName(), is("cloud-foundry-retagged"));
+        assertFalse(reaper.delete(orphan));
+        assertTrue(reaper.report().isEmpty());
+        assertTrue(fixture.amazonS3.doesBucketExist("cloud-foundry-retagged"));
+        assertTrue(fixture.amazonS3.doesBucketExist("cloud-foundry-untagged"));
+    }
+
+    @Test
+    public void unusedGroupsOfTheGroupModelAreReapedUnderTheSharedModel() throws Exception {
+        OrphanReaper reaper = reaper("shared", 0);
+        provision("instance");
+        iam.createGroup(PREFIX + "unused");
+        iam.createGroup(PREFIX + "used");
+        s3.createBucketForInstance("unused", service, BasicPlan.PLAN_ID, "org", "space");
+        s3.createBucketForInstance("used", service, BasicPlan.PLAN_ID, "org", "space");
+        iam.addUserToGroup(iam.createUserForBinding("legacy", "cloud-foundry-used"), PREFIX + "used");
+        bindingIndex.load();
+
+        List<OrphanReaper.Orphan> orphans = reaper.report();
+
+        assertThat(names(orphans), is(Collections.singletonList(PREFIX + "unused")));
+        assertTrue(reaper.delete(orphans.get(0)));
+        assertThat(inMemoryIam.getGroupCount(), is(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noReportWhileTheBindingIndexIsLoading() {
+        reaper("group", 0, false).report();
+    }
+
+    private OrphanReaper reaper(String accessModel, long gracePeriodMinutes) {
+        return reaper(accessModel, gracePeriodMinutes, true);
+    }
+
+    private OrphanReaper reaper(String accessModel, long gracePeriodMinutes, boolean loadIndex) {
+        plan = fixture.plan(accessModel);
+        iam = fixture.iam;
+        bindingIndex = fixture.bindingIndex;
+        if (loadIndex) {
+            bindingIndex.load();
+        }
+        return new OrphanReaper(plan, iam, s3, bindingIndex, fixture.operations, 0, gracePeriodMinutes, 1, 1000);
+    }
+
+    private ServiceInstance provision(String instanceId) {
+        return fixture.provision(instanceId);
+    }
+
+    private static List<String> names(List<OrphanReaper.Orphan> orphans) {
+        List<String> names = new ArrayList<String>();
+        for (OrphanReaper.Orphan orphan : orphans) {
+            names.add(orphan.getName());
+        }
+        return names;
+    }
+
+    private static List<OrphanReaper.Orphan> sortedForDeletion(List<OrphanReaper.Orphan> orphans) {
+        List<OrphanReaper.Orphan> sorted = new ArrayList<OrphanReaper.Orphan>();
+        for (OrphanReaper.Kind kind : OrphanReaper.Kind.values()) {
+            for (OrphanReaper.Orphan orphan : orphans) {
+                if (orphan.getKind() == kind) {
+                    sorted.add(orphan);
+                }
+            }
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import org.cloudfoundry.community.servicebroker.s3.aws.FaultInjector;
+import org.cloudfoundry.community.servicebroker.s3.aws.InMemorySts;
+import org.cloudfoundry.community.servicebroker.s3.policy.BucketGroupPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class StsBindingsTest {
+
+    private static final String ROLE_ARN = "arn:aws:iam::123456789012:role/cloud-foundry-s3";
+    private static final String POLICY = "{\n  \"Statement\": [{\"Resource\": \"arn:aws:s3:::${bucketName}/*\"}]\n}";
+    private static final String BROKER_URL = "https://broker.example.com/";
+    private static final String SECRET = "token-secret";
+
+    private BasicPlanFixture fixture;
+    private InMemorySts sts;
+    private StsBindings bindings;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new BasicPlanFixture();
+        fixture.plan("group");
+        fixture.provision("instance");
+        sts = new InMemorySts(FaultInjector.none());
+        bindings = bindings("sts", ROLE_ARN, BROKER_URL, SECRET);
+    }
+
+    @After
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Test
+    public void bindingIssuesCredentialsAndACredentialsToken() {
+        StsBindings.Binding binding = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket");
+
+        assertThat(binding.getBucketName(), is("bucket"));
+        assertTrue(binding.getCredentials().getAccessKeyId().startsWith("ASIA"));
+        assertNotNull(binding.getCredentials().getSessionToken());
+        assertThat(bindings.getCredentialsUri("instance", "binding"),
+                is("https://broker.example.com/credentials/instance/binding"));
+    }
+
+    @Test
+    public void credentialsTokensFetchTheIssuedCredentialsUntilTheyAreDueForRefresh() {
+        StsBindings.Binding binding = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket");
+        StsBindings otherBroker = bindings("sts", ROLE_ARN, BROKER_URL, SECRET);
+
+        StsBindings.Binding fetched = bindings.authenticate("instance", "binding", binding.getToken());
+        StsBindings.Binding fetchedElsewhere = otherBroker.authenticate("instance", "binding", binding.getToken());
+
+        assertSame(binding.getCredentials(), fetched.getCredentials());
+        assertThat(fetchedElsewhere.getBucketName(), is(fixture.s3.getBucketNameForInstance("instance")));
+        assertNotSame(binding.getCredentials(), fetchedElsewhere.getCredentials());
+        assertThat(sts.getAssumeRoleCount(), is(2L));
+    }
+
+    @Test
+    public void invalidCredentialsTokensAreRejectedWithoutAssumingTheRole() {
+        String token = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket").getToken();
+        StsBindings otherBroker = bindings("sts", ROLE_ARN, BROKER_URL, SECRET);
+
+        assertNull(otherBroker.authenticate("instance", "binding", token + "x"));
+        assertNull(otherBroker.authenticate("instance", "other-binding", token));
+        assertNull(otherBroker.authenticate("instance", "binding", "no-nonce"));
+        assertNull(otherBroker.authenticate("instance", "binding", null));
+        assertNull(bindings("sts", ROLE_ARN, BROKER_URL, "other-secret").authenticate("instance", "binding", token));
+        assertThat(sts.getAssumeRoleCount(), is(1L));
+    }
+
+    @Test
+    public void unbindingRevokesTheCredentialsToken() {
+        String token = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket").getToken();
+
+        assertTrue(bindings.unbind("instance", "binding"));
+
+        assertNull(bindings.authenticate("instance", "binding", token));
+        assertNull(bindings("sts", ROLE_ARN, BROKER_URL, SECRET).authenticate("instance", "binding", token));
+        assertFalse(bindings.unbind("instance", "binding"));
+    }
+
+    @Test
+    public void rebindingWithTheSameIdRevokesTheOldToken() {
+        String oldToken = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket").getToken();
+        bindings.unbind("instance", "binding");
+        String newToken = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket").getToken();
+
+        assertNull(bindings.authenticate("instance", "binding", oldToken));
+        assertNotNull(bindings("sts", ROLE_ARN, BROKER_URL, SECRET).authenticate("instance", "binding", newToken));
+    }
+
+    @Test
+    public void credentialsTokensStopWorkingOnceTheInstanceIsDeleted() {
+        String token = bindings.bind("binding", "instance", BasicPlan.PLAN_ID, "bucket").getToken();
+
+        fixture.plan.deleteServiceInstance("instance");
+
+        assertNull(bindings("sts", ROLE_ARN, BROKER_URL, SECRET).authenticate("instance", "binding", token));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void roleIsRequired() {
+        bindings("sts", "", BROKER_URL, SECRET);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void brokerUrlIsRequired() {
+        bindings("sts", ROLE_ARN, " ", SECRET);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenSecretIsRequired() {
+        bindings("sts", ROLE_ARN, BROKER_URL, "");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refreshMustStartWithinTheSession() {
+        new StsBindings(sts.client(), new BucketGroupPolicy(POLICY), fixture.s3, "sts", ROLE_ARN, 3600, 3600,
+                "cloud-foundry-s3-", BROKER_URL, SECRET);
+    }
+
+    @Test
+    public void disabledUnlessConfigured() {
+        assertFalse(bindings("user", "", "", "").isEnabled());
+    }
+
+    private StsBindings bindings(String bindingCredentials, String roleArn, String brokerUrl, String tokenSecret) {
+        return new StsBindings(sts.client(), new BucketGroupPolicy(POLICY), fixture.s3, bindingCredentials, roleArn,
+                3600, 900, "cloud-foundry-s3-", brokerUrl, tokenSecret);
+    }
+}
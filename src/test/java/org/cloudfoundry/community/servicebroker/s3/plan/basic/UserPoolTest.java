@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.plan.basic;
+
+import com.amazonaws.services.identitymanagement.model.AccessKey;
+import com.amazonaws.services.identitymanagement.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UserPoolTest {
+
+    private BasicPlanIam iam;
+    private UserPool pool;
+
+    @Before
+    public void setUp() {
+        iam = mock(BasicPlanIam.class);
+        when(iam.getUserPath()).thenReturn("/cloud-foundry/s3/");
+        when(iam.getUserNamePrefix()).thenReturn("cloud-foundry-s3-");
+        when(iam.createUser(anyString(), eq("/cloud-foundry/s3/pool/0/"))).thenReturn(new User());
+        when(iam.createAccessKey(any(User.class))).thenReturn(new AccessKey());
+        pool = new UserPool(iam, 2, 3, 1000, "0");
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void refillCreatesUsersWithKeysUnderThePoolPath() {
+        pool.refill();
+
+        assertThat(pool.getAvailable(), is(3));
+        verify(iam, times(3)).createUser(startsWith("cloud-foundry-s3-pool-"), eq("/cloud-foundry/s3/pool/0/"));
+        verify(iam, times(3)).createAccessKey(any(User.class));
+    }
+
+    @Test
+    public void refillWaitsForThePoolToDropBelowTheLowWaterMark() {
+        pool.refill();
+        assertNotNull(pool.take());
+
+        pool.refill();
+
+        assertThat(pool.getAvailable(), is(2));
+        verify(iam, times(3)).createUser(anyString(), anyString());
+    }
+
+    @Test
+    public void onlyLeftoversOfTheSamePoolIdAreDeleted() {
+        User leftover = new User().withUserName("cloud-foundry-s3-pool-1");
+        when(iam.listUsers("/cloud-foundry/s3/pool/0/")).thenReturn(Arrays.asList(leftover));
+        when(iam.listUsers("/cloud-foundry/s3/pool/")).thenReturn(Arrays.asList(leftover,
+                new User().withUserName("cloud-foundry-s3-pool-2")));
+        when(iam.listUsers("/cloud-foundry/s3/pool/1/")).thenReturn(Collections.<User> emptyList());
+
+        pool.deleteLeftoverUsers();
+
+        verify(iam).deleteUser("cloud-foundry-s3-pool-1");
+        verify(iam, never()).deleteUser("cloud-foundry-s3-pool-2");
+    }
+
+    @Test
+    public void disabledPoolHasNoUsers() {
+        UserPool disabled = new UserPool(iam, 0, 3, 1000, "0");
+
+        assertFalse(disabled.isEnabled());
+        assertNull(disabled.take());
+        disabled.shutdown();
+    }
+}
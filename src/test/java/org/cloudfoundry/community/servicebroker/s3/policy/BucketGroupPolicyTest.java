@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.policy;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class BucketGroupPolicyTest {
+
+    private static final String TEMPLATE = "{\"Resource\": \"arn:aws:s3:::${bucketName}/*\", "
+            + "\"Sid\": \"${instanceId}\"}";
+
+    @Test
+    public void everyPlaceholderIsReplaced() {
+        BucketGroupPolicy policy = new BucketGroupPolicy("{\"a\": \"${bucketName}:${instanceId}:${accountId}:${region}"
+                + ":${bucketName}\"}", Collections.<String, String> emptyMap(), "123456789012", "us-east-1");
+
+        assertThat(policy.policyDocument("plan", "id", "bucket"),
+                is("{\"a\": \"bucket:id:123456789012:us-east-1:bucket\"}"));
+    }
+
+    @Test
+    public void plansWithTheirOwnTemplateUseIt() {
+        BucketGroupPolicy policy = new BucketGroupPolicy(TEMPLATE, Collections.singletonMap("read-only",
+                "{\"Action\": \"s3:GetObject\", \"Resource\": \"arn:aws:s3:::${bucketName}/*\"}"), null, null);
+
+        assertThat(policy.policyDocument("read-only", "id", "bucket"),
+                is("{\"Action\": \"s3:GetObject\", \"Resource\": \"arn:aws:s3:::bucket/*\"}"));
+        assertThat(policy.policyDocument("other", "id", "bucket"),
+                is("{\"Resource\": \"arn:aws:s3:::bucket/*\", \"Sid\": \"id\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPlaceholdersAreRejected() {
+        new BucketGroupPolicy("{\"Resource\": \"arn:aws:s3:::${bucket}\"}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void templatesMustBeValidJson() {
+        new BucketGroupPolicy("{\"Resource\": \"arn:aws:s3:::${bucketName}\"");
+    }
+
+    @Test
+    public void policyVariablesAreLeftToIam() {
+        BucketGroupPolicy policy = new BucketGroupPolicy(TEMPLATE, Collections.<String, String> emptyMap(),
+                "{\"Resource\": \"arn:aws:s3:::${aws:PrincipalTag/cloud-foundry-bucket}/${*}\"}", null, null);
+
+        assertThat(policy.sharedPolicyDocument(),
+                is("{\"Resource\": \"arn:aws:s3:::${aws:PrincipalTag/cloud-foundry-bucket}/${*}\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharedTemplateCannotReferToABucket() {
+        new BucketGroupPolicy(TEMPLATE, Collections.<String, String> emptyMap(), TEMPLATE, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void accountIdMustBeConfiguredWhenUsed() {
+        new BucketGroupPolicy("{\"Principal\": \"arn:aws:iam::${accountId}:root\"}");
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class BucketEmptierTest {
+
+    private static final String BUCKET = "cloud-foundry-instance";
+
+    private AmazonS3 amazonS3;
+    private BucketEmptier emptier;
+
+    @Before
+    public void setUp() {
+        amazonS3 = mock(AmazonS3.class);
+        emptier = new BucketEmptier(amazonS3, 2, 1);
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenReturn(objectListing("a", "b", "c"));
+        when(amazonS3.listVersions(any(ListVersionsRequest.class))).thenReturn(emptyVersionListing());
+    }
+
+    @After
+    public void tearDown() {
+        emptier.shutdown();
+    }
+
+    @Test
+    public void eachListingPageIsDeletedWithOneRequest() {
+        DeletionStats stats = emptier.empty(BUCKET);
+
+        ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(amazonS3, times(1)).deleteObjects(captor.capture());
+        assertThat(captor.getValue().getKeys().size(), is(3));
+        assertThat(stats.getObjectsDeleted(), is(3L));
+        assertThat(stats.getRequestsIssued(), is(1L));
+    }
+
+    @Test
+    public void keysInTheErrorListAreRetried() {
+        DeleteError error = new DeleteError();
+        error.setKey("b");
+        error.setCode("InternalError");
+        MultiObjectDeleteException partialFailure = new MultiObjectDeleteException(Collections.singletonList(error),
+                Collections.<DeleteObjectsResult.DeletedObject> emptyList());
+        when(amazonS3.deleteObjects(any(DeleteObjectsRequest.class))).thenThrow(partialFailure)
+                .thenReturn(new DeleteObjectsResult(Collections.<DeleteObjectsResult.DeletedObject> emptyList()));
+
+        DeletionStats stats = emptier.empty(BUCKET);
+
+        ArgumentCaptor<DeleteObjectsRequest> captor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(amazonS3, times(2)).deleteObjects(captor.capture());
+        assertThat(captor.getAllValues().get(1).getKeys().get(0).getKey(), is("b"));
+        assertThat(stats.getObjectsDeleted(), is(3L));
+        assertThat(stats.getRequestsIssued(), is(2L));
+        assertThat(stats.getKeysRetried(), is(1L));
+    }
+
+    @Test
+    public void topLevelPrefixesAreEmptiedAsSeparatePartitions() {
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) {
+                ListObjectsRequest request = (ListObjectsRequest) invocation.getArguments()[0];
+                if ("logs/".equals(request.getPrefix())) {
+                    return objectListing("logs/1", "logs/2");
+                }
+                ObjectListing root = objectListing("a");
+                root.getCommonPrefixes().add("logs/");
+                return root;
+            }
+        });
+
+        DeletionStats stats = emptier.empty(BUCKET);
+
+        verify(amazonS3, times(2)).deleteObjects(any(DeleteObjectsRequest.class));
+        assertThat(stats.getObjectsDeleted(), is(3L));
+    }
+
+    @Test
+    public void listingStopsAheadOfTheDeletesAtThePrefetchBound() throws Exception {
+        final AtomicInteger pagesListed = new AtomicInteger(1);
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenReturn(truncated(objectListing("a")));
+        when(amazonS3.listNextBatchOfObjects(any(ObjectListing.class))).thenAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) {
+                int page = pagesListed.incrementAndGet();
+                ObjectListing listing = objectListing("key" + page);
+                return page < 4 ? truncated(listing) : listing;
+            }
+        });
+        final CountDownLatch deleting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(amazonS3.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(new Answer<DeleteObjectsResult>() {
+            @Override
+            public DeleteObjectsResult answer(InvocationOnMock invocation) throws InterruptedException {
+                deleting.countDown();
+                release.await();
+                return null;
+            }
+        });
+
+        EmptyInBackground run = new EmptyInBackground();
+        run.start();
+        assertTrue(deleting.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // one page is being deleted and the next one waits for its permit
+        assertThat(pagesListed.get(), is(2));
+        release.countDown();
+        run.join(5000);
+
+        assertThat(pagesListed.get(), is(4));
+        assertThat(run.stats.getObjectsDeleted(), is(4L));
+        assertThat(run.stats.getMaxQueueDepth(), is(1));
+        assertTrue(run.stats.getProducerStallMillis() >= 100);
+    }
+
+    @Test
+    public void slowListingIsReportedAsConsumerStall() {
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenReturn(truncated(objectListing("a")));
+        when(amazonS3.listNextBatchOfObjects(any(ObjectListing.class))).thenAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(200);
+                return objectListing("b");
+            }
+        });
+
+        DeletionStats stats = emptier.empty(BUCKET);
+
+        assertThat(stats.getObjectsDeleted(), is(2L));
+        assertTrue(stats.getConsumerStallMillis() >= 100);
+        assertThat(stats.getProducerStallMillis(), is(0L));
+    }
+
+    @Test
+    public void listingFailuresAreRethrown() {
+        AmazonServiceException failure = new AmazonServiceException("Slow Down");
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenThrow(failure);
+
+        try {
+            emptier.empty(BUCKET);
+            fail("Expected the listing failure");
+        } catch (AmazonServiceException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void deleteFailuresAreRethrown() {
+        AmazonS3Exception failure = new AmazonS3Exception("Access Denied");
+        when(amazonS3.deleteObjects(any(DeleteObjectsRequest.class))).thenThrow(failure);
+
+        try {
+            emptier.empty(BUCKET);
+            fail("Expected the delete failure");
+        } catch (AmazonS3Exception e) {
+            assertSame(failure, e);
+        }
+        verify(amazonS3, never()).listVersions(any(ListVersionsRequest.class));
+    }
+
+    @Test(timeout = 5000)
+    public void rejectedDeletesFailTheRun() {
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) {
+                emptier.shutdown();
+                // keep listing although shutting down interrupted this lister
+                Thread.interrupted();
+                return truncated(objectListing("a"));
+            }
+        });
+        when(amazonS3.listNextBatchOfObjects(any(ObjectListing.class))).thenReturn(objectListing("b"));
+
+        try {
+            emptier.empty(BUCKET);
+            fail("Expected the rejected delete");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        verify(amazonS3, never()).deleteObjects(any(DeleteObjectsRequest.class));
+    }
+
+    @Test
+    public void concurrentRunsShareTheThreads() throws Exception {
+        emptier.shutdown();
+        emptier = new BucketEmptier(amazonS3, 1, 1);
+        when(amazonS3.listObjects(any(ListObjectsRequest.class))).thenReturn(truncated(objectListing("a")));
+        when(amazonS3.listNextBatchOfObjects(any(ObjectListing.class))).thenReturn(objectListing("b"));
+
+        EmptyInBackground first = new EmptyInBackground();
+        EmptyInBackground second = new EmptyInBackground();
+        first.start();
+        second.start();
+        first.join(5000);
+        second.join(5000);
+
+        assertThat(first.stats.getObjectsDeleted(), is(2L));
+        assertThat(second.stats.getObjectsDeleted(), is(2L));
+    }
+
+    private class EmptyInBackground extends Thread {
+        private volatile DeletionStats stats;
+
+        @Override
+        public void run() {
+            stats = emptier.empty(BUCKET);
+        }
+    }
+
+    private ObjectListing truncated(ObjectListing listing) {
+        listing.setTruncated(true);
+        return listing;
+    }
+
+    private VersionListing emptyVersionListing() {
+        VersionListing versions = new VersionListing();
+        versions.setBucketName(BUCKET);
+        return versions;
+    }
+
+    private ObjectListing objectListing(String... keys) {
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(BUCKET);
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(BUCKET);
+            summary.setKey(key);
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.BucketTaggingConfiguration;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.Region;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.TagSet;
+import com.amazonaws.services.s3.model.VersionListing;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class S3Test {
+
+    private AmazonS3 amazonS3;
+    private S3 s3;
+
+    @Before
+    public void setUp() throws Exception {
+        amazonS3 = mock(AmazonS3.class);
+        s3 = new S3(amazonS3, mock(BucketEmptier.class), new ServiceInstanceRegistry(100, 60, 60),
+                new ServiceInstanceIndex(""), "cloud-foundry-", "US", 2);
+    }
+
+    @After
+    public void tearDown() {
+        s3.shutdown();
+    }
+
+    @Test
+    public void allServiceInstancesSkipsForeignAndUntaggedBuckets() {
+        when(amazonS3.listBuckets()).thenReturn(Arrays.asList(new Bucket("cloud-foundry-1"), new Bucket("cloud-foundry-2"),
+                new Bucket("someone-elses-bucket")));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-1")).thenReturn(tagging("1"));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-2")).thenReturn(null);
+
+        List<ServiceInstance> instances = s3.getAllServiceInstances();
+
+        assertThat(instances.size(), is(1));
+        assertThat(instances.get(0).getId(), is("1"));
+        verify(amazonS3, never()).getBucketTaggingConfiguration("someone-elses-bucket");
+    }
+
+    @Test
+    public void allServiceInstancesSkipsDeletedAndUnreadableBuckets() {
+        when(amazonS3.listBuckets()).thenReturn(Arrays.asList(new Bucket("cloud-foundry-1"), new Bucket("cloud-foundry-2"),
+                new Bucket("cloud-foundry-3")));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-1")).thenReturn(tagging("1"));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-2")).thenThrow(s3Error("NoSuchBucket"));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-3")).thenThrow(s3Error("AccessDenied"));
+
+        assertThat(s3.getAllServiceInstances().size(), is(1));
+    }
+
+    @Test(expected = AmazonS3Exception.class)
+    public void allServiceInstancesFailsOnOtherErrors() {
+        when(amazonS3.listBuckets()).thenReturn(Arrays.asList(new Bucket("cloud-foundry-1"), new Bucket("cloud-foundry-2")));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-1")).thenReturn(tagging("1"));
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-2")).thenThrow(s3Error("SlowDown"));
+
+        s3.getAllServiceInstances();
+    }
+
+    @Test
+    public void foundInstancesAreServedFromTheRegistry() {
+        when(amazonS3.doesBucketExist("cloud-foundry-1")).thenReturn(true);
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-1")).thenReturn(tagging("1"));
+
+        assertNotNull(s3.findServiceInstance("1"));
+        assertNotNull(s3.findServiceInstance("1"));
+
+        verify(amazonS3, times(1)).doesBucketExist("cloud-foundry-1");
+        verify(amazonS3, times(1)).getBucketTaggingConfiguration("cloud-foundry-1");
+    }
+
+    @Test
+    public void missingInstancesAreRememberedUntilABucketIsCreated() {
+        assertNull(s3.findServiceInstance("2"));
+        assertNull(s3.findServiceInstance("2"));
+        verify(amazonS3, times(1)).doesBucketExist("cloud-foundry-2");
+
+        when(amazonS3.createBucket(eq("cloud-foundry-2"), any(Region.class))).thenReturn(new Bucket("cloud-foundry-2"));
+        s3.createBucketForInstance("2", new ServiceDefinition("s3", "amazon-s3", "", true, null, null, null, null, null),
+                "s3-basic-plan", "org", "space");
+        s3.deleteBucket("2");
+        when(amazonS3.doesBucketExist("cloud-foundry-2")).thenReturn(true);
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-2")).thenReturn(tagging("2"));
+
+        assertNotNull(s3.findServiceInstance("2"));
+    }
+
+    @Test
+    public void concurrentLookupsShareOneRequest() throws Exception {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(amazonS3.doesBucketExist("cloud-foundry-3")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                lookupStarted.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+        when(amazonS3.getBucketTaggingConfiguration("cloud-foundry-3")).thenReturn(tagging("3"));
+        final List<ServiceInstance> found = new CopyOnWriteArrayList<ServiceInstance>();
+        Runnable lookup = new Runnable() {
+            @Override
+            public void run() {
+                found.add(s3.findServiceInstance("3"));
+            }
+        };
+
+        Thread first = new Thread(lookup);
+        first.start();
+        assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+        Thread second = new Thread(lookup);
+        second.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (second.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        verify(amazonS3, times(1)).doesBucketExist("cloud-foundry-3");
+        assertThat(found.size(), is(2));
+        assertSame(found.get(0), found.get(1));
+    }
+
+    @Test
+    public void noncurrentVersionsAndDeleteMarkersCountTowardTheExpiryThreshold() {
+        VersionListing listing = new VersionListing();
+        listing.getVersionSummaries().add(version("current", true, false));
+        listing.getVersionSummaries().add(version("noncurrent", false, false));
+        listing.getVersionSummaries().add(version("marker", true, true));
+        when(amazonS3.listVersions(any(ListVersionsRequest.class))).thenReturn(listing);
+
+        assertTrue(s3.hasMoreObjectsThan("1", 2));
+        assertFalse(s3.hasMoreObjectsThan("1", 3));
+    }
+
+    @Test
+    public void expiryRulesCoverDeleteMarkers() {
+        ArgumentCaptor<BucketLifecycleConfiguration> configuration = ArgumentCaptor
+                .forClass(BucketLifecycleConfiguration.class);
+
+        s3.expireAllObjects("1");
+
+        verify(amazonS3).setBucketLifecycleConfiguration(eq("cloud-foundry-1"), configuration.capture());
+        List<BucketLifecycleConfiguration.Rule> rules = configuration.getValue().getRules();
+        assertThat(rules.size(), is(2));
+        assertThat(rules.get(0).getNoncurrentVersionExpirationInDays(), is(1));
+        assertTrue(rules.get(1).isExpiredObjectDeleteMarker());
+    }
+
+    private S3VersionSummary version(String key, boolean latest, boolean deleteMarker) {
+        S3VersionSummary summary = new S3VersionSummary();
+        summary.setKey(key);
+        summary.setIsLatest(latest);
+        summary.setIsDeleteMarker(deleteMarker);
+        return summary;
+    }
+
+    private AmazonS3Exception s3Error(String errorCode) {
+        AmazonS3Exception error = new AmazonS3Exception(errorCode);
+        error.setErrorCode(errorCode);
+        return error;
+    }
+
+    private BucketTaggingConfiguration tagging(String instanceId) {
+        TagSet tagSet = new TagSet();
+        tagSet.setTag("serviceInstanceId", instanceId);
+        tagSet.setTag("serviceDefinitionId", "s3");
+        tagSet.setTag("planId", "s3-basic-plan");
+        tagSet.setTag("organizationGuid", "org");
+        tagSet.setTag("spaceGuid", "space");
+        return new BucketTaggingConfiguration().withTagSets(tagSet);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ServiceInstanceIndexReconcilerTest {
+
+    private File file;
+    private ServiceInstanceIndex index;
+    private S3 s3;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("instance-index", ".dat");
+        index = new ServiceInstanceIndex(file.getPath());
+        s3 = mock(S3.class);
+        when(s3.getBucketNameForInstance(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return "cloud-foundry-" + invocation.getArguments()[0];
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        file.delete();
+    }
+
+    @Test
+    public void onlyEntriesWhoseBucketIsConfirmedMissingAreRemoved() {
+        index.put(instance("listed"), "cloud-foundry-listed");
+        index.put(instance("deleted"), "cloud-foundry-deleted");
+        index.put(instance("unreadable"), "cloud-foundry-unreadable");
+        when(s3.getAllServiceInstances()).thenAnswer(new Answer<List<ServiceInstance>>() {
+            @Override
+            public List<ServiceInstance> answer(InvocationOnMock invocation) {
+                index.put(instance("created"), "cloud-foundry-created");
+                return Arrays.asList(instance("listed"));
+            }
+        });
+        when(s3.hasBucketForInstance("unreadable")).thenReturn(true);
+
+        new ServiceInstanceIndexReconciler(index, new ServiceInstanceRegistry(100, 60, 60), s3).reconcile();
+
+        assertThat(instanceIds(), is((Set<String>) new HashSet<String>(Arrays.asList("listed", "unreadable",
+                "created"))));
+        verify(s3, never()).hasBucketForInstance("created");
+    }
+
+    private Set<String> instanceIds() {
+        Set<String> instanceIds = new HashSet<String>();
+        for (ServiceInstanceIndex.Entry entry : index.getEntries()) {
+            instanceIds.add(entry.getInstanceId());
+        }
+        return instanceIds;
+    }
+
+    private ServiceInstance instance(String id) {
+        return new ServiceInstance(id, "s3", "s3-basic-plan", "org", "space", null);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.community.servicebroker.s3.service;
+
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ServiceInstanceIndexTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("instance-index", ".dat");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void entriesAreReplayedOnReopen() throws Exception {
+        ServiceInstanceIndex index = new ServiceInstanceIndex(file.getPath());
+        index.put(instance("1"), "cloud-foundry-1");
+        index.put(instance("2"), "cloud-foundry-2");
+        index.remove("1");
+        index.close();
+
+        ServiceInstanceIndex reopened = new ServiceInstanceIndex(file.getPath());
+        Collection<ServiceInstanceIndex.Entry> entries = reopened.getEntries();
+        assertThat(entries.size(), is(1));
+        ServiceInstanceIndex.Entry entry = entries.iterator().next();
+        assertThat(entry.getInstanceId(), is("2"));
+        assertThat(entry.getBucketName(), is("cloud-foundry-2"));
+        reopened.close();
+    }
+
+    @Test
+    public void tornRecordIsTruncated() throws Exception {
+        ServiceInstanceIndex index = new ServiceInstanceIndex(file.getPath());
+        index.put(instance("1"), "cloud-foundry-1");
+        index.close();
+        long validLength = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(validLength);
+        raf.write(new byte[] { 'P', 0, 10, 'a' });
+        raf.close();
+
+        ServiceInstanceIndex reopened = new ServiceInstanceIndex(file.getPath());
+        assertThat(reopened.getEntries().size(), is(1));
+        reopened.close();
+        assertThat(file.length(), is(validLength));
+    }
+
+    private ServiceInstance instance(String id) {
+        return new ServiceInstance(id, "s3", "s3-basic-plan", "org", "space", null);
+    }
+}